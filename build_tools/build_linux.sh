@@ -52,7 +52,7 @@ echo "+++++++++++++++++++++++++++"
 jar \
 --create \
 --file cacti_${version}.jar \
---main-class=edu.unm.casaa.main.Main \
+--main-class=edu.unm.casaa.main.Launcher \
 -C $project_base_dir/target/classes . \
 -C $project_base_dir/target/resources . \
 
@@ -76,7 +76,7 @@ java -jar --module-path ${openjfx_lib} --add-modules javafx.controls,javafx.fxml
 # --vendor CASAA \
 # -i $project_base_dir/target \
 # --dest $project_base_dir/target \
-# --main-class edu.unm.casaa.main.Main \
+# --main-class edu.unm.casaa.main.Launcher \
 # --main-jar $project_base_dir/target/cacti_${version}.jar \
 # --module-path ${openjfx} --add-modules javafx.controls,javafx.fxml,javafx.media \
 # --jlink-options "--strip-native-commands --strip-debug --no-man-pages --no-header-files" \
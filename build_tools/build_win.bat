@@ -44,7 +44,7 @@ echo ""
 echo "+++++++++++++++++++++++++++"
 echo "    Create Jar"
 echo "+++++++++++++++++++++++++++"
-%jdk%\bin\jar --create --file cacti_%version%.jar --main-class=edu.unm.casaa.main.Main -C %project_base_dir%\target\classes . -C %project_base_dir%\target\resources .
+%jdk%\bin\jar --create --file cacti_%version%.jar --main-class=edu.unm.casaa.main.Launcher -C %project_base_dir%\target\classes . -C %project_base_dir%\target\resources .
 
 echo ""
 echo "+++++++++++++++++++++++++++"
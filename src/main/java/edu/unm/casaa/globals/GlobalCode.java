@@ -18,16 +18,19 @@ This source code file is part of the CASAA Treatment Coding System Utility
 
 package edu.unm.casaa.globals;
 
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
 import java.util.ListIterator;
-import java.util.Vector;
 import edu.unm.casaa.main.MainController;
 
 
 public class GlobalCode { 
 
 
-    // List of available codes. Built when we parse XML file.
-    private static Vector< GlobalCode > list             = new Vector<>();
+    // Available codes. Built when we parse XML file, replaced as a whole on reload.
+    private static volatile Registry    registry         = Registry.EMPTY;
 
     public int                          id               = 0;
     public String                       name;                                         // Name for use in file. Ex: "ACCEPTANCE".
@@ -46,61 +49,158 @@ public class GlobalCode {
      * @return
      */
     public static ListIterator<GlobalCode> getIterator() {
-        return list.listIterator();
+        return registry.codes.listIterator();
+    }
+
+
+    /**
+     * @return current code registry
+     */
+    public static Registry getRegistry() {
+        return registry;
+    }
+
+
+    /**
+     * Replace all codes at once. Lookups see either the old or the new registry, never a mix.
+     * @param newRegistry registry built from the user config
+     */
+    public static void setRegistry( Registry newRegistry ) {
+        registry = newRegistry;
     }
 
 
     // Add new code.  Returns true on success, shows warning dialog on failure.
-    public static boolean   addCode( GlobalCode newCode ) {
-        // Check that we're not duplicating an existing id or label.
-        for( int i = 0; i < list.size(); i++ ) {
-            GlobalCode code = list.get( i );
-
-            if( code.id == newCode.id || code.name.equals( newCode.name ) ) {
-                MainController.showFatalWarning(
-                        "User Code Error",
-                        "New global code " + 
-                        newCode.toDisplayString() + " conflicts with existing global code " + code.toDisplayString() );
-                return false;
-            }
+    public static synchronized boolean   addCode( GlobalCode newCode ) {
+        try {
+            registry = new Builder( registry ).add( newCode ).build();
+        } catch( Exception e ) {
+            MainController.showFatalWarning( "User Code Error", e.getMessage() );
+            return false;
         }
-        list.add( newCode );
         return true;
     }
 
     public static int numCodes() {
-        return list.size();
+        return registry.codes.size();
     }
 
     // PRE: index < numCodes().
     public static GlobalCode codeAtIndex( int index ) {
-        return list.get( index );
+        return registry.codes.get( index );
     }
 
     // PRE: code exists with given id.
     public static GlobalCode codeWithId( int value ) {
         // Check user codes.
-        for (GlobalCode code : list) {
-            if (code.id == value) {
-                return code;
-            }
-        }
-        assert false : "Global code with given id not found: " + value;
-        return null;
+        GlobalCode code = registry.getById( value );
+        assert code != null : "Global code with given id not found: " + value;
+        return code;
     }
 
     // PRE: code exists with given name.
     public static GlobalCode codeWithName( String name ) {
         // Check user codes.
-        for( int i = 0; i < list.size(); i++ ) {
-            GlobalCode code = list.get( i );
+        GlobalCode code = registry.getByName( name );
+        assert code != null : "Global code with given name not found: " + name;
+        return code;
+    }
+
+
+
+    /**
+     * Immutable set of global codes in config order, indexed by id and by name
+     */
+    public static final class Registry {
+
+        public static final Registry EMPTY = new Registry( new ArrayList<>(), new HashMap<>(), new HashMap<>() );
+
+        private final List< GlobalCode >                codes;
+        private final HashMap< Integer, GlobalCode >    byId;
+        private final HashMap< String, GlobalCode >     byName;
 
-            if( code.name.equals( name ) ) {
-                return code;
+        private Registry( ArrayList< GlobalCode > codes, HashMap< Integer, GlobalCode > byId, HashMap< String, GlobalCode > byName ) {
+            this.codes  = Collections.unmodifiableList( codes );
+            this.byId   = byId;
+            this.byName = byName;
+        }
+
+        /**
+         * @return code with id or null
+         */
+        public GlobalCode getById( int id ) {
+            return byId.get( id );
+        }
+
+        /**
+         * @return code with name or null
+         */
+        public GlobalCode getByName( String name ) {
+            return byName.get( name );
+        }
+
+        /**
+         * @return codes in the order they were added
+         */
+        public List< GlobalCode > getCodes() {
+            return codes;
+        }
+
+        public int size() {
+            return codes.size();
+        }
+    }
+
+
+
+    /**
+     * Collects codes for a new Registry, rejecting duplicate ids or names
+     */
+    public static final class Builder {
+
+        private final ArrayList< GlobalCode >           codes   = new ArrayList<>();
+        private final HashMap< Integer, GlobalCode >    byId    = new HashMap<>();
+        private final HashMap< String, GlobalCode >     byName  = new HashMap<>();
+
+        public Builder() {
+        }
+
+        /**
+         * Start from the codes of an existing registry
+         */
+        public Builder( Registry from ) {
+            for (GlobalCode code : from.codes) {
+                codes.add( code );
+                byId.put( code.id, code );
+                byName.put( code.name, code );
+            }
+        }
+
+        /**
+         * @param newCode code to be added
+         * @return this builder
+         * @throws Exception on duplicates
+         */
+        public Builder add( GlobalCode newCode ) throws Exception {
+            // Check that we're not duplicating an existing id or label.
+            GlobalCode code = byId.get( newCode.id );
+            if( code == null ) {
+                code = byName.get( newCode.name );
+            }
+            if( code != null ) {
+                throw new Exception( "New global code " +
+                        newCode.toDisplayString() + " conflicts with existing global code " + code.toDisplayString() );
             }
+
+            codes.add( newCode );
+            byId.put( newCode.id, newCode );
+            byName.put( newCode.name, newCode );
+            return this;
+        }
+
+        public Registry build() {
+            return new Registry( new ArrayList<>( codes ), new HashMap<>( byId ), new HashMap<>( byName ) );
         }
-        assert false : "Global code with given name not found: " + name;
-        return null;
     }
 
     // Instance:
@@ -120,7 +220,7 @@ public class GlobalCode {
     }
 
     public static void clear() {
-        list.clear();
+        registry = Registry.EMPTY;
     }
 
     @Override
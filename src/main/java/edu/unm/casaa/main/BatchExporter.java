@@ -0,0 +1,314 @@
+/*
+This source code file is part of the CASAA Treatment Coding System Utility
+    Copyright (C) 2009  UNM CASAA
+
+    This program is free software: you can redistribute it and/or modify
+    it under the terms of the GNU General Public License as published by
+    the Free Software Foundation, either version 3 of the License, or
+    (at your option) any later version.
+
+    This program is distributed in the hope that it will be useful,
+    but WITHOUT ANY WARRANTY; without even the implied warranty of
+    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+    GNU General Public License for more details.
+
+    You should have received a copy of the GNU General Public License
+    along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package edu.unm.casaa.main;
+
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.TreeMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+
+/**
+ * Batch export of session files.
+ *
+ * Sessions are opened and exported in parallel on a fixed pool of worker threads. Each worker
+ * writes its own code list file; summary rows go through a single writer which appends them to
+ * the shared summary file in the order the files were given, so the summary does not depend on
+ * which worker finished first.
+ *
+ * Has no JavaFX toolkit dependency so it can run from the export dialog or the command line.
+ */
+public class BatchExporter {
+
+    /**
+     * Notified from worker threads as files finish
+     */
+    public interface Listener {
+        void exported(File file, int done, int total);
+        void failed(File file, Exception e, int done, int total);
+    }
+
+
+    /**
+     * Export failure for one file
+     */
+    public static final class Failure {
+        public final File file;
+        public final Exception error;
+
+        private Failure(File file, Exception error) {
+            this.file = file;
+            this.error = error;
+        }
+    }
+
+
+    /**
+     * Outcome of a batch
+     */
+    public static final class Result {
+        public final int total;
+        public final List<File> exported;
+        public final List<Failure> failures;
+        public final boolean cancelled;
+        public final long elapsedMillis;
+
+        private Result(int total, List<File> exported, List<Failure> failures, boolean cancelled, long elapsedMillis) {
+            this.total = total;
+            this.exported = Collections.unmodifiableList(exported);
+            this.failures = Collections.unmodifiableList(failures);
+            this.cancelled = cancelled;
+            this.elapsedMillis = elapsedMillis;
+        }
+    }
+
+
+    private final File destinationPath;
+    private final File summaryFilePath;
+    private final int threads;
+    private volatile Listener listener = null;
+    private volatile boolean cancelled = false;
+
+
+    /**
+     * @param destinationPath directory for code list files
+     * @param summaryFilePath summary file rows are appended to
+     * @param threads number of sessions exported at once
+     */
+    public BatchExporter(File destinationPath, File summaryFilePath, int threads) {
+        this.destinationPath = destinationPath;
+        this.summaryFilePath = summaryFilePath;
+        this.threads = Math.max(1, threads);
+    }
+
+
+    public void setListener(Listener listener) {
+        this.listener = listener;
+    }
+
+
+    /**
+     * Stop starting new exports. Exports already running are finished and their rows written.
+     */
+    public void cancel() {
+        cancelled = true;
+    }
+
+
+    public boolean isCancelled() {
+        return cancelled;
+    }
+
+
+    /**
+     * Export files and wait for the batch to finish
+     * @param files session files, summary rows are written in this order
+     * @return batch outcome
+     * @throws IOException if the summary file cannot be written
+     * @throws InterruptedException if interrupted while waiting; workers are cancelled
+     */
+    public Result run(List<File> files) throws IOException, InterruptedException {
+
+        long start = System.nanoTime();
+        int total = files.size();
+        AtomicInteger done = new AtomicInteger();
+
+        // per file outcome, indexed like files. Guarded by outcomes
+        Object[] outcomes = new Object[total];
+
+        AtomicInteger workerCount = new AtomicInteger();
+        ExecutorService pool = Executors.newFixedThreadPool(Math.min(threads, Math.max(1, total)), r -> {
+            Thread t = new Thread(r, "export-worker-" + workerCount.incrementAndGet());
+            t.setDaemon(true);
+            return t;
+        });
+
+        try (SummaryWriter summaryWriter = new SummaryWriter(summaryFilePath)) {
+
+            for (int i = 0; i < total; i++) {
+                final int index = i;
+                final File file = files.get(i);
+
+                pool.execute(() -> {
+                    if( cancelled ) {
+                        summaryWriter.skip(index);
+                        return;
+                    }
+
+                    Object outcome;
+                    try {
+                        outcome = exportFile(file, index, summaryWriter);
+                    } catch (IOException | SQLException | RuntimeException e) {
+                        summaryWriter.skip(index);
+                        outcome = e;
+                    }
+
+                    synchronized (outcomes) {
+                        outcomes[index] = outcome;
+                    }
+
+                    Listener l = listener;
+                    if( l != null ) {
+                        int n = done.incrementAndGet();
+                        if( outcome instanceof Exception ) {
+                            l.failed(file, (Exception) outcome, n, total);
+                        } else {
+                            l.exported(file, n, total);
+                        }
+                    }
+                });
+            }
+
+            pool.shutdown();
+            try {
+                // cancel() only stops new files from starting, so this always ends
+                pool.awaitTermination(Long.MAX_VALUE, TimeUnit.NANOSECONDS);
+            } catch (InterruptedException e) {
+                cancel();
+                pool.awaitTermination(1, TimeUnit.MINUTES);
+                throw e;
+            }
+        } finally {
+            pool.shutdownNow();
+        }
+
+        ArrayList<File> exported = new ArrayList<>();
+        ArrayList<Failure> failures = new ArrayList<>();
+        synchronized (outcomes) {
+            for (int i = 0; i < total; i++) {
+                if( outcomes[i] instanceof Exception ) {
+                    failures.add(new Failure(files.get(i), (Exception) outcomes[i]));
+                } else if( outcomes[i] != null ) {
+                    exported.add(files.get(i));
+                }
+            }
+        }
+
+        return new Result(total, exported, failures, cancelled, TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start));
+    }
+
+
+    /**
+     * Export one session on a worker thread
+     * @return file exported
+     */
+    private File exportFile(File file, int index, SummaryWriter summaryWriter) throws IOException, SQLException {
+        // read-only: utterances stream from the file and old schemas are not upgraded
+        try ( SessionData sesData = SessionData.openReadOnly(file.getAbsoluteFile()) ) {
+            // dump out text version
+            sesData.new Export(destinationPath, summaryFilePath).writeCodeList();
+            // hand summary row to the ordered writer
+            summaryWriter.write(index, sesData.getCodeSummaryMap());
+        }
+        return file;
+    }
+
+
+
+    /**
+     * Appends summary rows in index order. Rows that arrive early wait for the ones before them.
+     */
+    private static class SummaryWriter implements AutoCloseable {
+
+        private final PrintWriter printWriter;
+        // header is written before the first row of an empty file
+        private boolean needHeader;
+        // index of next row to write
+        private int next = 0;
+        // rows waiting for earlier rows; null value marks a skipped index
+        private final TreeMap<Integer, HashMap<String, Double>> waiting = new TreeMap<>();
+        private IOException failure = null;
+
+
+        SummaryWriter(File summaryFilePath) throws IOException {
+            needHeader = summaryFilePath.length() == 0;
+            printWriter = new PrintWriter(new BufferedWriter(new FileWriter(summaryFilePath, true)));
+        }
+
+
+        synchronized void write(int index, HashMap<String, Double> summary) throws IOException {
+            waiting.put(index, summary);
+            drain();
+            if( failure != null ) {
+                throw failure;
+            }
+        }
+
+
+        synchronized void skip(int index) {
+            // a row that failed while being written has already been passed
+            if( index >= next ) {
+                waiting.put(index, null);
+                drain();
+            }
+        }
+
+
+        private void drain() {
+            while( !waiting.isEmpty() && waiting.firstKey() == next ) {
+                HashMap<String, Double> summary = waiting.pollFirstEntry().getValue();
+                next++;
+                if( summary != null ) {
+                    writeRow(summary);
+                }
+            }
+        }
+
+
+        private void writeRow(HashMap<String, Double> summary) {
+            if( needHeader ) {
+                printWriter.println(SessionData.Export.summaryHeader(summary));
+                needHeader = false;
+            }
+            printWriter.println(SessionData.Export.summaryRow(summary));
+            if( printWriter.checkError() && failure == null ) {
+                failure = new IOException("Failed writing summary file");
+            }
+        }
+
+
+        /**
+         * Write rows still waiting behind a gap, e.g. after an interrupt, then close
+         */
+        @Override
+        public synchronized void close() throws IOException {
+            waiting.values().forEach(summary -> {
+                if( summary != null ) {
+                    writeRow(summary);
+                }
+            });
+            waiting.clear();
+            printWriter.close();
+            if( failure != null ) {
+                throw failure;
+            }
+        }
+    }
+}
@@ -0,0 +1,491 @@
+/*
+This source code file is part of the CASAA Treatment Coding System Utility
+    Copyright (C) 2009  UNM CASAA
+
+    This program is free software: you can redistribute it and/or modify
+    it under the terms of the GNU General Public License as published by
+    the Free Software Foundation, either version 3 of the License, or
+    (at your option) any later version.
+
+    This program is distributed in the hope that it will be useful,
+    but WITHOUT ANY WARRANTY; without even the implied warranty of
+    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+    GNU General Public License for more details.
+
+    You should have received a copy of the GNU General Public License
+    along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package edu.unm.casaa.main;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.PrintStream;
+import java.text.SimpleDateFormat;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Date;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+
+/**
+ * Headless command line modes.
+ *
+ * Runs without starting the JavaFX toolkit or media stack, so it works on machines with no display:
+ *
+ *   cacti export --in DIR|FILE [--in ...] --out DIR [--summary FILE] [--config FILE] [--threads N]
+ *   cacti convert --in FILE --out FILE
+ *   cacti migrate --in DIR|FILE [--in ...] [--manifest FILE] [--config FILE] [--threads N] [--dry-run] [--resume]
+ *
+ * convert copies a session between the ".casaa" and ".casaalog" formats, chosen by file extension.
+ * migrate converts legacy text format ".casaa" files, with their globals files, in place.
+ * export and migrate read the user config, by default the one the GUI uses; export only needs it
+ * for extra summary metrics and runs without it when the default file does not exist.
+ *
+ * Progress goes to stderr. A JSON summary of the run is printed to stdout at the end.
+ * Exit codes are EXIT_OK, EXIT_FAILURES when some sessions failed, EXIT_USAGE and EXIT_ERROR.
+ */
+public class CommandLine {
+
+    public static final int EXIT_OK = 0;
+    /* run completed but some sessions failed or the run was cancelled */
+    public static final int EXIT_FAILURES = 1;
+    public static final int EXIT_USAGE = 2;
+    /* run could not complete, e.g. summary file not writable */
+    public static final int EXIT_ERROR = 3;
+
+    private static final String USAGE =
+            "usage: cacti export --in DIR|FILE [--in DIR|FILE ...] --out DIR [--summary FILE] [--config FILE] [--threads N]\n" +
+            "       cacti convert --in FILE --out FILE\n" +
+            "       cacti migrate --in DIR|FILE [--in DIR|FILE ...] [--manifest FILE] [--config FILE] [--threads N] [--dry-run] [--resume]";
+
+
+    private final PrintStream out;
+    private final PrintStream err;
+
+
+    CommandLine(PrintStream out, PrintStream err) {
+        this.out = out;
+        this.err = err;
+    }
+
+
+    /**
+     * @param args launch arguments
+     * @return true if args name a command line mode rather than files for the GUI
+     */
+    public static boolean isCommand(String[] args) {
+        return args.length > 0 && (args[0].equals("export") || args[0].equals("convert") || args[0].equals("migrate"));
+    }
+
+
+    /**
+     * Entry point for running command line modes directly, without Main
+     */
+    public static void main(String[] args) {
+        System.exit(run(args));
+    }
+
+
+    /**
+     * @param args command and its options
+     * @return process exit code
+     */
+    public static int run(String[] args) {
+        CommandLine cli = new CommandLine(System.out, System.err);
+        if( !isCommand(args) ) {
+            cli.err.println(USAGE);
+            return EXIT_USAGE;
+        }
+        String[] options = Arrays.copyOfRange(args, 1, args.length);
+        switch (args[0]) {
+            case "convert":
+                return cli.convert(options);
+            case "migrate":
+                return cli.migrate(options);
+            default:
+                return cli.export(options);
+        }
+    }
+
+
+    /**
+     * Convert legacy text format sessions found under the inputs
+     */
+    int migrate(String[] args) {
+
+        ArrayList<File> inputs = new ArrayList<>();
+        File manifestFile = new File("casaa_migration_manifest.txt");
+        File configFile = new File(UserConfig.getPath());
+        int threads = Runtime.getRuntime().availableProcessors();
+        boolean dryRun = false;
+        boolean resume = false;
+
+        try {
+            for (int i = 0; i < args.length; i++) {
+                switch (args[i]) {
+                    case "--in":
+                        inputs.add(new File(value(args, ++i)));
+                        break;
+                    case "--manifest":
+                        manifestFile = new File(value(args, ++i));
+                        break;
+                    case "--config":
+                        configFile = new File(value(args, ++i));
+                        break;
+                    case "--threads":
+                        threads = Integer.parseInt(value(args, ++i));
+                        if( threads < 1 ) {
+                            throw new IllegalArgumentException("--threads must be at least 1");
+                        }
+                        break;
+                    case "--dry-run":
+                        dryRun = true;
+                        break;
+                    case "--resume":
+                        resume = true;
+                        break;
+                    default:
+                        throw new IllegalArgumentException("Unknown option: " + args[i]);
+                }
+            }
+            if( inputs.isEmpty() ) {
+                throw new IllegalArgumentException("--in is required");
+            }
+        } catch (IllegalArgumentException e) {
+            err.println(e.getMessage());
+            err.println(USAGE);
+            return EXIT_USAGE;
+        }
+
+        // legacy files hold code values, looked up in the user config as the GUI does
+        try {
+            UserConfig.parse(configFile).install();
+        } catch (Exception e) {
+            err.println("Cannot load user config " + configFile.getAbsolutePath() + ": " + e.getMessage());
+            return EXIT_USAGE;
+        }
+
+        List<LegacyMigrator.Candidate> candidates;
+        try {
+            candidates = LegacyMigrator.scan(inputs);
+        } catch (IOException e) {
+            err.println(e.getMessage());
+            return EXIT_USAGE;
+        }
+
+        LegacyMigrator migrator = new LegacyMigrator(manifestFile, threads, dryRun, resume);
+        migrator.setListener(new LegacyMigrator.Listener() {
+            @Override
+            public void migrated(LegacyMigrator.Candidate candidate, int done, int total) {
+                err.printf("[%d/%d] %s%s%n", done, total, candidate.session.getPath(), (candidate.globals == null) ? "" : " + globals");
+            }
+
+            @Override
+            public void failed(LegacyMigrator.Candidate candidate, Exception e, int done, int total) {
+                err.printf("[%d/%d] %s FAILED: %s%n", done, total, candidate.session.getPath(), e.getMessage());
+            }
+        });
+
+        // on Ctrl-C stop starting new sessions and let running ones finish
+        CountDownLatch finished = new CountDownLatch(1);
+        Thread hook = new Thread(() -> {
+            migrator.cancel();
+            try {
+                finished.await(30, TimeUnit.SECONDS);
+            } catch (InterruptedException ignored) {
+            }
+        }, "migrate-shutdown");
+        Runtime.getRuntime().addShutdownHook(hook);
+
+        try {
+            LegacyMigrator.Result result = migrator.run(candidates);
+            out.println("{\"command\":\"migrate\"" +
+                    ",\"dryRun\":" + dryRun +
+                    ",\"found\":" + result.found +
+                    ",\"skipped\":" + result.skipped +
+                    ",\"migrated\":" + result.migrated +
+                    ",\"failed\":" + result.failed +
+                    ",\"cancelled\":" + result.cancelled +
+                    ",\"elapsedMillis\":" + result.elapsedMillis +
+                    ",\"manifest\":" + jsonString(manifestFile.getAbsolutePath()) + "}");
+            out.flush();
+            return (result.failed == 0 && !result.cancelled) ? EXIT_OK : EXIT_FAILURES;
+        } catch (IOException e) {
+            err.println("Migration failed: " + e.getMessage());
+            return EXIT_ERROR;
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            err.println("Migration interrupted");
+            return EXIT_ERROR;
+        } finally {
+            finished.countDown();
+            try {
+                Runtime.getRuntime().removeShutdownHook(hook);
+            } catch (IllegalStateException ignored) {
+                // already shutting down
+            }
+        }
+    }
+
+
+    /**
+     * Copy one session to a new file of the format named by its extension
+     */
+    int convert(String[] args) {
+
+        File in = null;
+        File outFile = null;
+
+        try {
+            for (int i = 0; i < args.length; i++) {
+                switch (args[i]) {
+                    case "--in":
+                        in = new File(value(args, ++i));
+                        break;
+                    case "--out":
+                        outFile = new File(value(args, ++i));
+                        break;
+                    default:
+                        throw new IllegalArgumentException("Unknown option: " + args[i]);
+                }
+            }
+            if( in == null || outFile == null ) {
+                throw new IllegalArgumentException("--in and --out are required");
+            }
+        } catch (IllegalArgumentException e) {
+            err.println(e.getMessage());
+            err.println(USAGE);
+            return EXIT_USAGE;
+        }
+
+        if( !in.isFile() ) {
+            err.println("Input not found: " + in.getAbsolutePath());
+            return EXIT_USAGE;
+        }
+        if( outFile.exists() ) {
+            err.println("Output exists: " + outFile.getAbsolutePath());
+            return EXIT_USAGE;
+        }
+
+        long start = System.nanoTime();
+        try {
+            SessionStore.convert(in, outFile);
+        } catch (IOException e) {
+            err.println("Convert failed: " + e.getMessage());
+            // leave no partial session behind
+            outFile.delete();
+            return EXIT_ERROR;
+        }
+
+        out.println("{\"command\":\"convert\"" +
+                ",\"in\":" + jsonString(in.getPath()) +
+                ",\"out\":" + jsonString(outFile.getPath()) +
+                ",\"elapsedMillis\":" + TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start) + "}");
+        out.flush();
+        return EXIT_OK;
+    }
+
+
+    /**
+     * Export sessions to code list files and one summary file
+     */
+    int export(String[] args) {
+
+        ArrayList<File> inputs = new ArrayList<>();
+        File outDir = null;
+        File summaryFile = null;
+        File configFile = null;
+        int threads = Runtime.getRuntime().availableProcessors();
+
+        try {
+            for (int i = 0; i < args.length; i++) {
+                switch (args[i]) {
+                    case "--in":
+                        inputs.add(new File(value(args, ++i)));
+                        break;
+                    case "--out":
+                        outDir = new File(value(args, ++i));
+                        break;
+                    case "--summary":
+                        summaryFile = new File(value(args, ++i));
+                        break;
+                    case "--config":
+                        configFile = new File(value(args, ++i));
+                        break;
+                    case "--threads":
+                        threads = Integer.parseInt(value(args, ++i));
+                        if( threads < 1 ) {
+                            throw new IllegalArgumentException("--threads must be at least 1");
+                        }
+                        break;
+                    default:
+                        throw new IllegalArgumentException("Unknown option: " + args[i]);
+                }
+            }
+            if( inputs.isEmpty() || outDir == null ) {
+                throw new IllegalArgumentException("--in and --out are required");
+            }
+        } catch (IllegalArgumentException e) {
+            err.println(e.getMessage());
+            err.println(USAGE);
+            return EXIT_USAGE;
+        }
+
+        // summary columns follow the user config's extra metrics, as in the GUI export
+        if( configFile == null && new File(UserConfig.getPath()).canRead() ) {
+            configFile = new File(UserConfig.getPath());
+        }
+        if( configFile != null ) {
+            try {
+                UserConfig.parse(configFile).install();
+            } catch (Exception e) {
+                err.println("Cannot load user config " + configFile.getAbsolutePath() + ": " + e.getMessage());
+                return EXIT_USAGE;
+            }
+        }
+
+        if( !outDir.isDirectory() && !outDir.mkdirs() ) {
+            err.println("Cannot create output directory: " + outDir.getAbsolutePath());
+            return EXIT_ERROR;
+        }
+        if( summaryFile == null ) {
+            // same name the export dialog uses
+            String dateTimeStamp = new SimpleDateFormat("yyyyMMddHHmmss").format(new Date());
+            summaryFile = new File(outDir, String.format("casaa_summary_export_%s.csv", dateTimeStamp));
+        }
+
+        List<File> files;
+        try {
+            files = sessionFiles(inputs);
+        } catch (IOException e) {
+            err.println(e.getMessage());
+            return EXIT_USAGE;
+        }
+
+        BatchExporter exporter = new BatchExporter(outDir, summaryFile, threads);
+        exporter.setListener(new BatchExporter.Listener() {
+            @Override
+            public void exported(File file, int done, int total) {
+                err.printf("[%d/%d] %s%n", done, total, file.getPath());
+            }
+
+            @Override
+            public void failed(File file, Exception e, int done, int total) {
+                err.printf("[%d/%d] %s FAILED: %s%n", done, total, file.getPath(), e.getMessage());
+            }
+        });
+
+        // on Ctrl-C stop starting new sessions and let running ones write their summary rows
+        CountDownLatch finished = new CountDownLatch(1);
+        Thread hook = new Thread(() -> {
+            exporter.cancel();
+            try {
+                finished.await(30, TimeUnit.SECONDS);
+            } catch (InterruptedException ignored) {
+            }
+        }, "export-shutdown");
+        Runtime.getRuntime().addShutdownHook(hook);
+
+        try {
+            BatchExporter.Result result = exporter.run(files);
+            out.println(toJson(result, summaryFile));
+            out.flush();
+            return (result.failures.isEmpty() && !result.cancelled) ? EXIT_OK : EXIT_FAILURES;
+        } catch (IOException e) {
+            err.println("Export failed: " + e.getMessage());
+            return EXIT_ERROR;
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            err.println("Export interrupted");
+            return EXIT_ERROR;
+        } finally {
+            finished.countDown();
+            try {
+                Runtime.getRuntime().removeShutdownHook(hook);
+            } catch (IllegalStateException ignored) {
+                // already shutting down
+            }
+        }
+    }
+
+
+    /**
+     * Expand inputs to session files. Directories contribute their .casaa and .casaalog files, sorted by name.
+     */
+    static List<File> sessionFiles(List<File> inputs) throws IOException {
+        ArrayList<File> files = new ArrayList<>();
+        for (File input : inputs) {
+            if( input.isDirectory() ) {
+                File[] children = input.listFiles((dir, name) -> name.toLowerCase().endsWith(".casaa") || name.toLowerCase().endsWith(LogSessionStore.EXTENSION));
+                if( children == null ) {
+                    throw new IOException("Cannot read directory: " + input.getAbsolutePath());
+                }
+                Arrays.sort(children);
+                files.addAll(Arrays.asList(children));
+            } else if( input.isFile() ) {
+                files.add(input);
+            } else {
+                throw new IOException("Input not found: " + input.getAbsolutePath());
+            }
+        }
+        return files;
+    }
+
+
+    private static String value(String[] args, int i) {
+        if( i >= args.length ) {
+            throw new IllegalArgumentException("Missing value for " + args[i - 1]);
+        }
+        return args[i];
+    }
+
+
+    /**
+     * @return machine readable run summary
+     */
+    static String toJson(BatchExporter.Result result, File summaryFile) {
+        StringBuilder json = new StringBuilder();
+        json.append("{\"command\":\"export\"");
+        json.append(",\"total\":").append(result.total);
+        json.append(",\"exported\":").append(result.exported.size());
+        json.append(",\"failed\":").append(result.failures.size());
+        json.append(",\"skipped\":").append(result.total - result.exported.size() - result.failures.size());
+        json.append(",\"cancelled\":").append(result.cancelled);
+        json.append(",\"elapsedMillis\":").append(result.elapsedMillis);
+        json.append(",\"summaryFile\":").append(jsonString(summaryFile.getAbsolutePath()));
+        json.append(",\"failures\":[");
+        for (int i = 0; i < result.failures.size(); i++) {
+            BatchExporter.Failure failure = result.failures.get(i);
+            json.append(i == 0 ? "" : ",");
+            json.append("{\"file\":").append(jsonString(failure.file.getPath()));
+            json.append(",\"error\":").append(jsonString(String.valueOf(failure.error.getMessage()))).append('}');
+        }
+        json.append("]}");
+        return json.toString();
+    }
+
+
+    static String jsonString(String s) {
+        StringBuilder json = new StringBuilder(s.length() + 2).append('"');
+        for (int i = 0; i < s.length(); i++) {
+            char c = s.charAt(i);
+            switch (c) {
+                case '"':  json.append("\\\""); break;
+                case '\\': json.append("\\\\"); break;
+                case '\n': json.append("\\n"); break;
+                case '\r': json.append("\\r"); break;
+                case '\t': json.append("\\t"); break;
+                default:
+                    if( c < 0x20 ) {
+                        json.append(String.format("\\u%04x", (int) c));
+                    } else {
+                        json.append(c);
+                    }
+            }
+        }
+        return json.append('"').toString();
+    }
+}
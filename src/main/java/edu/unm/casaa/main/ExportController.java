@@ -21,11 +21,16 @@ package edu.unm.casaa.main;
 import java.io.File;
 import java.io.IOException;
 import java.net.URL;
-import java.sql.SQLException;
 import java.text.DateFormat;
 import java.text.SimpleDateFormat;
+import java.util.ArrayList;
 import java.util.Date;
+import java.util.HashSet;
+import java.util.LinkedHashSet;
+import java.util.List;
 import java.util.ResourceBundle;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
 
 import javafx.application.Platform;
 import javafx.collections.FXCollections;
@@ -33,8 +38,10 @@ import javafx.collections.ObservableList;
 import javafx.event.ActionEvent;
 import javafx.fxml.FXML;
 import javafx.scene.control.Alert;
+import javafx.scene.control.Button;
 import javafx.scene.control.Label;
 import javafx.scene.control.ListView;
+import javafx.scene.control.ProgressBar;
 import javafx.scene.input.DragEvent;
 import javafx.scene.input.Dragboard;
 import javafx.scene.input.TransferMode;
@@ -57,12 +64,29 @@ public class ExportController {
     private Label dstFilePathName;
     @FXML // fx:id="dstListView"
     private ListView<String> dstListView; // Value injected by FXMLLoader
+    @FXML
+    private ProgressBar exportProgress;
+    @FXML
+    private Label exportStatus;
+    @FXML
+    private Button btnCancelExport;
     public static final ObservableList selectedCasaaFile = FXCollections.observableArrayList();
 
     // export session will have a single, shared summary file
     String dateTimeStamp;
     File summaryFilePath = null;
 
+    // dropped batches run one after another so their summary rows do not interleave
+    private final ExecutorService batchRunner = Executors.newSingleThreadExecutor(r -> {
+        Thread t = new Thread(r, "export-batch");
+        t.setDaemon(true);
+        return t;
+    });
+    // batch currently exporting, if any. Accessed on FX thread
+    private BatchExporter activeExport = null;
+    // files queued or exporting, so dropping them again does not export them twice. Accessed on FX thread
+    private final HashSet<File> pendingFiles = new HashSet<>();
+
 
     /**
      * Handle button request to set destination directory
@@ -157,17 +181,22 @@ public class ExportController {
         if (db.hasFiles()) {
             success = true;
 
+            // same file dropped twice is only exported once
+            LinkedHashSet<File> files = new LinkedHashSet<>();
             db.getFiles().forEach(file -> {
                 if( file.isDirectory() ) {
                     for(File f:file.listFiles()) {
                         if(f.getName().toLowerCase().endsWith(".casaa")) {
-                            exportFile(f);
+                            files.add(f.getAbsoluteFile());
                         }
                     }
                 } else {
-                    exportFile(file);
+                    files.add(file.getAbsoluteFile());
                 }
             });
+            files.removeIf(file -> selectedCasaaFile.contains(file.getAbsolutePath()) || pendingFiles.contains(file));
+
+            exportFiles(new ArrayList<>(files));
         }
 
         e.setDropCompleted(success);
@@ -175,6 +204,19 @@ public class ExportController {
     }
 
 
+    /**
+     * Cancel exports not yet started
+     * @param event
+     */
+    @FXML
+    private void cancelExport(ActionEvent event) {
+        if( activeExport != null ) {
+            activeExport.cancel();
+            exportStatus.setText("Cancelling...");
+        }
+    }
+
+
     /**
      * Reset control after DnD
      * @param event
@@ -208,34 +250,80 @@ public class ExportController {
     }
 
     /**
-     * Exports new casaa file format to text files
-     * @param exportFile
+     * Exports new casaa file format to text files.
+     * Files are exported in the background; progress is shown as each one finishes.
+     * @param exportFiles
      */
-    private void exportFile( File exportFile ) {
-        if(! selectedCasaaFile.contains(exportFile.getAbsolutePath())){
+    private void exportFiles( List<File> exportFiles ) {
 
-            Platform.runLater(() -> {
-                try {
-                    // load the file
-                    SessionData sesData = new SessionData(exportFile.getAbsoluteFile());
-                    // start export session
-                    SessionData.Export dataExport = sesData.new Export(dstFilePath, summaryFilePath);
-                    // dump out text version
-                    dataExport.writeCodeList();
-                    // append summary values to summary.csv
-                    dataExport.appendSummary();
+        if( exportFiles.isEmpty() ) {
+            return;
+        }
+        pendingFiles.addAll(exportFiles);
 
+        BatchExporter exporter = new BatchExporter(dstFilePath, summaryFilePath, Runtime.getRuntime().availableProcessors());
+        exporter.setListener(new BatchExporter.Listener() {
+            @Override
+            public void exported(File file, int done, int total) {
+                Platform.runLater(() -> {
                     // if no errors add to list of successful file
-                    selectedCasaaFile.add(exportFile.getAbsolutePath());
+                    selectedCasaaFile.add(file.getAbsolutePath());
                     dstListView.setItems(selectedCasaaFile);
+                    showProgress(done, total);
+                });
+            }
+
+            @Override
+            public void failed(File file, Exception e, int done, int total) {
+                Platform.runLater(() -> showProgress(done, total));
+            }
+        });
+
+        batchRunner.execute(() -> {
+            Platform.runLater(() -> {
+                activeExport = exporter;
+                btnCancelExport.setDisable(false);
+                showProgress(0, exportFiles.size());
+            });
+
+            BatchExporter.Result result = null;
+            String error = null;
+            try {
+                result = exporter.run(exportFiles);
+            } catch (IOException e) {
+                error = e.getMessage();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                error = e.getMessage();
+            }
 
-                } catch (IOException e) {
-                    showError("Export Error", e.getMessage());
-                } catch (SQLException s) {
-                    showError("Export Error", s.getMessage());
+            final BatchExporter.Result batch = result;
+            final String batchError = error;
+            Platform.runLater(() -> {
+                // exported files are in selectedCasaaFile by now; failed or cancelled ones may be dropped again
+                pendingFiles.removeAll(exportFiles);
+                activeExport = null;
+                btnCancelExport.setDisable(true);
+                if( batchError != null ) {
+                    exportStatus.setText("");
+                    showError("Export Error", batchError);
+                } else {
+                    exportStatus.setText(String.format("%d of %d exported%s", batch.exported.size(), batch.total, batch.cancelled ? ", cancelled" : ""));
+                    // one alert for the batch rather than one per file
+                    if( !batch.failures.isEmpty() ) {
+                        StringBuilder message = new StringBuilder();
+                        batch.failures.forEach(f -> message.append(f.file.getName()).append(": ").append(f.error.getMessage()).append('\n'));
+                        showError("Export Error", message.toString());
+                    }
                 }
             });
-        }
+        });
+    }
+
+
+    private void showProgress(int done, int total) {
+        exportProgress.setProgress(total == 0 ? 0.0 : (double) done / total);
+        exportStatus.setText(String.format("%d of %d", done, total));
     }
 
 
@@ -0,0 +1,39 @@
+/*
+This source code file is part of the CASAA Treatment Coding System Utility
+    Copyright (C) 2009  UNM CASAA
+
+    This program is free software: you can redistribute it and/or modify
+    it under the terms of the GNU General Public License as published by
+    the Free Software Foundation, either version 3 of the License, or
+    (at your option) any later version.
+
+    This program is distributed in the hope that it will be useful,
+    but WITHOUT ANY WARRANTY; without even the implied warranty of
+    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+    GNU General Public License for more details.
+
+    You should have received a copy of the GNU General Public License
+    along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package edu.unm.casaa.main;
+
+import javafx.application.Application;
+
+
+/**
+ * Application entry point.
+ *
+ * Not an Application subclass on purpose: the java launcher starts the JavaFX toolkit before
+ * calling main() of an Application, which fails on machines without a display. Command line
+ * modes are dispatched here first and only the GUI launches JavaFX.
+ */
+public class Launcher {
+
+    public static void main(String[] args) {
+        if( CommandLine.isCommand(args) ) {
+            System.exit(CommandLine.run(args));
+        }
+        Application.launch(Main.class, args);
+    }
+}
@@ -0,0 +1,466 @@
+/*
+This source code file is part of the CASAA Treatment Coding System Utility
+    Copyright (C) 2009  UNM CASAA
+
+    This program is free software: you can redistribute it and/or modify
+    it under the terms of the GNU General Public License as published by
+    the Free Software Foundation, either version 3 of the License, or
+    (at your option) any later version.
+
+    This program is distributed in the hope that it will be useful,
+    but WITHOUT ANY WARRANTY; without even the implied warranty of
+    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+    GNU General Public License for more details.
+
+    You should have received a copy of the GNU General Public License
+    along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package edu.unm.casaa.main;
+
+import edu.unm.casaa.globals.GlobalCode;
+import edu.unm.casaa.misc.MiscCode;
+import edu.unm.casaa.utterance.Utterance;
+
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.FileReader;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.nio.file.FileVisitResult;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.SimpleFileVisitor;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+
+/**
+ * Bulk conversion of legacy text format session files.
+ *
+ * Directory trees are scanned for ".casaa" files that are not SQLite databases. Each is paired
+ * with the globals file of the same name in its directory, if there is one, and converted on a
+ * fixed pool of worker threads, without the dialogs of the interactive conversion.
+ *
+ * A session is parsed in full before anything is written, then written to a temporary file next
+ * to it. The legacy file is kept as "*.casaa.txt.bak", as by the interactive conversion, and only
+ * then replaced by the temporary file in one rename. An interrupted run leaves each session either
+ * legacy or converted, so it can simply be run again.
+ *
+ * Each outcome is appended to a manifest as it happens. A resumed run skips sessions the manifest
+ * already lists. A dry run parses sessions and records what would be converted, writing nothing else.
+ *
+ * Codes are looked up in the current MiscCode and GlobalCode registries, which must be loaded first.
+ */
+public class LegacyMigrator {
+
+    /* manifest statuses */
+    public static final String CONVERTED = "converted";
+    public static final String FAILED = "failed";
+    /* dry run: session parsed and would be converted */
+    public static final String CHECKED = "checked";
+
+    private static final String MANIFEST_HEADER = "status\tsession\tglobals\tmessage";
+    private static final String BACKUP_SUFFIX = ".txt.bak";
+    private static final String TEMP_SUFFIX = ".migrating";
+
+
+    /**
+     * Notified from worker threads as sessions finish
+     */
+    public interface Listener {
+        void migrated(Candidate candidate, int done, int total);
+        void failed(Candidate candidate, Exception e, int done, int total);
+    }
+
+
+    /**
+     * Legacy session file and its globals file
+     */
+    public static final class Candidate {
+        public final File session;
+        /** null if the session has no globals file */
+        public final File globals;
+
+        private Candidate(File session, File globals) {
+            this.session = session;
+            this.globals = globals;
+        }
+    }
+
+
+    /**
+     * Outcome of a run
+     */
+    public static final class Result {
+        /* legacy sessions found */
+        public final int found;
+        /* found but already listed in the manifest */
+        public final int skipped;
+        public final int migrated;
+        public final int failed;
+        public final boolean cancelled;
+        public final long elapsedMillis;
+
+        private Result(int found, int skipped, int migrated, int failed, boolean cancelled, long elapsedMillis) {
+            this.found = found;
+            this.skipped = skipped;
+            this.migrated = migrated;
+            this.failed = failed;
+            this.cancelled = cancelled;
+            this.elapsedMillis = elapsedMillis;
+        }
+    }
+
+
+    private final File manifestFile;
+    private final int threads;
+    private final boolean dryRun;
+    private final boolean resume;
+    private volatile Listener listener = null;
+    private volatile boolean cancelled = false;
+
+
+    /**
+     * @param manifestFile manifest of outcomes
+     * @param threads number of sessions converted at once
+     * @param dryRun parse only, write nothing but the manifest
+     * @param resume skip sessions listed in an existing manifest and append to it, rather than replace it
+     */
+    public LegacyMigrator(File manifestFile, int threads, boolean dryRun, boolean resume) {
+        this.manifestFile = manifestFile;
+        this.threads = Math.max(1, threads);
+        this.dryRun = dryRun;
+        this.resume = resume;
+    }
+
+
+    public void setListener(Listener listener) {
+        this.listener = listener;
+    }
+
+
+    /**
+     * Stop starting new conversions. Conversions already running are finished and recorded.
+     */
+    public void cancel() {
+        cancelled = true;
+    }
+
+
+    /**
+     * Find legacy sessions under roots and pair them with their globals files
+     * @param roots directories to scan, or single session files
+     * @return candidates sorted by path
+     * @throws IOException if a root cannot be read
+     */
+    public static List<Candidate> scan(List<File> roots) throws IOException {
+
+        ArrayList<File> sessions = new ArrayList<>();
+        // globals files by lower case path, as file names differ in case between machines
+        HashMap<String, File> globalsFiles = new HashMap<>();
+
+        for (File root : roots) {
+            if( !root.exists() ) {
+                throw new IOException("Input not found: " + root.getAbsolutePath());
+            }
+            Files.walkFileTree(root.toPath(), new SimpleFileVisitor<Path>() {
+                @Override
+                public FileVisitResult visitFile(Path path, BasicFileAttributes attrs) {
+                    String name = path.getFileName().toString().toLowerCase();
+                    if( name.endsWith(".casaa") ) {
+                        sessions.add(path.toFile().getAbsoluteFile());
+                    } else if( name.endsWith(".globals") ) {
+                        globalsFiles.put(path.toAbsolutePath().toString().toLowerCase(), path.toFile().getAbsoluteFile());
+                    }
+                    return FileVisitResult.CONTINUE;
+                }
+
+                @Override
+                public FileVisitResult visitFileFailed(Path path, IOException e) {
+                    // unreadable entries are not sessions we can convert
+                    return FileVisitResult.CONTINUE;
+                }
+            });
+        }
+
+        Collections.sort(sessions);
+        ArrayList<Candidate> candidates = new ArrayList<>();
+        HashSet<File> seen = new HashSet<>();
+        for (File session : sessions) {
+            if( seen.add(session) && isLegacyFile(session) ) {
+                String path = session.getPath();
+                String base = path.substring(0, path.length() - ".casaa".length());
+                // "name.globals", or "name.casaa.globals"
+                File globals = globalsFiles.get((base + ".globals").toLowerCase());
+                if( globals == null ) {
+                    globals = globalsFiles.get((path + ".globals").toLowerCase());
+                }
+                candidates.add(new Candidate(session, globals));
+            }
+        }
+        return candidates;
+    }
+
+
+    /**
+     * @return true if file is a non-empty session file that is not a database
+     */
+    static boolean isLegacyFile(File file) {
+        try {
+            return file.length() > 0 && !SQLiteSessionStore.isSQLiteDataFile(file);
+        } catch (IOException e) {
+            return false;
+        }
+    }
+
+
+    /**
+     * Convert candidates and wait for the run to finish
+     * @param candidates sessions to convert, e.g. from scan()
+     * @return run outcome
+     * @throws IOException if the manifest cannot be read or written
+     * @throws InterruptedException if interrupted while waiting; workers are cancelled
+     */
+    public Result run(List<Candidate> candidates) throws IOException, InterruptedException {
+
+        long start = System.nanoTime();
+
+        HashSet<String> listed = resume ? readManifest(manifestFile) : new HashSet<>();
+        ArrayList<Candidate> pending = new ArrayList<>();
+        for (Candidate candidate : candidates) {
+            if( !listed.contains(candidate.session.getAbsolutePath()) ) {
+                pending.add(candidate);
+            }
+        }
+
+        int total = pending.size();
+        AtomicInteger done = new AtomicInteger();
+        AtomicInteger migrated = new AtomicInteger();
+        AtomicInteger failed = new AtomicInteger();
+
+        AtomicInteger workerCount = new AtomicInteger();
+        ExecutorService pool = Executors.newFixedThreadPool(Math.min(threads, Math.max(1, total)), r -> {
+            Thread t = new Thread(r, "migrate-worker-" + workerCount.incrementAndGet());
+            t.setDaemon(true);
+            return t;
+        });
+
+        try (Manifest manifest = new Manifest(manifestFile, resume && manifestFile.length() > 0)) {
+
+            for (Candidate candidate : pending) {
+                pool.execute(() -> {
+                    if( cancelled ) {
+                        return;
+                    }
+
+                    Exception failure = null;
+                    try {
+                        migrate(candidate, dryRun);
+                    } catch (IOException | SQLException | RuntimeException e) {
+                        failure = e;
+                    }
+
+                    Listener l = listener;
+                    int n = done.incrementAndGet();
+                    if( failure == null ) {
+                        migrated.incrementAndGet();
+                        manifest.write(dryRun ? CHECKED : CONVERTED, candidate, "");
+                        if( l != null ) {
+                            l.migrated(candidate, n, total);
+                        }
+                    } else {
+                        failed.incrementAndGet();
+                        manifest.write(FAILED, candidate, String.valueOf(failure.getMessage()));
+                        if( l != null ) {
+                            l.failed(candidate, failure, n, total);
+                        }
+                    }
+                });
+            }
+
+            pool.shutdown();
+            try {
+                // cancel() only stops new sessions from starting, so this always ends
+                pool.awaitTermination(Long.MAX_VALUE, TimeUnit.NANOSECONDS);
+            } catch (InterruptedException e) {
+                cancel();
+                pool.awaitTermination(1, TimeUnit.MINUTES);
+                throw e;
+            }
+        } finally {
+            pool.shutdownNow();
+        }
+
+        return new Result(candidates.size(), candidates.size() - total, migrated.get(), failed.get(), cancelled,
+                TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start));
+    }
+
+
+    /**
+     * Convert one legacy session in place
+     * @param dryRun parse only
+     */
+    static void migrate(Candidate candidate, boolean dryRun) throws IOException, SQLException {
+
+        File session = candidate.session;
+
+        // parse everything before touching any file
+        SessionData.Compatibility.LegacySession legacySession = SessionData.Compatibility.readSession(session);
+        List<Utterance> utterances = legacySession.getUtterances();
+        String audioFilePath = new File(legacySession.getAudioFilename()).getAbsolutePath();
+        HashMap<String, Integer> ratings = new HashMap<>();
+        String notes = "";
+        if( candidate.globals != null ) {
+            SessionData.Compatibility.LegacyGlobals legacyGlobals = SessionData.Compatibility.readGlobals(candidate.globals);
+            ratings = legacyGlobals.getRatings();
+            notes = legacyGlobals.getNotes();
+        }
+
+        if( dryRun ) {
+            return;
+        }
+
+        // left over by an interrupted run
+        File temp = new File(session.getPath() + TEMP_SUFFIX);
+        Files.deleteIfExists(temp.toPath());
+
+        try {
+            try ( SessionStore store = SessionStore.create(temp, audioFilePath, MiscCode.getRegistry().getCodes(), GlobalCode.getRegistry().getCodes()) ) {
+                store.addUtterances(utterances);
+                for (Map.Entry<String, Integer> rating : ratings.entrySet()) {
+                    store.addRating(rating.getKey(), rating.getValue());
+                }
+                if( candidate.globals != null ) {
+                    store.setAttribute(SessionData.SessionAttributes.GLOBAL_NOTES, notes);
+                }
+                store.flush();
+            }
+
+            backup(session);
+            Files.move(temp.toPath(), session.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        } finally {
+            Files.deleteIfExists(temp.toPath());
+        }
+    }
+
+
+    /**
+     * Keep legacy file as "*.casaa.txt.bak". A hard link is tried first since it costs no copying.
+     * An existing backup is kept if it is the same file, e.g. from an interrupted run.
+     */
+    private static void backup(File session) throws IOException {
+        Path backup = new File(session.getPath() + BACKUP_SUFFIX).toPath();
+
+        if( Files.exists(backup) ) {
+            if( Files.mismatch(session.toPath(), backup) != -1 ) {
+                throw new IOException("Backup file exists with other content: " + backup);
+            }
+            return;
+        }
+
+        try {
+            Files.createLink(backup, session.toPath());
+        } catch (IOException | UnsupportedOperationException e) {
+            // e.g. FAT formatted drives
+            Files.copy(session.toPath(), backup, StandardCopyOption.COPY_ATTRIBUTES);
+        }
+    }
+
+
+    /**
+     * @return session paths listed in manifest, empty if there is none
+     */
+    static HashSet<String> readManifest(File manifestFile) throws IOException {
+        HashSet<String> sessions = new HashSet<>();
+        if( !manifestFile.exists() ) {
+            return sessions;
+        }
+
+        try ( BufferedReader reader = new BufferedReader(new FileReader(manifestFile)) ) {
+            String line;
+            while ((line = reader.readLine()) != null) {
+                String[] fields = line.split("\t", -1);
+                // dry run entries do not count as done
+                if( fields.length >= 2 && (fields[0].equals(CONVERTED) || fields[0].equals(FAILED)) ) {
+                    sessions.add(unescape(fields[1]));
+                }
+            }
+        }
+        return sessions;
+    }
+
+
+    /**
+     * Tab separated manifest, a line per session, flushed as each line is written
+     */
+    private static class Manifest implements AutoCloseable {
+
+        private final PrintWriter printWriter;
+        private IOException failure = null;
+
+        Manifest(File manifestFile, boolean append) throws IOException {
+            printWriter = new PrintWriter(new BufferedWriter(new FileWriter(manifestFile, append)));
+            if( !append ) {
+                printWriter.println(MANIFEST_HEADER);
+                printWriter.flush();
+            }
+        }
+
+        synchronized void write(String status, Candidate candidate, String message) {
+            printWriter.println(status + '\t' + escape(candidate.session.getAbsolutePath())
+                    + '\t' + escape(candidate.globals == null ? "" : candidate.globals.getAbsolutePath())
+                    + '\t' + escape(message));
+            printWriter.flush();
+            if( printWriter.checkError() && failure == null ) {
+                failure = new IOException("Failed writing manifest file");
+            }
+        }
+
+        @Override
+        public synchronized void close() throws IOException {
+            printWriter.close();
+            if( failure != null ) {
+                throw failure;
+            }
+        }
+    }
+
+
+    static String escape(String s) {
+        return s.replace("\\", "\\\\").replace("\t", "\\t").replace("\n", "\\n").replace("\r", "\\r");
+    }
+
+
+    static String unescape(String s) {
+        StringBuilder sb = new StringBuilder(s.length());
+        for (int i = 0; i < s.length(); i++) {
+            char c = s.charAt(i);
+            if( c == '\\' && i + 1 < s.length() ) {
+                char next = s.charAt(++i);
+                switch (next) {
+                    case 't':  sb.append('\t'); break;
+                    case 'n':  sb.append('\n'); break;
+                    case 'r':  sb.append('\r'); break;
+                    default:   sb.append(next);
+                }
+            } else {
+                sb.append(c);
+            }
+        }
+        return sb.toString();
+    }
+}
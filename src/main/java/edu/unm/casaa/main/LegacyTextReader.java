@@ -0,0 +1,211 @@
+/*
+This source code file is part of the CASAA Treatment Coding System Utility
+    Copyright (C) 2009  UNM CASAA
+
+    This program is free software: you can redistribute it and/or modify
+    it under the terms of the GNU General Public License as published by
+    the Free Software Foundation, either version 3 of the License, or
+    (at your option) any later version.
+
+    This program is distributed in the hope that it will be useful,
+    but WITHOUT ANY WARRANTY; without even the implied warranty of
+    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+    GNU General Public License for more details.
+
+    You should have received a copy of the GNU General Public License
+    along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package edu.unm.casaa.main;
+
+import javafx.util.Duration;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.Reader;
+import java.nio.CharBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.charset.CharacterCodingException;
+import java.nio.charset.Charset;
+import java.nio.file.StandardOpenOption;
+
+
+/**
+ * Line and field reader for the legacy tab separated text files.
+ *
+ * Lines end as they do for Scanner.nextLine() and fields are split on tabs with empty fields
+ * dropped, as StringTokenizer did, so files parse exactly as before. The file is read once through
+ * a fixed buffer and each line is split in place, so memory does not grow with the file.
+ */
+final class LegacyTextReader implements AutoCloseable {
+
+    private static final int BUFFER_SIZE = 64 * 1024;
+
+    /**
+     * Legacy lines have at most 7 fields; longer lines are only counted
+     */
+    private static final int MAX_FIELDS = 8;
+
+    private final File file;
+    private final Reader reader;
+    private final char[] buffer = new char[BUFFER_SIZE];
+    private int position = 0;
+    private int limit = 0;
+
+    private final StringBuilder line = new StringBuilder(256);
+    private int lineNumber = 0;
+
+    private final int[] fieldStart = new int[MAX_FIELDS];
+    private final int[] fieldEnd = new int[MAX_FIELDS];
+    private int fieldCount = 0;
+
+
+    /**
+     * @param file legacy text file, decoded with the platform charset as Scanner did
+     * @throws IOException if file cannot be opened
+     */
+    LegacyTextReader(File file) throws IOException {
+        this.file = file;
+        this.reader = Channels.newReader(FileChannel.open(file.toPath(), StandardOpenOption.READ),
+                Charset.defaultCharset().newDecoder(), -1);
+    }
+
+
+    /**
+     * Advance to next line and split it into fields
+     * @return false at end of file
+     * @throws FileFormatException if the file is not text in the platform charset
+     */
+    boolean nextLine() throws IOException {
+
+        line.setLength(0);
+        fieldCount = 0;
+
+        boolean read = false;
+        while( true ) {
+            if( position == limit && !fill() ) {
+                if( !read ) {
+                    return false;
+                }
+                break;
+            }
+            read = true;
+            char c = buffer[position++];
+            if( c == '\n' || c == '\u2028' || c == '\u2029' || c == '\u0085' ) {
+                break;
+            }
+            if( c == '\r' ) {
+                if( (position < limit || fill()) && buffer[position] == '\n' ) {
+                    position++;
+                }
+                break;
+            }
+            line.append(c);
+        }
+        lineNumber++;
+
+        int len = line.length();
+        int i = 0;
+        while( i < len ) {
+            while( i < len && line.charAt(i) == '\t' ) {
+                i++;
+            }
+            if( i == len ) {
+                break;
+            }
+            int start = i;
+            while( i < len && line.charAt(i) != '\t' ) {
+                i++;
+            }
+            if( fieldCount < MAX_FIELDS ) {
+                fieldStart[fieldCount] = start;
+                fieldEnd[fieldCount] = i;
+            }
+            fieldCount++;
+        }
+
+        return true;
+    }
+
+
+    private boolean fill() throws IOException {
+        int count;
+        try {
+            do {
+                count = reader.read(buffer, 0, buffer.length);
+            } while( count == 0 );
+        } catch (CharacterCodingException e) {
+            // decoding runs ahead of the lines handed out, so the bad bytes are somewhere past the last full line
+            throw new FileFormatException(String.format("%s, line %d: not %s text at or after this line",
+                    file.getName(), lineNumber + 1, Charset.defaultCharset().name()), e);
+        }
+        if( count < 0 ) {
+            return false;
+        }
+        position = 0;
+        limit = count;
+        return true;
+    }
+
+
+    /**
+     * @return number of non-empty tab separated fields on current line
+     */
+    int fieldCount() {
+        return fieldCount;
+    }
+
+
+    /**
+     * @return field of current line, without copying it
+     */
+    CharSequence field(int index) {
+        return CharBuffer.wrap(line, fieldStart[index], fieldEnd[index]);
+    }
+
+
+    String fieldString(int index) {
+        return line.substring(fieldStart[index], fieldEnd[index]);
+    }
+
+
+    int fieldInt(int index) throws FileFormatException {
+        try {
+            return Integer.parseInt(line, fieldStart[index], fieldEnd[index], 10);
+        } catch (NumberFormatException e) {
+            throw error(String.format("expected a number but found \"%s\"", fieldString(index)), e);
+        }
+    }
+
+
+    Duration fieldDuration(int index) throws FileFormatException {
+        try {
+            return Utils.parseDuration(field(index));
+        } catch (RuntimeException e) {
+            throw error(String.format("expected a time but found \"%s\"", fieldString(index)), e);
+        }
+    }
+
+
+    /**
+     * @return 1-based number of current line
+     */
+    int lineNumber() {
+        return lineNumber;
+    }
+
+
+    /**
+     * @return error naming file and current line
+     */
+    FileFormatException error(String message, Throwable cause) {
+        return new FileFormatException(String.format("%s, line %d: %s", file.getName(), lineNumber, message), cause);
+    }
+
+
+    @Override
+    public void close() throws IOException {
+        reader.close();
+    }
+}
@@ -0,0 +1,121 @@
+/*
+This source code file is part of the CASAA Treatment Coding System Utility
+    Copyright (C) 2009  UNM CASAA
+
+    This program is free software: you can redistribute it and/or modify
+    it under the terms of the GNU General Public License as published by
+    the Free Software Foundation, either version 3 of the License, or
+    (at your option) any later version.
+
+    This program is distributed in the hope that it will be useful,
+    but WITHOUT ANY WARRANTY; without even the implied warranty of
+    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+    GNU General Public License for more details.
+
+    You should have received a copy of the GNU General Public License
+    along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package edu.unm.casaa.main;
+
+import edu.unm.casaa.utterance.Utterance;
+import javafx.beans.property.ReadOnlyDoubleProperty;
+import javafx.beans.property.ReadOnlyDoubleWrapper;
+
+import java.util.Collection;
+import java.util.HashMap;
+
+
+/**
+ * Summary scores kept current while a session is coded.
+ *
+ * Holds a count per code slot of the summary engine and the metric values for those counts.
+ * Each utterance added or removed changes one count and re-evaluates only the metrics
+ * depending on it, so the scores can be shown live without querying the session file.
+ *
+ * Updated by UtteranceList on the thread changing the list, which is the FX thread for
+ * coding, so properties may be bound to controls directly.
+ */
+public class LiveSummary {
+
+    private final SummaryEngine engine;
+    private final int[] counts;
+    private final double[] values;
+    private final ReadOnlyDoubleWrapper[] properties;
+
+
+    /**
+     * @param engine summary engine to evaluate
+     * @param utterances utterances already in the session
+     */
+    public LiveSummary(SummaryEngine engine, Collection<Utterance> utterances) {
+        this.engine = engine;
+        counts = new int[engine.getSlotCount()];
+        for (Utterance utr : utterances) {
+            int slot = engine.getSlot(utr.getMiscCode().name);
+            if( slot >= 0 ) {
+                counts[slot]++;
+            }
+        }
+
+        values = engine.evaluate(counts);
+        properties = new ReadOnlyDoubleWrapper[values.length];
+        for (int i = 0; i < values.length; i++) {
+            properties[i] = new ReadOnlyDoubleWrapper(this, engine.getMetrics().get(i).name, values[i]);
+        }
+    }
+
+
+    /**
+     * Count utterance
+     * @param utr utterance added to session
+     */
+    public void add(Utterance utr) {
+        change(utr, 1);
+    }
+
+
+    /**
+     * Stop counting utterance
+     * @param utr utterance removed from session
+     */
+    public void remove(Utterance utr) {
+        change(utr, -1);
+    }
+
+
+    /**
+     * @param metricName summary metric name, e.g. PCT_MIC
+     * @return live value of metric
+     * @throws IllegalArgumentException if the engine has no such metric
+     */
+    public ReadOnlyDoubleProperty getProperty(String metricName) {
+        int index = engine.getIndex(metricName);
+        if( index < 0 ) {
+            throw new IllegalArgumentException("Unknown summary metric: " + metricName);
+        }
+        return properties[index].getReadOnlyProperty();
+    }
+
+
+    /**
+     * @return current metric values, same content as SessionData.getCodeSummaryMap()
+     */
+    public HashMap<String, Double> toMap() {
+        return engine.toMap(values);
+    }
+
+
+    private void change(Utterance utr, int delta) {
+        int slot = engine.getSlot(utr.getMiscCode().name);
+        if( slot < 0 ) {
+            // code not used by any metric
+            return;
+        }
+
+        counts[slot] += delta;
+        for (int i : engine.update(counts, values, slot)) {
+            properties[i].set(values[i]);
+        }
+    }
+}
@@ -0,0 +1,765 @@
+/*
+This source code file is part of the CASAA Treatment Coding System Utility
+    Copyright (C) 2009  UNM CASAA
+
+    This program is free software: you can redistribute it and/or modify
+    it under the terms of the GNU General Public License as published by
+    the Free Software Foundation, either version 3 of the License, or
+    (at your option) any later version.
+
+    This program is distributed in the hope that it will be useful,
+    but WITHOUT ANY WARRANTY; without even the implied warranty of
+    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+    GNU General Public License for more details.
+
+    You should have received a copy of the GNU General Public License
+    along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package edu.unm.casaa.main;
+
+import edu.unm.casaa.globals.GlobalCode;
+import edu.unm.casaa.misc.MiscCode;
+import edu.unm.casaa.misc.MiscDataItem;
+import edu.unm.casaa.utterance.Utterance;
+import javafx.util.Duration;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileNotFoundException;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.EnumMap;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.SortedMap;
+import java.util.TreeMap;
+import java.util.zip.CRC32;
+
+
+/**
+ * Session stored as an append-only event log, the ".casaalog" file format.
+ *
+ * The whole session is kept in memory. Every change is one record appended to a memory-mapped
+ * file, so a code press costs a sequential write rather than a database page update and journal,
+ * which matters on slow USB and network drives.
+ *
+ * File layout: MAGIC, format version, then records of
+ * [int payload length][byte type][payload][int CRC32 of type and payload].
+ * The file grows in zero-filled chunks while open and is cut back to the end of the log on close;
+ * a zero length or the end of the file marks the end of the log. A record's length is written after
+ * the rest of it, so a record torn by a crash reads as the end of the log, and a record with a bad
+ * checksum ends the log as well. Opening such a log for writing cuts it back to its last good record,
+ * so new records cannot run on into older ones past the damage.
+ *
+ * Records that have been superseded, e.g. removed utterances or old rating values, are dropped by
+ * compaction, which writes a snapshot of the session to a temporary file and renames it over the
+ * log. Compaction runs on open, on close, and while coding once superseded records outnumber live ones.
+ *
+ * A store opened read-only replays the log without mapping it and never writes the file.
+ */
+final class LogSessionStore implements SessionStore {
+
+    static final String EXTENSION = ".casaalog";
+
+    private static final byte[] MAGIC = "CASAALOG".getBytes(StandardCharsets.US_ASCII);
+    private static final int FORMAT_VERSION = 1;
+    private static final int HEADER_SIZE = MAGIC.length + 4;
+    /* length, type and checksum */
+    private static final int RECORD_OVERHEAD = 4 + 1 + 4;
+    /* mapped region grows by this much */
+    private static final int CHUNK_SIZE = 1 << 20;
+    /* superseded records tolerated before compaction, on top of one per live record */
+    private static final int COMPACT_THRESHOLD = 4096;
+
+    /* record types */
+    private static final byte ATTRIBUTE = 1;
+    private static final byte CODE = 2;
+    private static final byte RATING = 3;
+    private static final byte RATING_VALUE = 4;
+    private static final byte UTTERANCE_ADD = 5;
+    private static final byte UTTERANCE_REMOVE = 6;
+    private static final byte ANNOTATE = 7;
+
+
+    /**
+     * Utterance as logged
+     */
+    private static final class LoggedUtterance {
+        final int codeID;
+        final double startMillis;
+        String annotation;
+        int[] ratingIDs = new int[0];
+
+        LoggedUtterance(int codeID, double startMillis, String annotation) {
+            this.codeID = codeID;
+            this.startMillis = startMillis;
+            this.annotation = (annotation == null) ? "" : annotation;
+        }
+    }
+
+
+    private final File file;
+
+    // session state, replayed from the log
+    private final EnumMap<SessionData.SessionAttributes, String> attributes = new EnumMap<>(SessionData.SessionAttributes.class);
+    private final LinkedHashMap<Integer, MiscCode> codes = new LinkedHashMap<>();
+    private final TreeMap<Integer, String> ratingNames = new TreeMap<>();
+    private final HashMap<Integer, Integer> ratingValues = new HashMap<>();
+    private final TreeMap<String, LoggedUtterance> utterances = new TreeMap<>();
+
+    private FileChannel channel;
+    private MappedByteBuffer buffer;
+    // offset of next record
+    private int end;
+    // records in the log, live or superseded
+    private int records;
+    private boolean closed = false;
+    private boolean readOnly = false;
+    // set when the log could not be replaced while mapped; compaction waits for the next open
+    private boolean compactionDeferred = false;
+    // replay stopped at a torn or damaged record rather than at the end of the log
+    private boolean damagedTail = false;
+
+
+    private LogSessionStore(File file) {
+        this.file = file;
+    }
+
+
+    /**
+     * @return true if file is named as a log session
+     */
+    static boolean accepts(File file) {
+        return file.getName().toLowerCase().endsWith(EXTENSION);
+    }
+
+
+    /**
+     * Open existing log, replaying it into memory
+     * @param file session file
+     * @return store for file
+     * @throws IOException
+     */
+    static LogSessionStore open(File file) throws IOException {
+        if( !file.canRead() ) {
+            throw new FileNotFoundException("File not found.");
+        }
+
+        LogSessionStore store = new LogSessionStore(file);
+        store.replay();
+        if( store.isCompactionDue() ) {
+            store.writeSnapshot();
+        } else if( store.damagedTail ) {
+            store.truncate();
+        }
+        store.map();
+        return store;
+    }
+
+
+    /**
+     * Open existing log for reading only. A damaged tail is skipped but left in the file.
+     * @param file session file
+     * @return store for file
+     * @throws IOException
+     */
+    static LogSessionStore openReadOnly(File file) throws IOException {
+        if( !file.canRead() ) {
+            throw new FileNotFoundException("File not found.");
+        }
+
+        LogSessionStore store = new LogSessionStore(file);
+        store.replay();
+        store.readOnly = true;
+        return store;
+    }
+
+
+    /**
+     * Create new log holding a snapshot of the initial session
+     * @param file session file, replaced if it exists
+     * @param audioFilePath audio file of session
+     * @param codes codes that may be used in the session
+     * @param ratings global ratings of the session, at their default rating
+     * @return store for file
+     * @throws IOException
+     */
+    static LogSessionStore create(File file, String audioFilePath, Collection<MiscCode> codes, Collection<GlobalCode> ratings) throws IOException {
+        LogSessionStore store = new LogSessionStore(file);
+        store.attributes.put(SessionData.SessionAttributes.AUDIO_FILE_PATH, audioFilePath);
+        store.attributes.put(SessionData.SessionAttributes.GLOBAL_NOTES, "");
+        for (MiscCode code : codes) {
+            store.codes.put(code.value, code);
+        }
+        for (GlobalCode rating : ratings) {
+            store.ratingNames.put(rating.id, rating.name);
+            store.ratingValues.put(rating.id, rating.defaultRating);
+        }
+        store.writeSnapshot();
+        store.map();
+        return store;
+    }
+
+
+    /**
+     * Read records from the start of the file up to the end of the log
+     */
+    private void replay() throws IOException {
+
+        ByteBuffer in;
+        try ( FileChannel readChannel = FileChannel.open(file.toPath(), StandardOpenOption.READ) ) {
+            long size = readChannel.size();
+            if( size > Integer.MAX_VALUE ) {
+                throw new FileFormatException("File is too large:\n" + file.getAbsolutePath());
+            }
+            in = ByteBuffer.allocate((int) size);
+            while (in.hasRemaining() && readChannel.read(in) >= 0) {
+                // read whole file
+            }
+            in.flip();
+        }
+
+        byte[] magic = new byte[MAGIC.length];
+        if( in.remaining() < HEADER_SIZE ) {
+            throw new FileFormatException("File is not correct format:\n" + file.getAbsolutePath());
+        }
+        in.get(magic);
+        int version = in.getInt();
+        if( !Arrays.equals(magic, MAGIC) || version != FORMAT_VERSION ) {
+            throw new FileFormatException("File is not correct format:\n" + file.getAbsolutePath());
+        }
+
+        CRC32 crc = new CRC32();
+        while (in.remaining() >= RECORD_OVERHEAD) {
+            int start = in.position();
+            int length = in.getInt();
+            if( length <= 0 || length > in.remaining() - 1 - 4 ) {
+                // end of log, or torn record
+                in.position(start);
+                break;
+            }
+
+            byte type = in.get();
+            ByteBuffer payload = in.slice(in.position(), length);
+            in.position(in.position() + length);
+
+            crc.reset();
+            crc.update(type);
+            crc.update(payload.duplicate());
+            if( (int) crc.getValue() != in.getInt() ) {
+                // damaged tail; keep what came before it
+                in.position(start);
+                break;
+            }
+
+            apply(type, payload);
+            records++;
+        }
+        end = in.position();
+
+        // anything but zero fill after the last good record is damage
+        while (in.hasRemaining()) {
+            if( in.get() != 0 ) {
+                damagedTail = true;
+                break;
+            }
+        }
+    }
+
+
+    /**
+     * Cut the file back to the end of the log, dropping a damaged tail
+     */
+    private void truncate() throws IOException {
+        System.err.println("Damaged log records dropped after offset " + end + ": " + file.getAbsolutePath());
+        try ( FileChannel out = FileChannel.open(file.toPath(), StandardOpenOption.WRITE) ) {
+            out.truncate(end);
+            out.force(true);
+        }
+        damagedTail = false;
+    }
+
+
+    /**
+     * Apply one record to the session state
+     */
+    private void apply(byte type, ByteBuffer payload) throws FileFormatException {
+        switch (type) {
+            case ATTRIBUTE: {
+                SessionData.SessionAttributes attribute = SessionData.SessionAttributes.valueOf(getString(payload));
+                attributes.put(attribute, getString(payload));
+                break;
+            }
+            case CODE: {
+                int id = payload.getInt();
+                String name = getString(payload);
+                codes.put(id, new MiscCode(id, name, MiscCode.Speaker.values()[payload.getInt()]));
+                break;
+            }
+            case RATING: {
+                int id = payload.getInt();
+                ratingNames.put(id, getString(payload));
+                ratingValues.put(id, payload.getInt());
+                break;
+            }
+            case RATING_VALUE: {
+                int id = payload.getInt();
+                ratingValues.put(id, payload.getInt());
+                break;
+            }
+            case UTTERANCE_ADD: {
+                String id = getString(payload);
+                int codeID = payload.getInt();
+                double startMillis = payload.getDouble();
+                utterances.put(id, new LoggedUtterance(codeID, startMillis, getString(payload)));
+                break;
+            }
+            case UTTERANCE_REMOVE:
+                utterances.remove(getString(payload));
+                break;
+            case ANNOTATE: {
+                LoggedUtterance entry = utterances.get(getString(payload));
+                String annotation = getString(payload);
+                int[] ratingIDs = new int[payload.getInt()];
+                for (int i = 0; i < ratingIDs.length; i++) {
+                    ratingIDs[i] = payload.getInt();
+                }
+                if( entry != null ) {
+                    entry.annotation = annotation;
+                    entry.ratingIDs = ratingIDs;
+                }
+                break;
+            }
+            default:
+                throw new FileFormatException("Unknown record type " + type + " in:\n" + file.getAbsolutePath());
+        }
+    }
+
+
+    /**
+     * Map the file for appending from the end of the log
+     */
+    private void map() throws IOException {
+        channel = FileChannel.open(file.toPath(), StandardOpenOption.READ, StandardOpenOption.WRITE);
+        buffer = channel.map(FileChannel.MapMode.READ_WRITE, 0, roundUp(end + 1));
+    }
+
+
+    private static long roundUp(long size) {
+        return (size + CHUNK_SIZE - 1) / CHUNK_SIZE * CHUNK_SIZE;
+    }
+
+
+    /**
+     * Append one record
+     */
+    private synchronized void append(byte type, byte[] payload) throws SQLException {
+        if( closed ) {
+            throw new SQLException("Session is closed: " + file.getAbsolutePath());
+        }
+        if( readOnly ) {
+            throw new SQLException("Session is open read-only");
+        }
+
+        try {
+            int size = RECORD_OVERHEAD + payload.length;
+            // keep a zero length after the record to mark the end
+            if( end + size + 4 > buffer.capacity() ) {
+                buffer = channel.map(FileChannel.MapMode.READ_WRITE, 0, roundUp(end + size + 4));
+            }
+            buffer.putInt(end + size, 0);
+
+            CRC32 crc = new CRC32();
+            crc.update(type);
+            crc.update(payload);
+
+            buffer.position(end + 4);
+            buffer.put(type);
+            buffer.put(payload);
+            buffer.putInt((int) crc.getValue());
+            // length last: until it is set the record reads as the end of the log
+            buffer.putInt(end, payload.length);
+            end += size;
+            records++;
+
+            if( isCompactionDue() ) {
+                compact();
+            }
+        } catch (IOException e) {
+            throw new SQLException(e.getMessage(), e);
+        }
+    }
+
+
+    /**
+     * @return true if superseded records outnumber live ones by more than the threshold
+     */
+    private boolean isCompactionDue() {
+        if( compactionDeferred || records < COMPACT_THRESHOLD ) {
+            return false;
+        }
+        return records - liveRecords() > liveRecords() + COMPACT_THRESHOLD;
+    }
+
+
+    /**
+     * @return number of records in a snapshot of the current state
+     */
+    private int liveRecords() {
+        int annotated = 0;
+        for (LoggedUtterance entry : utterances.values()) {
+            if( entry.ratingIDs.length > 0 ) {
+                annotated++;
+            }
+        }
+        return attributes.size() + codes.size() + ratingNames.size() + utterances.size() + annotated;
+    }
+
+
+    /**
+     * Replace the mapped log with a snapshot. If the log cannot be replaced while mapped, as on
+     * some platforms, appending continues on the old log and it is compacted when next opened.
+     */
+    private void compact() throws IOException {
+        buffer.force();
+        try {
+            writeSnapshot();
+        } catch (IOException e) {
+            System.err.println("Log compaction deferred: " + e.getMessage());
+            compactionDeferred = true;
+            return;
+        }
+        channel.close();
+        map();
+    }
+
+
+    /**
+     * Write current state to a temporary file and rename it over the log
+     */
+    private void writeSnapshot() throws IOException {
+
+        ArrayList<byte[]> snapshot = new ArrayList<>();
+        attributes.forEach((attribute, value) -> snapshot.add(record(ATTRIBUTE, attributePayload(attribute, value))));
+        codes.values().forEach(code -> snapshot.add(record(CODE, codePayload(code))));
+        ratingNames.forEach((id, name) -> snapshot.add(record(RATING, ratingPayload(id, name, ratingValues.get(id)))));
+        utterances.forEach((id, entry) -> snapshot.add(record(UTTERANCE_ADD, utterancePayload(id, entry.codeID, entry.startMillis, entry.annotation))));
+        utterances.forEach((id, entry) -> {
+            if( entry.ratingIDs.length > 0 ) {
+                snapshot.add(record(ANNOTATE, annotatePayload(id, entry.annotation, entry.ratingIDs)));
+            }
+        });
+
+        Path target = file.toPath().toAbsolutePath();
+        Path temp = target.resolveSibling(target.getFileName() + ".tmp");
+        int length = HEADER_SIZE;
+        try ( FileChannel out = FileChannel.open(temp, StandardOpenOption.CREATE, StandardOpenOption.TRUNCATE_EXISTING, StandardOpenOption.WRITE) ) {
+            ByteBuffer header = ByteBuffer.allocate(HEADER_SIZE);
+            header.put(MAGIC).putInt(FORMAT_VERSION).flip();
+            out.write(header);
+            for (byte[] record : snapshot) {
+                out.write(ByteBuffer.wrap(record));
+                length += record.length;
+            }
+            out.force(true);
+        }
+
+        try {
+            Files.move(temp, target, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        } catch (IOException e) {
+            Files.deleteIfExists(temp);
+            throw e;
+        }
+        end = length;
+        records = snapshot.size();
+    }
+
+
+    /**
+     * @return record as written to the log
+     */
+    private static byte[] record(byte type, byte[] payload) {
+        CRC32 crc = new CRC32();
+        crc.update(type);
+        crc.update(payload);
+        return ByteBuffer.allocate(RECORD_OVERHEAD + payload.length)
+                .putInt(payload.length).put(type).put(payload).putInt((int) crc.getValue())
+                .array();
+    }
+
+
+    /*
+     * Record payloads. Strings are written as an int byte count and UTF-8 bytes.
+     */
+
+    private static final class Payload extends DataOutputStream {
+        Payload() {
+            super(new ByteArrayOutputStream());
+        }
+
+        Payload string(String value) {
+            byte[] bytes = ((value == null) ? "" : value).getBytes(StandardCharsets.UTF_8);
+            try {
+                writeInt(bytes.length);
+                write(bytes);
+            } catch (IOException e) {
+                throw new IllegalStateException(e);
+            }
+            return this;
+        }
+
+        Payload integer(int value) {
+            try {
+                writeInt(value);
+            } catch (IOException e) {
+                throw new IllegalStateException(e);
+            }
+            return this;
+        }
+
+        Payload real(double value) {
+            try {
+                writeDouble(value);
+            } catch (IOException e) {
+                throw new IllegalStateException(e);
+            }
+            return this;
+        }
+
+        byte[] bytes() {
+            return ((ByteArrayOutputStream) out).toByteArray();
+        }
+    }
+
+
+    private static String getString(ByteBuffer payload) {
+        byte[] bytes = new byte[payload.getInt()];
+        payload.get(bytes);
+        return new String(bytes, StandardCharsets.UTF_8);
+    }
+
+
+    private static byte[] attributePayload(SessionData.SessionAttributes attribute, String value) {
+        return new Payload().string(attribute.name()).string(value).bytes();
+    }
+
+    private static byte[] codePayload(MiscCode code) {
+        return new Payload().integer(code.value).string(code.name).integer(code.getSpeaker().ordinal()).bytes();
+    }
+
+    private static byte[] ratingPayload(int id, String name, int value) {
+        return new Payload().integer(id).string(name).integer(value).bytes();
+    }
+
+    private static byte[] utterancePayload(String id, int codeID, double startMillis, String annotation) {
+        return new Payload().string(id).integer(codeID).real(startMillis).string(annotation).bytes();
+    }
+
+    private static byte[] annotatePayload(String id, String annotation, int[] ratingIDs) {
+        Payload payload = new Payload().string(id).string(annotation).integer(ratingIDs.length);
+        for (int ratingID : ratingIDs) {
+            payload.integer(ratingID);
+        }
+        return payload.bytes();
+    }
+
+
+
+    @Override
+    public synchronized String getAttribute(SessionData.SessionAttributes attribute) {
+        return attributes.getOrDefault(attribute, "");
+    }
+
+
+    @Override
+    public synchronized void setAttribute(SessionData.SessionAttributes attribute, String value) throws SQLException {
+        attributes.put(attribute, (value == null) ? "" : value);
+        append(ATTRIBUTE, attributePayload(attribute, value));
+    }
+
+
+    @Override
+    public synchronized List<MiscCode> loadCodes() {
+        return new ArrayList<>(codes.values());
+    }
+
+
+    @Override
+    public synchronized SortedMap<String, Utterance> loadUtterances() {
+        SortedMap<String, Utterance> utteranceTreeMap = new TreeMap<>();
+        utterances.forEach((id, entry) -> {
+            MiscCode code = codes.get(entry.codeID);
+            // as in the database, utterances need a known code
+            if( code != null ) {
+                MiscDataItem item = new MiscDataItem(id, Duration.millis(entry.startMillis));
+                item.setMiscCode(new MiscCode(code.value, code.name, code.getSpeaker()));
+                item.setAnnotation(entry.annotation);
+                item.setRatingIDs(entry.ratingIDs);
+                utteranceTreeMap.put(id, item);
+            }
+        });
+        return utteranceTreeMap;
+    }
+
+
+    @Override
+    public synchronized void forEachUtterance(UtteranceVisitor visitor) {
+        StringBuilder timeMarker = new StringBuilder(10);
+        utterances.forEach((id, entry) -> {
+            MiscCode code = codes.get(entry.codeID);
+            if( code != null ) {
+                timeMarker.setLength(0);
+                visitor.visit(id, Utils.formatMillis(entry.startMillis, timeMarker).toString(), code.name, entry.annotation);
+            }
+        });
+    }
+
+
+    @Override
+    public synchronized void loadRatings(HashMap<Integer, Integer> values, HashMap<Integer, String> names) {
+        values.putAll(ratingValues);
+        names.putAll(ratingNames);
+    }
+
+
+    @Override
+    public synchronized HashMap<String, Integer> getCodeCounts() {
+        HashMap<String, Integer> mapCodeCount = new HashMap<>();
+        for (LoggedUtterance entry : utterances.values()) {
+            MiscCode code = codes.get(entry.codeID);
+            if( code != null ) {
+                mapCodeCount.merge(code.name, 1, Integer::sum);
+            }
+        }
+        return mapCodeCount;
+    }
+
+
+    @Override
+    public synchronized void addUtterance(String utteranceID, int codeID, Duration startTime, String annotation) throws SQLException {
+        utterances.put(utteranceID, new LoggedUtterance(codeID, startTime.toMillis(), annotation));
+        append(UTTERANCE_ADD, utterancePayload(utteranceID, codeID, startTime.toMillis(), annotation));
+    }
+
+
+    @Override
+    public synchronized void addUtterances(List<Utterance> list) throws SQLException {
+        for (Utterance utr : list) {
+            addUtterance(utr.getID(), utr.getMiscCode().value, utr.getStartTime(), utr.getAnnotation());
+        }
+    }
+
+
+    @Override
+    public synchronized void removeUtterance(String utteranceID) throws SQLException {
+        utterances.remove(utteranceID);
+        append(UTTERANCE_REMOVE, new Payload().string(utteranceID).bytes());
+    }
+
+
+    @Override
+    public synchronized void annotateUtterance(String utteranceID, String annotation, int[] ratingIDs) throws SQLException {
+        LoggedUtterance entry = utterances.get(utteranceID);
+        if( entry != null ) {
+            entry.annotation = (annotation == null) ? "" : annotation;
+            entry.ratingIDs = ratingIDs.clone();
+        }
+        append(ANNOTATE, annotatePayload(utteranceID, annotation, ratingIDs));
+    }
+
+
+    @Override
+    public synchronized void addRating(String ratingName, int value) throws SQLException {
+        for (Map.Entry<Integer, String> rating : ratingNames.entrySet()) {
+            if( rating.getValue().equals(ratingName) ) {
+                setRatingValue(rating.getKey(), value);
+                return;
+            }
+        }
+
+        int id = ratingNames.isEmpty() ? 1 : ratingNames.lastKey() + 1;
+        ratingNames.put(id, ratingName);
+        ratingValues.put(id, value);
+        append(RATING, ratingPayload(id, ratingName, value));
+    }
+
+
+    @Override
+    public synchronized void setRatingValue(int ratingID, int value) throws SQLException {
+        // as in the database, values of unknown ratings are not kept
+        if( ratingNames.containsKey(ratingID) ) {
+            ratingValues.put(ratingID, value);
+            append(RATING_VALUE, new Payload().integer(ratingID).integer(value).bytes());
+        }
+    }
+
+
+    /**
+     * Force appended records to the file
+     */
+    @Override
+    public synchronized void flush() throws SQLException {
+        if( !closed && !readOnly ) {
+            buffer.force();
+        }
+    }
+
+
+    /**
+     * Appends are done when methods return, so there are never pending writes to report
+     */
+    @Override
+    public void setWriteListener(SessionWriteQueue.Listener listener) {
+    }
+
+
+    @Override
+    public synchronized void close() throws SQLException {
+        if( closed ) {
+            return;
+        }
+        closed = true;
+        if( readOnly ) {
+            return;
+        }
+
+        try {
+            buffer.force();
+            try {
+                // drop the zero fill past the end of the log
+                channel.truncate(end);
+            } catch (IOException e) {
+                // some platforms cannot shrink a mapped file; the zero fill still reads as the end
+            }
+            channel.close();
+        } catch (IOException e) {
+            throw new SQLException(e.getMessage(), e);
+        } finally {
+            buffer = null;
+        }
+
+        if( records > liveRecords() ) {
+            try {
+                writeSnapshot();
+            } catch (IOException e) {
+                // log is complete as it is
+                System.err.println("Log compaction deferred: " + e.getMessage());
+            }
+        }
+    }
+}
@@ -117,6 +117,9 @@ public class Main extends Application {
         // save current volume preference
         appPrefs.putDouble("player.volume",mainController.sldVolume.getValue());
 
+        // release session file
+        mainController.closeSession();
+
     }
 
     public static void main(String[] args) { launch(args); }
@@ -22,11 +22,12 @@ import edu.unm.casaa.globals.GlobalCode;
 import edu.unm.casaa.misc.MiscCode;
 import edu.unm.casaa.misc.MiscDataItem;
 import edu.unm.casaa.utterance.Utterance;
-import javafx.animation.Animation;
 import javafx.application.Application;
 import javafx.application.Platform;
+import javafx.beans.binding.Bindings;
 import javafx.beans.value.ObservableValue;
 import javafx.collections.ObservableList;
+import javafx.concurrent.Task;
 import javafx.event.ActionEvent;
 import javafx.event.EventHandler;
 import javafx.fxml.FXML;
@@ -55,18 +56,14 @@ import javafx.scene.text.Text;
 import javafx.scene.transform.Scale;
 import javafx.stage.*;
 import javafx.util.Duration;
-import org.w3c.dom.Document;
-import org.w3c.dom.NamedNodeMap;
-import org.w3c.dom.NodeList;
-import org.xml.sax.SAXParseException;
 
-import javax.xml.parsers.DocumentBuilder;
-import javax.xml.parsers.DocumentBuilderFactory;
 import java.beans.PropertyChangeEvent;
 import java.io.File;
 import java.io.IOException;
 import java.sql.SQLException;
 import java.util.*;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
 import java.util.prefs.Preferences;
 
 import static java.lang.String.format;
@@ -75,9 +72,11 @@ public class MainController {
 
     // SESSION REPORT
     @FXML
-    private VBox vbxRptScore_global_ratings;
+    private ListView<SessionData.ReportRow> lvRptGlobalRatings;
     @FXML
-    private VBox vbxAllUtteranceList;
+    private ListView<SessionData.ReportRow> lvRptAllUtterances;
+    @FXML
+    private Label lblRptGlobalNotes;
     @FXML
     private ScrollPane pnReportScrollPane;
     @FXML
@@ -154,6 +153,8 @@ public class MainController {
     @FXML
     private Label lblAudioFilename;
     @FXML
+    private Label lblUnsaved;                           // shown while session writes are pending
+    @FXML
     private Button btnPlayPause;
     @FXML
     private Button btnReplay;
@@ -178,6 +179,12 @@ public class MainController {
     @FXML
     private MenuItem mniReportView;
     @FXML
+    private CheckMenuItem mniSettingsPerfSchema;
+    @FXML
+    private ToggleGroup tgPageSize;
+    @FXML
+    private CheckMenuItem mniSettingsCanvasTimeLine;
+    @FXML
     private MediaPlayer mediaPlayer;
     @FXML
     private Label lblDuration;
@@ -212,6 +219,8 @@ public class MainController {
     private Label lblCurUtrEndTime;
     @FXML
     private Label lblPrevUtr;
+    @FXML
+    private Label lblLiveSummary;
 
 
     // GLOBALS_CODING
@@ -236,15 +245,15 @@ public class MainController {
 
 
     private Preferences appPrefs;                       // User prefs persistence
+    // listeners living as long as the media player, and as long as the gui state
+    private final PlaybackBindings playerBindings = new PlaybackBindings("player");
+    private final PlaybackBindings stateBindings = new PlaybackBindings("state");
+    private PlaybackPosition playbackPosition = null;   // position label and seek slider updates
     private Duration totalDuration;                     // duration of active media
     private String filenameAudio         = null;        // name of active media file. Used when switching from PLAYBACK to MISC to GLOBALS
     private File currentAudioFile        = null;        // active media file
     private SessionData sessionData      = null;        // session persistence
 
-    public void setVbxRptScore_global_ratings(VBox vbxRptScore_global_ratings) {
-        this.vbxRptScore_global_ratings = vbxRptScore_global_ratings;
-    }
-
     private enum  GuiState {                            // available gui states
         PLAYBACK, MISC_CODING, GLOBAL_CODING, REPORT
     }
@@ -252,7 +261,20 @@ public class MainController {
 
     private TimeLine timeLine;
 
-    private Boolean isKeyFilterSet       = Boolean.FALSE; //
+    // views of gui states, built once per user config and kept while detached
+    private final EnumMap<GuiState, Parent> stateViews = new EnumMap<>(GuiState.class);
+    // rating controls of the GLOBAL_CODING view, one toggle group per global code
+    private final ArrayList<ToggleGroup> globalToggleGroups = new ArrayList<>();
+    private boolean rebindingGlobals = false;           // true while rating controls are set from session data
+    private Image reportPlayIcon = null;                // shared by report rows
+    // makes report rows off the FX thread
+    private final ExecutorService reportRunner = Executors.newSingleThreadExecutor(r -> {
+        Thread t = new Thread(r, "report");
+        t.setDaemon(true);
+        return t;
+    });
+
+    private Boolean isKeyFilterSet      = Boolean.FALSE; //
 
 
 
@@ -270,6 +292,14 @@ public class MainController {
         // initialize app persistence
         appPrefs = Preferences.userNodeForPackage(Main.class);
 
+        // session file format settings
+        SessionData.setPerformanceSchema(appPrefs.getBoolean("session.perfSchema", false));
+        try {
+            SessionData.setPageSize(appPrefs.getInt("session.pageSize", SessionData.DEFAULT_PAGE_SIZE));
+        } catch (IllegalArgumentException e) {
+            appPrefs.remove("session.pageSize");
+        }
+
         // default startup state
         setGuiState(GuiState.PLAYBACK);
 
@@ -304,6 +334,20 @@ public class MainController {
                 menuBar.setUseSystemMenuBar(true);
             }
         }
+
+        // reflect session file settings in Settings menu
+        if( mniSettingsPerfSchema != null ) {
+            mniSettingsPerfSchema.setSelected(SessionData.isPerformanceSchema());
+        }
+        if( mniSettingsCanvasTimeLine != null ) {
+            mniSettingsCanvasTimeLine.setSelected(appPrefs.getBoolean("timeline.canvas", false));
+        }
+        if( tgPageSize != null ) {
+            for (Toggle toggle : tgPageSize.getToggles()) {
+                RadioMenuItem item = (RadioMenuItem) toggle;
+                item.setSelected(item.getText().equals(String.valueOf(SessionData.getPageSize())));
+            }
+        }
     }
 
 
@@ -351,20 +395,81 @@ public class MainController {
     /**
      * Play utterance on mediaplayer starting one second
      * ahead of utterance start time
-     * @param mouseEvent
+     * @param startTime utterance start time
      */
-    private void actPlayAtUtterance(MouseEvent mouseEvent) {
-        Label label = (Label) mouseEvent.getSource();
-        // get start time
-        Duration pos = (Duration) label.getUserData();
+    private void playAtUtterance(Duration startTime) {
         // Position one second before start of utterance.
-        setMediaPlayerPosition( pos.subtract(Duration.ONE) );
+        setMediaPlayerPosition( startTime.subtract(Duration.ONE) );
         // start media play
         mediaPlayer.play();
     }
 
 
 
+    /**
+     * @return play icon shown on report utterance rows, loaded once
+     */
+    private Image getReportPlayIcon() {
+        if( reportPlayIcon == null ) {
+            reportPlayIcon = new Image(Main.class.getResourceAsStream("media/btn_play.png"));
+        }
+        return reportPlayIcon;
+    }
+
+
+
+    /**
+     * Row of a report list. Rating headings are underlined; utterances play from their start time when clicked.
+     */
+    private class ReportRowCell extends ListCell<SessionData.ReportRow> {
+
+        private final ImageView imageViewPlay = new ImageView(getReportPlayIcon());
+
+        ReportRowCell() {
+            imageViewPlay.setFitWidth(16);
+            imageViewPlay.setPreserveRatio(true);
+            imageViewPlay.setSmooth(true);
+            imageViewPlay.setCache(true);
+
+            setOnMouseClicked(mouseEvent -> {
+                SessionData.ReportRow row = getItem();
+                if( row != null && !row.isRatingHeading() ) {
+                    playAtUtterance(row.startTime);
+                }
+            });
+        }
+
+        @Override
+        protected void updateItem(SessionData.ReportRow row, boolean empty) {
+            super.updateItem(row, empty);
+
+            if( empty ) {
+                setText(null);
+                setGraphic(null);
+                setUnderline(false);
+                setCursor(Cursor.DEFAULT);
+            } else if( row == null ) {
+                // page still being fetched
+                setText("...");
+                setGraphic(null);
+                setUnderline(false);
+                setCursor(Cursor.DEFAULT);
+            } else if( row.isRatingHeading() ) {
+                setText(String.format("%s [Score:%d]", row.ratingName, row.ratingValue));
+                setGraphic(null);
+                setUnderline(true);
+                setCursor(Cursor.DEFAULT);
+            } else {
+                setText(String.format("%s : %s : %s", Utils.formatDuration(row.startTime), row.codeName, row.annotation.replace("\n", "; ")));
+                setGraphic(imageViewPlay);
+                setUnderline(false);
+                setCursor(Cursor.HAND);
+            }
+        }
+    }
+
+
+
     /**
      * move player to time of last utterance
      */
@@ -462,6 +567,44 @@ public class MainController {
 
 
 
+    /**********************************************************************
+     * menu selection event: Settings::Performance Session Files
+     *
+     * Applies to sessions started or resumed from now on. Existing files
+     * are upgraded when they are next opened.
+     **********************************************************************/
+    public void mniActSettingsPerfSchema() {
+        SessionData.setPerformanceSchema(mniSettingsPerfSchema.isSelected());
+        appPrefs.putBoolean("session.perfSchema", mniSettingsPerfSchema.isSelected());
+    }
+
+
+
+    /**********************************************************************
+     * menu selection event: Settings::Lightweight Timeline
+     *
+     * Draw timeline markers on a canvas instead of one node per marker.
+     * Applies to the timeline of the next session started or resumed.
+     **********************************************************************/
+    public void mniActSettingsCanvasTimeLine() {
+        appPrefs.putBoolean("timeline.canvas", mniSettingsCanvasTimeLine.isSelected());
+    }
+
+
+
+    /**********************************************************************
+     * menu selection event: Settings::Session File Page Size
+     * Page size used for new performance schema files.
+     * @param actionEvent selected page size item
+     **********************************************************************/
+    public void mniActSettingsPageSize(ActionEvent actionEvent) {
+        int bytes = Integer.parseInt(((RadioMenuItem) actionEvent.getSource()).getText());
+        SessionData.setPageSize(bytes);
+        appPrefs.putInt("session.pageSize", bytes);
+    }
+
+
+
     /**********************************************************************
      * menu selection event: Settings::Keyboard Shortcuts
      *
@@ -617,6 +760,9 @@ public class MainController {
          */
         menuBar.requestFocus();
 
+        // make sure coding queued for the session file is written before leaving
+        flushSession();
+
         /* Application exit */
         Platform.exit();
     }
@@ -689,7 +835,7 @@ public class MainController {
 
             try {
                 // if audio file exists proceed to initialize session data
-                sessionData = new SessionData(miscFile, audioFile);
+                setSessionData(new SessionData(miscFile, audioFile));
             } catch(IOException e) {
                 showError("Error reading casaa file", e.getMessage());
             }
@@ -873,132 +1019,6 @@ public class MainController {
     }
 
 
-    /**
-     * Display summary report of session
-     */
-    public void reportView() {
-
-        // TODO: delete this function once all of what is needed has been added to initalizecontrols function
-
-        // this something be playing, stop it
-        if(mediaPlayer != null) {
-            mediaPlayer.pause();
-        }
-
-        if(sessionData != null) {
-
-            Locale locale = new Locale("en", "US");
-            ResourceBundle resourceStrings = ResourceBundle.getBundle("strings", locale);
-
-            Stage report = new Stage();
-
-            Parent root = null;
-            FXMLLoader fxmlLoader = new FXMLLoader(getClass().getResource("Report.fxml"), resourceStrings);
-            // set loader so i have access to instance variables
-            fxmlLoader.setController(this);
-            try {
-                root = fxmlLoader.load();
-            } catch (Exception e){
-                showError("About: fxml Error in About ", format("%s\n", e.toString()));
-            }
-            assert root != null;
-            Scene scene = new Scene(root);
-            scene.setFill(Color.TRANSPARENT);
-            report.setScene(scene);
-
-
-            //report.setTitle(resourceStrings.getString("txt.about.title"));
-            report.setTitle("Therapist Feedback");
-            report.getIcons().add(new Image(Main.class.getResourceAsStream("media/windows.iconset/icon_32x32.png")));
-            report.initModality(Modality.APPLICATION_MODAL);
-            report.initStyle(StageStyle.DECORATED);
-
-            // don't let dialog get too big on smaller screens
-            report.setY(0.0);
-            report.setMaxHeight(Screen.getPrimary().getVisualBounds().getHeight());
-
-            // global ratings section
-            ArrayList< TreeMap< String, String> > records = null;
-            String notes = null;
-
-            /* get the session summary scores and global ratings */
-            HashMap<String, Double> mapCodeSummary = null;
-            try {
-                // get counts
-                mapCodeSummary = sessionData.getCodeSummaryMap();
-                records = sessionData.getGlobalUtterances();
-                notes = sessionData.getAttribute(SessionData.SessionAttributes.GLOBAL_NOTES);
-            } catch (SQLException e) {
-                System.out.println(e.getMessage());
-            }
-
-            // report label is session label
-            lblSessionID.setText(sessionData.getSessionLabel());
-
-            // global rating insert
-            String current_rating_id = "";
-            for(TreeMap< String, String>  row : records) {
-
-                if(!row.get("rating_id").equals(current_rating_id)) {
-                    current_rating_id = row.get("rating_id");
-                    Text txtRating = new Text(String.format("\n%s [Score:%s]\n", row.get("rating_name"), row.get("rating_value")));
-                    txtRating.setUnderline(true);
-                    vbxRptScore_global_ratings.getChildren().add(txtRating);
-                }
-
-                // check if there are utterances to list
-                if( row.get("time_marker") != null ) {
-                    Text txtUtterance = new Text(String.format("- %s : %s : %s\n", row.get("time_marker"), row.get("code_name"), row.get("annotation").replace("\n", "; ")));
-                    vbxRptScore_global_ratings.getChildren().add(txtUtterance);
-                }
-            }
-
-            Text txtNotes = new Text( String.format("\n\nNotes:\n%s\n\n", notes) );
-            vbxRptScore_global_ratings.getChildren().add(txtNotes);
-
-            /* attach/format summary scores to report */
-            // integers: "%.0f"
-            // doubles: "%.2f"
-            rptScore_mico.setText(String.format("%.0f",mapCodeSummary.get("SUM_MICO")));
-            rptScore_miin.setText(String.format("%.0f",mapCodeSummary.get("SUM_MIIN")));
-            rptScore_pmic.setText(String.format("%.1f%%",mapCodeSummary.get("PCT_MIC")));
-            rptScore_r2q.setText(String.format("%.2f",mapCodeSummary.get("RATIO_R2Q")));
-            rptScore_poq.setText(String.format("%.1f%%",mapCodeSummary.get("PCT_POQ")));
-            rptScore_pcr.setText(String.format("%.1f%%",mapCodeSummary.get("PCT_PCR")));
-            rptScore_ther2cli.setText(String.format("%.2f",mapCodeSummary.get("RATIO_THER2CLI")));
-            rptScore_pct.setText(String.format("%.1f%%",mapCodeSummary.get("PCT")));
-            rptScore_adp.setText(String.format("%.0f",mapCodeSummary.get("SUM_ADP")));
-            rptScore_adw.setText(String.format("%.0f",mapCodeSummary.get("SUM_ADW")));
-            rptScore_af.setText(String.format("%.0f",mapCodeSummary.get("SUM_AF")));
-            rptScore_co.setText(String.format("%.0f",mapCodeSummary.get("SUM_CO")));
-            rptScore_di.setText(String.format("%.0f",mapCodeSummary.get("SUM_DI")));
-            rptScore_ec.setText(String.format("%.0f",mapCodeSummary.get("SUM_EC")));
-            rptScore_gi.setText(String.format("%.0f",mapCodeSummary.get("SUM_GI")));
-            rptScore_open.setText(String.format("%.0f",mapCodeSummary.get("SUM_OQ")));
-            rptScore_closed.setText(String.format("%.0f",mapCodeSummary.get("SUM_CQ")));
-            rptScore_rcp.setText(String.format("%.0f",mapCodeSummary.get("SUM_RCP")));
-            rptScore_rcw.setText(String.format("%.0f",mapCodeSummary.get("SUM_RCW")));
-            rptScore_simple.setText(String.format("%.0f",mapCodeSummary.get("SUM_SIMPLE")));
-            rptScore_complex.setText(String.format("%.0f",mapCodeSummary.get("SUM_CR")));
-            rptScore_refct.setText(String.format("%.0f",mapCodeSummary.get("SUM_REF_CT")));
-            rptScore_refst.setText(String.format("%.0f",mapCodeSummary.get("SUM_REF_ST")));
-            rptScore_st.setText(String.format("%.0f",mapCodeSummary.get("SUM_ST")));
-            rptScore_rf.setText(String.format("%.0f",mapCodeSummary.get("SUM_RF")));
-            rptScore_su.setText(String.format("%.0f",mapCodeSummary.get("SUM_SU")));
-            rptScore_wa.setText(String.format("%.0f",mapCodeSummary.get("SUM_WA")));
-            rptScore_change.setText(String.format("%.0f",mapCodeSummary.get("SUM_CHANGE")));
-            rptScore_sustain.setText(String.format("%.0f",mapCodeSummary.get("SUM_SUSTAIN")));
-
-            //root.applyCss();
-            //root.layout();
-            //root.autosize();
-
-            report.showAndWait();
-        }
-    }
-
-
-
     /**********************************************************************
      * sldSeek mouse event:
      * change seek time when user clicks on slid bar instead of dragging the controller
@@ -1057,6 +1077,8 @@ public class MainController {
         // set code file chooser
         FileChooser fc = new FileChooser();
         fc.getExtensionFilters().add(new FileChooser.ExtensionFilter("CASAA files", "*.casaa"));
+        // append-only log, for slow drives
+        fc.getExtensionFilters().add(new FileChooser.ExtensionFilter("CASAA log files", "*" + LogSessionStore.EXTENSION));
 
         // set initial directory to preferences or users home directory
         File initDir = new File(appPrefs.get("lastCasaaPath", System.getProperty("user.home")));
@@ -1210,21 +1232,14 @@ public class MainController {
 
             // TODO: clean up and comment Main.css !
 
-            // TODO: rating ids are bypassing data model for utterance MiscDataItem.
             /* get data */
             String utterance_id = pcEvt.getNewValue().toString();
 
             // get utterance from utterance map
             Utterance utterance = sessionData.utteranceList.get(utterance_id);
 
-            /* linked globals list */
-            ArrayList<Integer> selectedRatingIDs = null;
-            try {
-                // get the rating ids separately for this utterance
-                selectedRatingIDs = sessionData.getUtteranceRatingIDs(utterance_id);
-            } catch ( SQLException e) {
-                showError("Error Annotation", e.getMessage());
-            }
+            /* linked globals list, loaded with the session */
+            int[] selectedRatingIDs = utterance.getRatingIDs();
 
             /* open editor */
             Dialog<ButtonType> dlgUtteranceEditor = new Dialog<>();
@@ -1245,8 +1260,7 @@ public class MainController {
             scene.setFill(Color.TRANSPARENT);
 
             /* position popup window using marker location */
-            TimeLine.TimeLineMarker markerNode = timeLine.getTimeLineMarker(utterance_id);
-            Point2D markerNodePoint = markerNode.localToScreen(new Point2D(markerNode.getLayoutBounds().getMaxX(), markerNode.getLayoutBounds().getMinY()));
+            Point2D markerNodePoint = timeLine.getMarkerScreenPoint(utterance_id);
 
             /* check that pop-up doesn't go offscreen */
             if( (markerNodePoint.getX() + dlgUtteranceEditor.getDialogPane().getWidth()) > Screen.getPrimary().getVisualBounds().getWidth() ) {
@@ -1276,7 +1290,7 @@ public class MainController {
             while(globalCodeListIterator.hasNext()) {
                 GlobalCode rating = globalCodeListIterator.next();
                 dlgListView.getItems().add(rating);
-                if( selectedRatingIDs.contains(rating.id) ) {
+                if( Arrays.binarySearch(selectedRatingIDs, rating.id) >= 0 ) {
                     dlgListView.getSelectionModel().select(rating);
                 }
 
@@ -1318,7 +1332,7 @@ public class MainController {
                     sessionData.annotateUtterance(utterance_id, extTa.getText(), globalCodeList);
                     // update tooltip for immediate gratification
                     //markerNode.setAnnotationToolTipText(extTa.getText());
-                    markerNode.setAnnotationToolTipText();
+                    timeLine.refreshMarker(utterance_id);
                 } catch (SQLException e) {
                     showError("Error Annotating Utterance", e.getMessage());
                 }
@@ -1329,9 +1343,8 @@ public class MainController {
                 this is a bit broken since we aren't communicating through the timeline while annotating the utterance
                 but the timeline only has a map which only has add/remove events.
              */
-            timeLine.setSelectedMarker(null);
             // make sure the marker is no longer selected on timeline
-            markerNode.selected(false);
+            timeLine.clearSelection();
         }
     }
 
@@ -1410,6 +1423,70 @@ public class MainController {
 
 
 
+    /**
+     * Replace the current session, releasing the previous session file
+     * @param newSessionData session to make current, may be null
+     */
+    private void setSessionData( SessionData newSessionData ) {
+        closeSession();
+        sessionData = newSessionData;
+        if( sessionData != null ) {
+            sessionData.setWriteListener(sessionWriteListener);
+        }
+    }
+
+
+
+    /**
+     * Session writes are committed in the background.
+     * Show pending state and report failures on the application thread.
+     */
+    private final SessionWriteQueue.Listener sessionWriteListener = new SessionWriteQueue.Listener() {
+        @Override
+        public void pendingWritesChanged(int pending) {
+            Platform.runLater(() -> lblUnsaved.setVisible(pending > 0));
+        }
+
+        @Override
+        public void writeFailed(SQLException e) {
+            Platform.runLater(() -> showError("Error saving casaa file", e.getMessage()));
+        }
+    };
+
+
+
+    /**
+     * Wait for queued session writes to reach the session file
+     */
+    private void flushSession() {
+        if( sessionData != null ) {
+            try {
+                sessionData.flush();
+            } catch (SQLException e) {
+                showError("Error saving casaa file", e.getMessage());
+            }
+        }
+    }
+
+
+
+    /**
+     * Release the current session file.
+     * Called when a session is replaced and on application stop.
+     */
+    public void closeSession() {
+        if( sessionData != null ) {
+            try {
+                sessionData.close();
+            } catch (SQLException e) {
+                showError("Error closing casaa file", e.getMessage());
+            }
+            sessionData = null;
+        }
+    }
+
+
+
     /**
      * Break out code to resume MISC coding state
      */
@@ -1417,10 +1494,15 @@ public class MainController {
 
         // load session data
         try {
-            sessionData = new SessionData(sessionFile);
+            setSessionData(new SessionData(sessionFile));
         } catch(FileFormatException e) {
+            // only text files named .casaa are of the previous format
+            if( LogSessionStore.accepts(sessionFile) ) {
+                showError("Error Loading Casaa File", e.getMessage());
+                return;
+            }
             try {
-                sessionData = getSessionFilePreviousFileFormat(sessionFile);
+                setSessionData(getSessionFilePreviousFileFormat(sessionFile));
                 if(sessionData == null)
                     return;
             } catch(IOException ioe) {
@@ -1500,7 +1582,7 @@ public class MainController {
         apMediaCtrls.setDisable(false);
 
         // bind the volume slider to the mediaplayer volume
-        mediaPlayer.volumeProperty().bind(sldVolume.valueProperty());
+        playerBindings.bind(mediaPlayer.volumeProperty(), sldVolume.valueProperty());
         // bind display playback volume label with volume slider id
         lblVolume.textProperty().bind(sldVolume.valueProperty().asString("%.1f"));
         // bind display playback rate with rate slider id
@@ -1511,6 +1593,15 @@ public class MainController {
         // duration label
         lblDuration.setText(Utils.formatDuration(totalDuration));
 
+        // position label and seek slider follow playback
+        playbackPosition = new PlaybackPosition(mediaPlayer, totalDuration, lblTimePos, sldSeek);
+        playbackPosition.attach(playerBindings);
+
+        /* Listener: Update the media position if user is dragging the slider.
+         * See sldSeekMousePressed() for when slider is clicked with mouse
+         */
+        playerBindings.listen(playbackPosition.userSeekProperty(), (observable, oldValue, newValue) -> setMediaPlayerPosition(newValue));
+
         // this also initializes status so that display updates happen correctly at outset
         mediaPlayer.play();
         mediaPlayer.pause();
@@ -1536,6 +1627,8 @@ public class MainController {
         if (mediaFile != null) {
             try {
                 final Media media = new Media(mediaFile.toURI().toString());
+                // listeners of any previous player go with it
+                releaseMediaPlayer();
                 mediaPlayer = new MediaPlayer(media);
 
                 /* Status Handler: OnReady */
@@ -1579,7 +1672,7 @@ public class MainController {
                         option 2: pause at end so user can doing coding in timeline as needed
                      */
                     if(timeLine != null) {
-                        timeLine.getAnimation().pause();
+                        timeLine.pause();
                     }
                     mediaPlayer.pause();
                     // assumes OnPlay has overlayed style class so just remove that to expose pause class
@@ -1588,32 +1681,8 @@ public class MainController {
 
 
 
-                /* Listener: Update the media position if user is dragging the slider.
-                 * Otherwise, do nothing. See sldSeekMousePressed() for when slider is clicked with mouse
-                 * Seems odd to bind to valueProperty and check isValueChanging
-                 * but when i use "valueChangingProperty" this performance is
-                 * not as smooth
-                 */
-                sldSeek.valueProperty().addListener((ObservableValue<? extends Number> observable, Number oldValue, Number newValue) -> {
-                    /*
-                        if dragging slider, update media position
-                     */
-                    if(sldSeek.isValueChanging()) {
-                        // multiply duration by percentage calculated by slider position
-                        //mediaPlayer.seek(totalDuration.multiply(newValue.doubleValue()));
-                        setMediaPlayerPosition(totalDuration.multiply(newValue.doubleValue()));
-                    }
-                });
-
-
                 /* if dragging slider, update media playback rate */
-                sldRate.valueProperty().addListener((ObservableValue<? extends Number> observable, Number oldValue, Number newValue) -> {
-                    if (sldRate.isValueChanging()) {
-                        mediaPlayer.setRate(newValue.doubleValue());
-                    }
-                });
-
-                sldRate.valueProperty().addListener((ObservableValue<? extends Number> observable, Number oldValue, Number newValue) -> {
+                playerBindings.listen(sldRate.valueProperty(), (ObservableValue<? extends Number> observable, Number oldValue, Number newValue) -> {
                     if (sldRate.isValueChanging()) {
                         mediaPlayer.setRate(newValue.doubleValue());
                     }
@@ -1635,6 +1704,22 @@ public class MainController {
 
 
 
+    /**
+     * Detach everything listening to the current media player and dispose it
+     */
+    private void releaseMediaPlayer() {
+        stateBindings.detach();
+        playerBindings.detach();
+        if (mediaPlayer != null) {
+            // dispose without stop(); status handlers would run against the next player
+            mediaPlayer.dispose();
+            mediaPlayer = null;
+        }
+    }
+
+
+
+
     /**
      * Timeline setup
      */
@@ -1653,7 +1738,13 @@ public class MainController {
         /*
           initialize timeline and add to display
          */
-        timeLine = new TimeLine(totalDuration, 30, center, sessionData.utteranceList);
+        timeLine = new TimeLine(totalDuration, 30, center, sessionData.utteranceList,
+                mediaPlayer::getCurrentTime, appPrefs.getBoolean("timeline.canvas", false));
+        // timeline lives as long as the coding state
+        stateBindings.onDetach(() -> {
+            timeLine.dispose();
+            timeLine = null;
+        });
         pnTimeLine.getChildren().clear();
         pnTimeLine.getChildren().addAll(l, timeLine);
 
@@ -1662,44 +1753,29 @@ public class MainController {
           This is not done in setOnPlaying() lambda because the mediaplayer
           can be initialized without there being a timeline defined.
         */
-        mediaPlayer.statusProperty().addListener( (invalidated, oldvalue, newvalue) -> {
+        stateBindings.listen(mediaPlayer.statusProperty(), (invalidated, oldvalue, newvalue) -> {
             switch (newvalue) {
-                case READY:
-                    timeLine.getAnimation().pause();
-                    break;
                 case PLAYING:
-                    timeLine.getAnimation().play();
+                    timeLine.play();
                     break;
+                case READY:
                 case PAUSED:
-                    timeLine.getAnimation().pause();
-                    break;
                 case STOPPED:
-                    timeLine.getAnimation().stop();
-                    break;
                 case STALLED:
-                    timeLine.getAnimation().stop();
-                    break;
                 case HALTED:
-                    timeLine.getAnimation().stop();
+                    timeLine.pause();
                     break;
             }
             });
 
 
-        /* this shouldn't happen */
-        timeLine.getAnimation().setOnFinished( (e) -> timeLine.getAnimation().pause());
-
-
         /*
          * Seek slider should manipulate timeline as it does mediaplayer
          */
-        sldSeek.valueProperty().addListener((ObservableValue<? extends Number> observable, Number oldValue, Number newValue) -> {
-            /* if dragging slider, update timeline position */
-            if (sldSeek.isValueChanging()) {
-                timeLine.getAnimation().pause();
-                // multiply duration by percentage calculated by slider position
-                timeLine.getAnimation().jumpTo(totalDuration.multiply(newValue.doubleValue()));
-            }
+        stateBindings.listen(playbackPosition.userSeekProperty(), (observable, oldValue, newValue) -> {
+            /* user dragging slider, update timeline position */
+            timeLine.pause();
+            timeLine.showTime(newValue);
         });
 
 
@@ -1710,28 +1786,19 @@ public class MainController {
         timeLine.addPropertyChangeListener(this::openUtteranceEditor);
 
 
-        /*
-         * Playback rate binding
-         */
-        timeLine.getAnimation().rateProperty().bind(sldRate.valueProperty());
-
         /*
          * timeline can be paused internally by clicking on a marker
-         * so this listener pauses mediaplayer in response
+         * so pause mediaplayer in response
          */
-        timeLine.getAnimation().statusProperty().addListener((invalidated, oldValue, newValue) -> {
-            if (newValue.equals(Animation.Status.PAUSED)) {
-                mediaPlayer.pause();
-            }
-        });
+        timeLine.setOnPauseRequest(() -> mediaPlayer.pause());
 
         /*
-         * timeline currenttime must be set to match mediaplyer's currentime
-         * Following sequence seems to be best way to do that
+         * timeline follows the media clock, including playback rate. Start at current media time.
          */
-        timeLine.getAnimation().play(); // have to start before jumpto will work
-        timeLine.getAnimation().pause();
-        timeLine.getAnimation().jumpTo(mediaPlayer.getCurrentTime());
+        timeLine.sync();
+        if (mediaPlayer.getStatus() == MediaPlayer.Status.PLAYING) {
+            timeLine.play();
+        }
 
     }
 
@@ -1745,12 +1812,14 @@ public class MainController {
         // save this window's stage for resizing new controls
         Stage ourTown = (Stage) menuBar.getScene().getWindow();
 
+        // listeners of previous gui state go with it
+        stateBindings.detach();
+
         // common control updates; file name in mediaplayer
         lblAudioFilename.setText(currentAudioFile.getAbsolutePath());
 
         Locale locale = new Locale("en", "US");
         ResourceBundle resourceStrings = ResourceBundle.getBundle("strings", locale);
-        FXMLLoader loader;
 
 
         // GuiState determines action
@@ -1763,23 +1832,12 @@ public class MainController {
                 // disable window maximization for PLAYBACK state
                 ourTown.setMaximized(false);
 
-                /* Listener: currentTime
-                   responsible for updating gui components with current playback position
-                   because MediaPlayer’s currentTime property is updated on a different thread than the main JavaFX application thread. Therefore we cannot bind to it directly
-                   NOTE: this version does not update a timeline */
-                mediaPlayer.currentTimeProperty().addListener((observable, oldValue, newValue) -> {
-                    // update display of current time
-                    lblTimePos.setText(Utils.formatDuration(newValue));
-                    // update the mediaplayer slider
-                    sldSeek.setValue(newValue.toMillis() / totalDuration.toMillis());
-                });
 
 
                 // update playback controls
                 Duration onReadySeekDuration = Duration.ZERO;
                 mediaPlayer.seek(onReadySeekDuration);
-                lblTimePos.setText(Utils.formatDuration(onReadySeekDuration));
-                sldSeek.setValue(onReadySeekDuration.toMillis()/totalDuration.toMillis());
+                playbackPosition.show(onReadySeekDuration);
 
                 // display controls needed for coding
                 setPlayerButtonState();
@@ -1798,13 +1856,9 @@ public class MainController {
                 resetUserControlsContainer();
 
 
-                // load new controls
-                loader = new FXMLLoader(getClass().getResource("MISC_CODING.fxml"), resourceStrings);
-                loader.setController(this);
-                try {
-                    vbApp.getChildren().add(loader.load());
-                } catch (IOException ex) {
-                    showError("Error", ex.toString());
+                // show coding controls; coding buttons from userConfiguration.xml are only created with the view
+                if( showStateView("MISC_CODING.fxml", resourceStrings) ) {
+                    parseUserControls();
                 }
 
                 // The coding menu and report menuitem are disabled by default. Make them active in the coding state.
@@ -1814,23 +1868,8 @@ public class MainController {
                 // display controls needed for coding
                 setPlayerButtonState();
 
-                // load coding buttons from userConfiguration.xml appropriate for GuiState
-                parseUserControls();
 
 
-                /* Listener: currentTime
-                   responsible for updating gui components with current playback position
-                   because MediaPlayer’s currentTime property is updated on a different thread than the main JavaFX application thread. Therefore we cannot bind to it directly
-                   NOTE: It is important to bind property listeners before changing utterance data
-                   and adjusting the mediaplayer position below
-                 */
-                mediaPlayer.currentTimeProperty().addListener((observable, oldValue, newValue) -> {
-                    // update display of current time
-                    lblTimePos.setText(Utils.formatDuration(newValue));
-                    // update the mediaplayer slider
-                    sldSeek.setValue(newValue.toMillis() / totalDuration.toMillis());
-                });
-
 
                 /*
                  * get last utterance to set player position in time
@@ -1851,12 +1890,14 @@ public class MainController {
                  * adjust player position
                  */
                 mediaPlayer.seek(onReadySeekDuration);
-                lblTimePos.setText(Utils.formatDuration(onReadySeekDuration));
-                sldSeek.setValue(onReadySeekDuration.toMillis()/totalDuration.toMillis());
+                playbackPosition.show(onReadySeekDuration);
 
                 // update the utterance data(previous/current) displayed in the gui
                 updateUtteranceDisplays();
 
+                // summary scores follow coding as it happens
+                bindLiveSummary(resourceStrings.getString("lbl.liveSummary"));
+
                 /*
                     initialize new timeline
                     assumes mediaplayer time position is already set
@@ -1889,40 +1930,22 @@ public class MainController {
                 // always reset for globals
                 resetUserControlsContainer();
 
-                /* Listener: currentTime
-                   responsible for updating gui components with current playback position
-                   because MediaPlayer’s currentTime property is updated on a different thread than the main JavaFX application thread. Therefore we cannot bind to it directly
-                   NOTE: this version does not update a timeline */
-                mediaPlayer.currentTimeProperty().addListener((observable, oldValue, newValue) -> {
-                    // update display of current time
-                    lblTimePos.setText(Utils.formatDuration(newValue));
-                    // update the mediaplayer slider
-                    sldSeek.setValue(newValue.toMillis() / totalDuration.toMillis());
-                });
 
                 // reset playback controls to zero
                 onReadySeekDuration = Duration.ZERO;
                 mediaPlayer.seek(onReadySeekDuration);
-                lblTimePos.setText(Utils.formatDuration(onReadySeekDuration));
-                sldSeek.setValue(onReadySeekDuration.toMillis()/totalDuration.toMillis());
+                playbackPosition.show(onReadySeekDuration);
 
                 // hide controls needed for coding
                 setPlayerButtonState();
 
-                // enable GLOBAL coding controls
-                loader = new FXMLLoader(getClass().getResource("GLOBAL_CODING.fxml"), resourceStrings);
-                loader.setController(this);
-
-                try {
-                    vbApp.getChildren().add(loader.load());
-                } catch (IOException ex) {
-                    showError("Error", ex.toString());
+                // enable GLOBAL coding controls; rating controls from userConfiguration.xml are only created with the view
+                if( showStateView("GLOBAL_CODING.fxml", resourceStrings) ) {
+                    parseUserControls();
                 }
 
-
-                // update control state
-                // load coding buttons from userConfiguration.xml appropriate for GuiState
-                parseUserControls();
+                // show ratings and notes of this session
+                bindGlobalControls();
 
                 // resize app window to user preferences or controller size
                 ourTown.setWidth(appPrefs.getDouble("main.wind.w", ourTown.getWidth() ));
@@ -1936,147 +1959,27 @@ public class MainController {
                 // always reset for globals
                 resetUserControlsContainer();
 
-                /* Listener: currentTime
-                   responsible for updating gui components with current playback position
-                   because MediaPlayer’s currentTime property is updated on a different thread than the main JavaFX application thread. Therefore we cannot bind to it directly
-                   NOTE: this version does not update a timeline */
-                mediaPlayer.currentTimeProperty().addListener((observable, oldValue, newValue) -> {
-                    // update display of current time
-                    lblTimePos.setText(Utils.formatDuration(newValue));
-                    // update the mediaplayer slider
-                    sldSeek.setValue(newValue.toMillis() / totalDuration.toMillis());
-                });
 
                 // reset playback controls to zero
                 onReadySeekDuration = Duration.ZERO;
                 mediaPlayer.seek(onReadySeekDuration);
-                lblTimePos.setText(Utils.formatDuration(onReadySeekDuration));
-                sldSeek.setValue(onReadySeekDuration.toMillis()/totalDuration.toMillis());
+                playbackPosition.show(onReadySeekDuration);
 
                 // hide controls needed for coding
                 setPlayerButtonState();
 
-                // load layout
-                loader = new FXMLLoader(getClass().getResource("Report.fxml"), resourceStrings);
-                loader.setController(this);
-                // add view to app
-                try {
-                    vbApp.getChildren().add(loader.load());
-                } catch (IOException ex) {
-                    showError("Error", ex.toString());
+                // add view to app; list cells are created with the view
+                if( showStateView("Report.fxml", resourceStrings) ) {
+                    lvRptGlobalRatings.setCellFactory(listView -> new ReportRowCell());
+                    lvRptAllUtterances.setCellFactory(listView -> new ReportRowCell());
                 }
 
 
-                // global ratings section
-                ArrayList< TreeMap< String, String> > records = null;
-                String notes = null;
-
-                /* get the session summary scores and global ratings */
-                HashMap<String, Double> mapCodeSummary = null;
-                try {
-                    // get counts
-                    mapCodeSummary = sessionData.getCodeSummaryMap();
-                    records = sessionData.getGlobalUtterances();
-                    notes = sessionData.getAttribute(SessionData.SessionAttributes.GLOBAL_NOTES);
-                } catch (SQLException e) {
-                    System.out.println(e.getMessage());
-                }
-
                 // report label is session label
                 lblSessionID.setText(sessionData.getSessionLabel());
 
-                // play icon image for multiple use in labels below
-                Image imagePlayIcon = new Image(Main.class.getResourceAsStream("media/btn_play.png"));
-
-
-                // global rating insert
-                String current_rating_id = "";
-                for(TreeMap< String, String>  row : records) {
-
-                    if(!row.get("rating_id").equals(current_rating_id)) {
-                        current_rating_id = row.get("rating_id");
-                        Text txtRating = new Text(String.format("%s [Score:%s]", row.get("rating_name"), row.get("rating_value")));
-                        txtRating.setUnderline(true);
-                        vbxRptScore_global_ratings.getChildren().add(txtRating);
-                    }
-
-                    // check if there are utterances to list
-                    if( row.get("time_marker") != null ) {
-
-                        ImageView imageViewPlay = new ImageView(imagePlayIcon);
-                        imageViewPlay.setFitWidth(16);
-                        imageViewPlay.setPreserveRatio(true);
-                        imageViewPlay.setSmooth(true);
-                        imageViewPlay.setCache(true);
-
-                        Label txtUtterance = new Label(String.format("%s : %s : %s", row.get("time_marker"), row.get("code_name"), row.get("annotation").replace("\n", "; ")), imageViewPlay);
-                        txtUtterance.setUserData(Utils.parseDuration(row.get("time_marker")));
-                        txtUtterance.setCursor(Cursor.HAND);
-
-                        txtUtterance.setOnMouseClicked(this::actPlayAtUtterance);
-                        vbxRptScore_global_ratings.getChildren().add(txtUtterance);
-                    }
-
-                }
-
-                // Add the global notes at the bottom
-                Text txtNotes = new Text( String.format("\n\nNotes:\n%s\n\n", notes) );
-                vbxRptScore_global_ratings.getChildren().add(txtNotes);
-
-
-
-
-
-                //
-                for (Utterance utr : sessionData.utteranceList.values()) {
-
-                    ImageView imageViewPlay = new ImageView(imagePlayIcon);
-                    imageViewPlay.setFitWidth(16);
-                    imageViewPlay.setPreserveRatio(true);
-                    imageViewPlay.setSmooth(true);
-                    imageViewPlay.setCache(true);
-
-                    Label txtUtteranceItem = new Label(String.format("%s : %s : %s", Utils.formatDuration(utr.getStartTime()), utr.getMiscCode().name, utr.getAnnotation().replace("\n", "; ")), imageViewPlay);
-                    txtUtteranceItem.setUserData(utr.getStartTime());
-                    txtUtteranceItem.setOnMouseClicked(this::actPlayAtUtterance);
-                    txtUtteranceItem.setCursor(Cursor.HAND);
-                    vbxAllUtteranceList.getChildren().add(txtUtteranceItem);
-
-                }
-
-
-                /* attach/format summary scores to report */
-                // integers: "%.0f"
-                // doubles: "%.2f"
-                rptScore_mico.setText(String.format("%.0f",mapCodeSummary.get("SUM_MICO")));
-                rptScore_miin.setText(String.format("%.0f",mapCodeSummary.get("SUM_MIIN")));
-                rptScore_pmic.setText(String.format("%.1f%%",mapCodeSummary.get("PCT_MIC")));
-                rptScore_r2q.setText(String.format("%.2f",mapCodeSummary.get("RATIO_R2Q")));
-                rptScore_poq.setText(String.format("%.1f%%",mapCodeSummary.get("PCT_POQ")));
-                rptScore_pcr.setText(String.format("%.1f%%",mapCodeSummary.get("PCT_PCR")));
-                rptScore_ther2cli.setText(String.format("%.2f",mapCodeSummary.get("RATIO_THER2CLI")));
-                rptScore_pct.setText(String.format("%.1f%%",mapCodeSummary.get("PCT")));
-                rptScore_adp.setText(String.format("%.0f",mapCodeSummary.get("SUM_ADP")));
-                rptScore_adw.setText(String.format("%.0f",mapCodeSummary.get("SUM_ADW")));
-                rptScore_af.setText(String.format("%.0f",mapCodeSummary.get("SUM_AF")));
-                rptScore_co.setText(String.format("%.0f",mapCodeSummary.get("SUM_CO")));
-                rptScore_di.setText(String.format("%.0f",mapCodeSummary.get("SUM_DI")));
-                rptScore_ec.setText(String.format("%.0f",mapCodeSummary.get("SUM_EC")));
-                rptScore_gi.setText(String.format("%.0f",mapCodeSummary.get("SUM_GI")));
-                rptScore_open.setText(String.format("%.0f",mapCodeSummary.get("SUM_OQ")));
-                rptScore_closed.setText(String.format("%.0f",mapCodeSummary.get("SUM_CQ")));
-                rptScore_rcp.setText(String.format("%.0f",mapCodeSummary.get("SUM_RCP")));
-                rptScore_rcw.setText(String.format("%.0f",mapCodeSummary.get("SUM_RCW")));
-                rptScore_simple.setText(String.format("%.0f",mapCodeSummary.get("SUM_SIMPLE")));
-                rptScore_complex.setText(String.format("%.0f",mapCodeSummary.get("SUM_CR")));
-                rptScore_refct.setText(String.format("%.0f",mapCodeSummary.get("SUM_REF_CT")));
-                rptScore_refst.setText(String.format("%.0f",mapCodeSummary.get("SUM_REF_ST")));
-                rptScore_st.setText(String.format("%.0f",mapCodeSummary.get("SUM_ST")));
-                rptScore_rf.setText(String.format("%.0f",mapCodeSummary.get("SUM_RF")));
-                rptScore_su.setText(String.format("%.0f",mapCodeSummary.get("SUM_SU")));
-                rptScore_wa.setText(String.format("%.0f",mapCodeSummary.get("SUM_WA")));
-                rptScore_change.setText(String.format("%.0f",mapCodeSummary.get("SUM_CHANGE")));
-                rptScore_sustain.setText(String.format("%.0f",mapCodeSummary.get("SUM_SUSTAIN")));
+                // scores and lists are computed off the FX thread and shown as they are ready
+                loadReport();
 
 
                 // done
@@ -2099,6 +2002,98 @@ public class MainController {
 
 
 
+    /**
+     * Show report content of current session. Scores and notes are shown at once; rows of the report lists
+     * are made on the report thread and the lists filled when they are ready. Work stops when the REPORT
+     * state is left.
+     */
+    private void loadReport() {
+
+        // taken from memory; nothing is read from the session file
+        final SessionData.ReportData report = sessionData.getReportData();
+
+        showReportScores(report.summary);
+        lblRptGlobalNotes.setText(String.format("Notes:\n%s", report.notes));
+        lvRptGlobalRatings.setItems(null);
+        lvRptAllUtterances.setItems(null);
+
+        Task<Void> task = new Task<Void>() {
+            @Override
+            protected Void call() {
+
+                // rating headings with their linked utterances are collected here
+                int globalRowCount = report.getGlobalRowCount();
+                int utteranceRowCount = report.getUtteranceRowCount();
+                Platform.runLater(() -> {
+                    if( !isCancelled() ) {
+                        // rows are made as they are scrolled to
+                        lvRptGlobalRatings.setItems(new PagedList<>(globalRowCount, report::getGlobalRows));
+                        lvRptAllUtterances.setItems(new PagedList<>(utteranceRowCount, report::getUtteranceRows));
+                    }
+                });
+
+                return null;
+            }
+        };
+        task.setOnFailed(event -> showError("Error Report", String.valueOf(task.getException().getMessage())));
+
+        // cached view must not keep the session
+        stateBindings.onDetach(() -> {
+            task.cancel();
+            lvRptGlobalRatings.setItems(null);
+            lvRptAllUtterances.setItems(null);
+        });
+
+        reportRunner.execute(task);
+    }
+
+
+
+    /**
+     * Attach/format summary scores to report. Scores missing from map are left blank.
+     * @param summary map<metric_name, value>
+     */
+    private void showReportScores(Map<String, Double> summary) {
+        // integers: "%.0f"
+        // doubles: "%.2f"
+        rptScore_mico.setText(formatScore("%.0f", summary.get("SUM_MICO")));
+        rptScore_miin.setText(formatScore("%.0f", summary.get("SUM_MIIN")));
+        rptScore_pmic.setText(formatScore("%.1f%%", summary.get("PCT_MIC")));
+        rptScore_r2q.setText(formatScore("%.2f", summary.get("RATIO_R2Q")));
+        rptScore_poq.setText(formatScore("%.1f%%", summary.get("PCT_POQ")));
+        rptScore_pcr.setText(formatScore("%.1f%%", summary.get("PCT_PCR")));
+        rptScore_ther2cli.setText(formatScore("%.2f", summary.get("RATIO_THER2CLI")));
+        rptScore_pct.setText(formatScore("%.1f%%", summary.get("PCT")));
+        rptScore_adp.setText(formatScore("%.0f", summary.get("SUM_ADP")));
+        rptScore_adw.setText(formatScore("%.0f", summary.get("SUM_ADW")));
+        rptScore_af.setText(formatScore("%.0f", summary.get("SUM_AF")));
+        rptScore_co.setText(formatScore("%.0f", summary.get("SUM_CO")));
+        rptScore_di.setText(formatScore("%.0f", summary.get("SUM_DI")));
+        rptScore_ec.setText(formatScore("%.0f", summary.get("SUM_EC")));
+        rptScore_gi.setText(formatScore("%.0f", summary.get("SUM_GI")));
+        rptScore_open.setText(formatScore("%.0f", summary.get("SUM_OQ")));
+        rptScore_closed.setText(formatScore("%.0f", summary.get("SUM_CQ")));
+        rptScore_rcp.setText(formatScore("%.0f", summary.get("SUM_RCP")));
+        rptScore_rcw.setText(formatScore("%.0f", summary.get("SUM_RCW")));
+        rptScore_simple.setText(formatScore("%.0f", summary.get("SUM_SIMPLE")));
+        rptScore_complex.setText(formatScore("%.0f", summary.get("SUM_CR")));
+        rptScore_refct.setText(formatScore("%.0f", summary.get("SUM_REF_CT")));
+        rptScore_refst.setText(formatScore("%.0f", summary.get("SUM_REF_ST")));
+        rptScore_st.setText(formatScore("%.0f", summary.get("SUM_ST")));
+        rptScore_rf.setText(formatScore("%.0f", summary.get("SUM_RF")));
+        rptScore_su.setText(formatScore("%.0f", summary.get("SUM_SU")));
+        rptScore_wa.setText(formatScore("%.0f", summary.get("SUM_WA")));
+        rptScore_change.setText(formatScore("%.0f", summary.get("SUM_CHANGE")));
+        rptScore_sustain.setText(formatScore("%.0f", summary.get("SUM_SUSTAIN")));
+    }
+
+
+    private static String formatScore(String format, Double value) {
+        return (value == null) ? "" : String.format(format, value);
+    }
+
+
+
     /**********************************************************************
      * Set mediaplayer position using Duration
      **********************************************************************/
@@ -2111,7 +2106,7 @@ public class MainController {
             case PLAYING:
 
                 if(timeLine != null) {
-                    timeLine.getAnimation().playFrom(position);
+                    timeLine.showTime(position);
                 }
                 mediaPlayer.seek(position);
                 break;
@@ -2119,7 +2114,7 @@ public class MainController {
             case PAUSED:
 
                 if(timeLine != null) {
-                    timeLine.getAnimation().jumpTo(position);
+                    timeLine.showTime(position);
                 }
                 mediaPlayer.seek(position);
                 break;
@@ -2130,8 +2125,8 @@ public class MainController {
                 mediaPlayer.seek(position);
 
                 if(timeLine != null) {
-                    timeLine.getAnimation().pause();
-                    timeLine.getAnimation().jumpTo(position);
+                    timeLine.pause();
+                    timeLine.showTime(position);
                 }
                 break;
         }
@@ -2326,9 +2321,9 @@ public class MainController {
      * @param file what was being parsed
      * @param e the Error
      *********************************************************************/
-    private void handleUserCodesParseException(File file, SAXParseException e) {
-        // Alert and quit.
-        showFatalWarning("Failed to load user codes","Parse error in " + file.getAbsolutePath() + " (line " + e.getLineNumber() + "):\n" + e.getMessage());
+    private void handleUserCodesParseException(File file, FileFormatException e) {
+        // Alert and quit. Message starts with the line number
+        showFatalWarning("Failed to load user codes","Parse error in " + file.getAbsolutePath() + ", " + e.getMessage());
     }
 
     private void handleUserCodesGenericException(File file, Exception e) {
@@ -2343,154 +2338,64 @@ public class MainController {
 
 
     /**
-     * Parse user codes and globals from user config file
-     * into vectors of MiscCode and GlobalCode
+     * Load user codes and globals from user config file
+     * into MiscCode and GlobalCode registries
      *
      * <userConfiguration>
      *  <codes>
      *      contain code label and value
      *      goes into MiscCode
+     *  <globals>
+     *      goes into GlobalCode
+     *  <summary>
+     *      optional extra summary metrics
+     *      goes into SummaryEngine
      */
     private void parseUserConfig() {
 
-        // reset codes vector
-        MiscCode.clear();
-
-        // cheap way to check if we need to reload userconfig which we will only allow once per lifecycle
-        //if( MiscCode.numCodes() == 0 ){
+        // NOTE: We display parse errors to user before quiting so user knows to correct XML file.
+        File file = new File(UserConfig.getPath());
 
-            // NOTE: We display parse errors to user before quiting so user knows to correct XML file.
-            File file = new File(UserConfig.getPath());
+        if( file.canRead() ) {
+            try {
+                UserConfig config = UserConfig.load();
 
-            if( file.canRead() ) {
                 try {
-                    DocumentBuilderFactory fact = DocumentBuilderFactory.newInstance();
-                    DocumentBuilder builder = fact.newDocumentBuilder();
-                    Document doc = builder.parse( file.getCanonicalPath() );
-                    org.w3c.dom.Node root = doc.getDocumentElement();
-
-                    // first, create lookup list the returns code value for code name
-                    Hashtable<String, Integer> miscCodeValues = new Hashtable<>();
-
-                    // Expected format: <userConfiguration> <codes>...</codes> <globals>...</globals> </userConfiguration>
-                    for( org.w3c.dom.Node node = root.getFirstChild(); node != null; node = node.getNextSibling() ) {
-                        if( node.getNodeName().equalsIgnoreCase( "codes" ) )
-
-                            for( org.w3c.dom.Node n = node.getFirstChild(); n != null; n = n.getNextSibling() ) {
-                                if( n.getNodeName().equalsIgnoreCase( "code" ) ) {
-                                    NamedNodeMap map         = n.getAttributes();
-                                    org.w3c.dom.Node            nodeValue   = map.getNamedItem( "value" );
-                                    int             value       = Integer.parseInt( nodeValue.getTextContent() );
-                                    String          name        = map.getNamedItem( "name" ).getTextContent();
-
-                                    // add to lookup list
-                                    miscCodeValues.put(name, value);
-                                }
-                            }
-                        else if( node.getNodeName().equalsIgnoreCase( "globals" ) )
-                            /* handle global code */
-                            parseUserGlobals( file, node );
-                    }
-
-
-                    // now, store codes use map
-                    doc.getDocumentElement().normalize();
-                    // just get nodes for controls
-                    org.w3c.dom.NodeList controlNodeList = doc.getElementsByTagName("codeControls");
-                    // iterate each child node
-                    for (int cn = 0; cn < controlNodeList.getLength(); ++cn) {
-                        org.w3c.dom.Node node = controlNodeList.item(cn);
-
-                        // Get panel name.  Must be "left" or "right".
-                        NamedNodeMap map = node.getAttributes();
-                        String speaker = map.getNamedItem("label").getTextContent().split(" ")[0];
-                        // i added ".split(" ")[0];" because one user had other text after that and i just wanted the first word.
-
-                        for( org.w3c.dom.Node row = node.getFirstChild(); row != null; row = row.getNextSibling() ) {
-                            if( row.getNodeName().equalsIgnoreCase( "row" ) ) {
-
-                                for( org.w3c.dom.Node cell = row.getFirstChild(); cell != null; cell = cell.getNextSibling() ) {
-                                    if( cell.getNodeName().equalsIgnoreCase("button")) {
-
-                                        NamedNodeMap cellMap = cell.getAttributes();
-                                        String codeName = cellMap.getNamedItem( "code" ).getTextContent();
-                                        int codeValue = miscCodeValues.get(codeName);
-
-                                        try {
-                                            MiscCode.addCode( new MiscCode( codeValue, codeName, MiscCode.Speaker.valueOf(speaker) ) );
-                                        } catch (Exception e) {
-                                            handleUserCodesError( file, String.format("Failed to add code.\n%s", e.getMessage()) );
-                                        }
-                                    }
-                                }
-
-                            }
-                        }
-
-                    }
-
-
-                } catch( SAXParseException e ) {
-                    handleUserCodesParseException( file, e );
+                    config.install();
                 } catch( Exception e ) {
-                    handleUserCodesGenericException( file, e );
+                    handleUserCodesError( file, e.getMessage() );
                 }
 
-            } else {
-                // Alert and quit.
-                showFatalWarning("Failed to load user codes","Failed to find required file.\n" + file.getAbsolutePath());
+            } catch( FileFormatException e ) {
+                handleUserCodesParseException( file, e );
+            } catch( Exception e ) {
+                handleUserCodesGenericException( file, e );
             }
-        //}
+
+            // views hold buttons of previous config
+            clearStateViews();
+
+        } else {
+            // Alert and quit.
+            showFatalWarning("Failed to load user codes","Failed to find required file.\n" + file.getAbsolutePath());
+        }
     }
 
 
 
     /**
-     * Parse globals from user config file
-     * into vector GlobalCode
-     * <userConfiguration>
-     *  <globals>
-     *      contain code label and value
-     *      goes into GlobalCode
+     * Bind live summary label to the summary scores of the current utterance list
+     * @param format format string taking PCT_MIC, RATIO_R2Q, PCT_PCR, PCT_POQ and PCT
      */
-    private void parseUserGlobals( File file, org.w3c.dom.Node globals ) {
-
-        // reset code vector
-        GlobalCode.clear();
-
-
-        for( org.w3c.dom.Node n = globals.getFirstChild(); n != null; n = n.getNextSibling() ) {
-            if( n.getNodeName().equalsIgnoreCase( "global" ) ) {
-                NamedNodeMap    map         = n.getAttributes();
-                org.w3c.dom.Node            nodeValue   = map.getNamedItem( "value" );
-                int             value       = Integer.parseInt( nodeValue.getTextContent() );
-                org.w3c.dom.Node            nodeDefaultRating   = map.getNamedItem( "defaultRating" );
-                org.w3c.dom.Node            nodeMinRating       = map.getNamedItem( "minRating" );
-                org.w3c.dom.Node            nodeMaxRating       = map.getNamedItem( "maxRating" );
-                String          name        = map.getNamedItem( "name" ).getTextContent();
-                String          label       = map.getNamedItem( "label" ).getTextContent();
-                GlobalCode      code        = new GlobalCode( value, name, label );
-
-                if( nodeDefaultRating != null )
-                    code.defaultRating = Integer.parseInt( nodeDefaultRating.getTextContent() );
-                if( nodeMinRating != null )
-                    code.minRating = Integer.parseInt( nodeMinRating.getTextContent() );
-                if( nodeMaxRating != null )
-                    code.maxRating = Integer.parseInt( nodeMaxRating.getTextContent() );
-
-                if( code.defaultRating < code.minRating ||
-                        code.defaultRating > code.maxRating ||
-                        code.maxRating < code.minRating ) {
-                    handleUserCodesError( file, "Invalid range for global code: " + code.name +
-                            ", minRating: " + code.minRating +
-                            ", maxRating: " + code.maxRating +
-                            ", defaultRating: " + code.defaultRating );
-                }
-
-                if( !GlobalCode.addCode( code ) )
-                    handleUserCodesError( file, "Failed to add global code." );
-            }
-        }
+    private void bindLiveSummary(String format) {
+        LiveSummary liveSummary = getUtteranceList().getLiveSummary();
+        // released with the state so a cached view does not hold on to a previous session
+        stateBindings.bind(lblLiveSummary.textProperty(), Bindings.format(format,
+                liveSummary.getProperty("PCT_MIC"),
+                liveSummary.getProperty("RATIO_R2Q"),
+                liveSummary.getProperty("PCT_PCR"),
+                liveSummary.getProperty("PCT_POQ"),
+                liveSummary.getProperty("PCT")));
     }
 
 
@@ -2526,39 +2431,18 @@ public class MainController {
         if( file.exists() ) {
             try {
 
-                /* Expected format:
-                 * <userConfiguration>
-                 *   <codes>
-                 *    ...
-                 *   </codes>
-                 *   <codeControls panel="left" label="Therapist">
-                 *     ...
-                 *   </codeControls>
-                 *   <codeControls panel="right" label="Client">
-                 *     ...
-                 *   </codeControls>
-                 * </userConfiguration>
-                 */
-
-                DocumentBuilderFactory  fact    = DocumentBuilderFactory.newInstance();
-                DocumentBuilder         builder = fact.newDocumentBuilder();
-                Document                doc     = builder.parse(file);
-                doc.getDocumentElement().normalize();
+                // parsed once and shared; only re-read if the file changed
+                UserConfig config = UserConfig.load();
 
                 switch (getGuiState()) {
 
                     case MISC_CODING:
 
-                        // just get nodes for controls
-                        NodeList controlNodeList = doc.getElementsByTagName("codeControls");
-                        // iterate each child node
-                        for (int cn = 0; cn < controlNodeList.getLength(); ++cn) {
-                            org.w3c.dom.Node node = controlNodeList.item(cn);
+                        for (UserConfig.CodePanel codePanel : config.getCodePanels()) {
 
                             // Get panel name.  Must be "left" or "right".
-                            NamedNodeMap map = node.getAttributes();
-                            String panelName = map.getNamedItem("panel").getTextContent();
-                            String panelLabel = map.getNamedItem("label").getTextContent();
+                            String panelName = codePanel.panel;
+                            String panelLabel = codePanel.label;
                             GridPane gridpane = null;
                             TitledPane titledpane = null;
 
@@ -2575,7 +2459,7 @@ public class MainController {
                             if (gridpane == null) {
                                 handleUserCodesError(file, "codeControls panel unrecognized: " + panelName);
                             } else {
-                                parseControlColumn(node, gridpane);
+                                parseControlColumn(codePanel, gridpane);
                                 titledpane.setText(panelLabel);
                             }
                         }
@@ -2589,14 +2473,10 @@ public class MainController {
                         int gridColIndx = 0;
                         int gridRowIndx = 0;
 
-                        // just get nodes for controls
-                        controlNodeList = doc.getElementsByTagName("globalControls");
-                        // iterate each child node ("left" or "right")
-                        for (int cn = 0; cn < controlNodeList.getLength(); ++cn) {
-                            org.w3c.dom.Node node = controlNodeList.item(cn);
+                        // iterate each panel ("left" or "right")
+                        for (UserConfig.GlobalPanel globalPanel : config.getGlobalPanels()) {
 
-                            NamedNodeMap map = node.getAttributes();
-                            String panelSide = map.getNamedItem("panel").getTextContent();
+                            String panelSide = globalPanel.panel;
                             if (panelSide.equalsIgnoreCase("left")) {
                                 gridColIndx = 0;
                                 gridRowIndx = 0;
@@ -2606,11 +2486,9 @@ public class MainController {
                             }
 
 
-                            for( org.w3c.dom.Node row = node.getFirstChild(); row != null; row = row.getNextSibling() ) {
+                            for( String globalName : globalPanel.sliders ) {
 
-                                if( row.getNodeName().equals("slider")){
-                                    NamedNodeMap rowMap = row.getAttributes();
-                                    String globalName = rowMap.getNamedItem("global").getNodeValue();
+                                if( globalName != null ){
                                     // get code by name
                                     GlobalCode code = GlobalCode.codeWithName( globalName );
 
@@ -2622,20 +2500,20 @@ public class MainController {
                                         ToggleGroup tg = new ToggleGroup();
                                         tg.setUserData(code.name);
 
-                                        // create radio buttons with values and defaults
+                                        // create radio buttons with values; selection is set per session in bindGlobalControls()
                                         for(int i = code.minRating; i <= code.maxRating; i++) {
-                                            RadioButton rb = createRadioButton(i, tg);
-                                            // set radio button selected to user response value
-                                            // which would be default value if not changed by user
-                                            if( i == sessionData.ratingsList.getRating(code)) {
-                                                tg.selectToggle(rb);
-                                            }
-                                            hb.getChildren().add(rb);
+                                            hb.getChildren().add(createRadioButton(i, tg));
                                         }
+                                        globalToggleGroups.add(tg);
 
                                         // handle toggle id changes
                                         tg.selectedToggleProperty().addListener( (ObservableValue<? extends Toggle> observable, Toggle oldValue, Toggle newValue) -> {
 
+                                            // only user changes are written
+                                            if( rebindingGlobals || newValue == null ) {
+                                                return;
+                                            }
+
                                             // get code name stored in toggle group userdata
                                             String codeName = newValue.getToggleGroup().getUserData().toString();
                                             // get code by that name from globals data model
@@ -2661,7 +2539,8 @@ public class MainController {
                                         gridRowIndx++;
 
                                     }
-                                } else if( row.getNodeName().equals("spacer")) {
+                                } else {
+                                    // spacer
                                     gridRowIndx++;
                                 }
 
@@ -2669,11 +2548,6 @@ public class MainController {
 
                         }
 
-                        /*
-                         * Load user notes into notes field
-                         */
-                        tfGlobalsNotes.setText(sessionData.ratingsList.getNotes());
-
                         /*
                          * listen to notes field. If focus is lost and notes are not empty, save all out to the globals file.
                          */
@@ -2692,7 +2566,7 @@ public class MainController {
                 }
 
 
-            } catch( SAXParseException e ) {
+            } catch( FileFormatException e ) {
                 handleUserCodesParseException( file, e );
             } catch( Exception e ) {
                 handleUserCodesGenericException( file, e );
@@ -2705,44 +2579,35 @@ public class MainController {
 
 
     /*******************************************************************
-     * Parse a column of controls from given XML node.
-     * Add buttons to given panel, and set panel layout.
-     * Each child of given node is expected to be one row of controls.
-     * @param node xml node
+     * Add buttons of a code panel from config to given grid.
+     * Each row of the config panel is one row of controls.
+     * @param codePanel panel from user config
      * @param panel parent fxml node
      *******************************************************************/
-    private void parseControlColumn( org.w3c.dom.Node node, GridPane panel ) {
+    private void parseControlColumn( UserConfig.CodePanel codePanel, GridPane panel ) {
 
         int activeRow = 0;
         int activeCol = 0;
 
-        for( org.w3c.dom.Node row = node.getFirstChild(); row != null; row = row.getNextSibling() ) {
-            if( row.getNodeName().equalsIgnoreCase( "row" ) ) {
-                activeRow ++;
-
-                for( org.w3c.dom.Node cell = row.getFirstChild(); cell != null; cell = cell.getNextSibling() ) {
-                    if( cell.getNodeName().equalsIgnoreCase("button")) {
-                        activeCol ++;
-                        NamedNodeMap map = cell.getAttributes();
-                        String codeName = map.getNamedItem( "code" ).getTextContent();
-
-                        Button button = new Button(codeName);
-                        // show underscores in codes; do not trigger Mnemonic parsings
-                        button.setMnemonicParsing(false);
-                        //button.setOnAction(this::btnActCode);
-                        button.setOnMouseClicked(this::btnActCode);
-                        button.getStyleClass().add("btn-dark-blue");
-                        // width and height of button expands with grid resizing
-                        button.prefWidthProperty().bind(panel.widthProperty());
-                        button.prefHeightProperty().bind(panel.heightProperty());
-                        panel.add(button, activeCol, activeRow, 1, 1);
-
-                    }
-                }
-
-                activeCol = 0;
-
+        for( List<String> row : codePanel.rows ) {
+            activeRow ++;
+
+            for( String codeName : row ) {
+                activeCol ++;
+
+                Button button = new Button(codeName);
+                // show underscores in codes; do not trigger Mnemonic parsings
+                button.setMnemonicParsing(false);
+                //button.setOnAction(this::btnActCode);
+                button.setOnMouseClicked(this::btnActCode);
+                button.getStyleClass().add("btn-dark-blue");
+                // width and height of button expands with grid resizing
+                button.prefWidthProperty().bind(panel.widthProperty());
+                button.prefHeightProperty().bind(panel.heightProperty());
+                panel.add(button, activeCol, activeRow, 1, 1);
             }
+
+            activeCol = 0;
         }
     }
 
@@ -2801,6 +2666,71 @@ public class MainController {
     }
 
 
+    /**
+     * Add view of current gui state to app. A view is loaded the first time its state is entered
+     * after a user config is parsed and is reused, detached, until the next config.
+     * @param fxml layout of view
+     * @param resourceStrings strings for layout
+     * @return true if view was newly loaded and needs its config controls built
+     */
+    private boolean showStateView(String fxml, ResourceBundle resourceStrings) {
+
+        Parent view = stateViews.get(getGuiState());
+        boolean loaded = false;
+
+        if( view == null ) {
+            FXMLLoader loader = new FXMLLoader(getClass().getResource(fxml), resourceStrings);
+            loader.setController(this);
+            try {
+                view = loader.load();
+            } catch (IOException ex) {
+                showError("Error", ex.toString());
+                return false;
+            }
+            stateViews.put(getGuiState(), view);
+            loaded = true;
+        }
+
+        vbApp.getChildren().add(view);
+        return loaded;
+    }
+
+
+    /**
+     * Drop cached views so they are built again from the current user config
+     */
+    private void clearStateViews() {
+        stateViews.clear();
+        globalToggleGroups.clear();
+    }
+
+
+    /**
+     * Show ratings and notes of current session in GLOBAL_CODING view
+     */
+    private void bindGlobalControls() {
+
+        // selecting from session data is not a user rating
+        rebindingGlobals = true;
+        try {
+            for( ToggleGroup tg : globalToggleGroups ) {
+                GlobalCode code = GlobalCode.codeWithName(tg.getUserData().toString());
+                String rating = Integer.toString(sessionData.ratingsList.getRating(code));
+                tg.selectToggle(null);
+                for( Toggle toggle : tg.getToggles() ) {
+                    if( ((RadioButton) toggle).getText().equals(rating) ) {
+                        tg.selectToggle(toggle);
+                    }
+                }
+            }
+        } finally {
+            rebindingGlobals = false;
+        }
+
+        tfGlobalsNotes.setText(sessionData.ratingsList.getNotes());
+    }
+
+
     /**
      * Set player buttons to correct general state for GUI
      */
@@ -3069,7 +2999,7 @@ public class MainController {
                     initializeMediaPlayer(currentAudioFile, playerReady);
                 }
 
-            } else if(arg.endsWith(".casaa")) {
+            } else if(arg.endsWith(".casaa") || arg.endsWith(LogSessionStore.EXTENSION)) {
                 File miscFile = new File(arg);
 
                 if (miscFile.canRead()) {
@@ -0,0 +1,103 @@
+/*
+This source code file is part of the CASAA Treatment Coding System Utility
+    Copyright (C) 2009  UNM CASAA
+
+    This program is free software: you can redistribute it and/or modify
+    it under the terms of the GNU General Public License as published by
+    the Free Software Foundation, either version 3 of the License, or
+    (at your option) any later version.
+
+    This program is distributed in the hope that it will be useful,
+    but WITHOUT ANY WARRANTY; without even the implied warranty of
+    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+    GNU General Public License for more details.
+
+    You should have received a copy of the GNU General Public License
+    along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package edu.unm.casaa.main;
+
+import javafx.collections.ObservableListBase;
+
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+
+/**
+ * Read-only list of a fixed number of rows made a page at a time.
+ *
+ * Meant as the items of a ListView, which only asks for rows it has cells for, so a long
+ * session costs a few pages of rows rather than a node per row. The most recently used
+ * pages are kept; others are made again when scrolled back to.
+ */
+public class PagedList<T> extends ObservableListBase<T> {
+
+    public static final int DEFAULT_PAGE_SIZE = 100;
+    private static final int CACHED_PAGES = 8;
+
+    /**
+     * Makes rows of a page
+     */
+    public interface PageLoader<T> {
+        List<T> load(int offset, int limit);
+    }
+
+
+    private final PageLoader<T> loader;
+    private final int size;
+    private final int pageSize;
+    // least recently used page first
+    private final LinkedHashMap<Integer, List<T>> pages = new LinkedHashMap<Integer, List<T>>(CACHED_PAGES, 0.75f, true) {
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<Integer, List<T>> eldest) {
+            return size() > CACHED_PAGES;
+        }
+    };
+
+
+    /**
+     * @param size number of rows
+     * @param loader makes pages
+     */
+    public PagedList(int size, PageLoader<T> loader) {
+        this(size, DEFAULT_PAGE_SIZE, loader);
+    }
+
+
+    /**
+     * @param size number of rows
+     * @param pageSize rows per page
+     * @param loader makes pages
+     */
+    public PagedList(int size, int pageSize, PageLoader<T> loader) {
+        this.size = size;
+        this.pageSize = pageSize;
+        this.loader = loader;
+    }
+
+
+    @Override
+    public T get(int index) {
+        if( index < 0 || index >= size ) {
+            throw new IndexOutOfBoundsException("Index: " + index + ", Size: " + size);
+        }
+
+        int page = index / pageSize;
+        List<T> rows = pages.get(page);
+        if( rows == null ) {
+            rows = loader.load(page * pageSize, pageSize);
+            pages.put(page, rows);
+        }
+
+        int row = index - page * pageSize;
+        return (row < rows.size()) ? rows.get(row) : null;
+    }
+
+
+    @Override
+    public int size() {
+        return size;
+    }
+}
@@ -0,0 +1,121 @@
+/*
+This source code file is part of the CASAA Treatment Coding System Utility
+    Copyright (C) 2009  UNM CASAA
+
+    This program is free software: you can redistribute it and/or modify
+    it under the terms of the GNU General Public License as published by
+    the Free Software Foundation, either version 3 of the License, or
+    (at your option) any later version.
+
+    This program is distributed in the hope that it will be useful,
+    but WITHOUT ANY WARRANTY; without even the implied warranty of
+    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+    GNU General Public License for more details.
+
+    You should have received a copy of the GNU General Public License
+    along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package edu.unm.casaa.main;
+
+import javafx.beans.property.Property;
+import javafx.beans.value.ChangeListener;
+import javafx.beans.value.ObservableValue;
+
+import java.util.ArrayList;
+import java.util.concurrent.atomic.AtomicInteger;
+
+
+/**
+ * Listeners and bindings between the media player and playback controls that share a lifecycle.
+ *
+ * The controller keeps one set for the life of a media player and one for the life of a GUI state.
+ * Everything registered through a set is removed together by detach(), so entering a state or
+ * loading media again does not stack another copy of the same listeners.
+ *
+ * A count of live registrations across all sets is kept for debugging leaks.
+ */
+public class PlaybackBindings {
+
+    /* set this system property to print the live registration count on each detach */
+    public static final String DEBUG_PROPERTY = "casaa.playback.debug";
+
+    private static final AtomicInteger liveCount = new AtomicInteger();
+
+    private final String name;
+    // undo actions of current registrations
+    private final ArrayList<Runnable> removals = new ArrayList<>();
+
+
+    /**
+     * @param name shown in debug output
+     */
+    public PlaybackBindings(String name) {
+        this.name = name;
+    }
+
+
+    /**
+     * Add change listener until detach
+     */
+    public <T> void listen(ObservableValue<T> observable, ChangeListener<? super T> listener) {
+        observable.addListener(listener);
+        register(() -> observable.removeListener(listener));
+    }
+
+
+    /**
+     * Bind property until detach
+     */
+    public <T> void bind(Property<T> property, ObservableValue<? extends T> observable) {
+        property.bind(observable);
+        register(property::unbind);
+    }
+
+
+    /**
+     * Run cleanup on detach, e.g. to dispose something created for the state
+     */
+    public void onDetach(Runnable cleanup) {
+        register(cleanup);
+    }
+
+
+    /**
+     * Remove everything registered through this set
+     */
+    public void detach() {
+        // undo in reverse order of registration
+        for (int i = removals.size() - 1; i >= 0; i--) {
+            removals.get(i).run();
+        }
+        liveCount.addAndGet(-removals.size());
+        removals.clear();
+
+        if( Boolean.getBoolean(DEBUG_PROPERTY) ) {
+            System.err.printf("playback bindings: detached %s, %d live%n", name, getLiveCount());
+        }
+    }
+
+
+    /**
+     * @return number of registrations in this set
+     */
+    public int size() {
+        return removals.size();
+    }
+
+
+    /**
+     * @return number of registrations not yet detached, across all sets
+     */
+    public static int getLiveCount() {
+        return liveCount.get();
+    }
+
+
+    private void register(Runnable removal) {
+        removals.add(removal);
+        liveCount.incrementAndGet();
+    }
+}
@@ -0,0 +1,162 @@
+/*
+This source code file is part of the CASAA Treatment Coding System Utility
+    Copyright (C) 2009  UNM CASAA
+
+    This program is free software: you can redistribute it and/or modify
+    it under the terms of the GNU General Public License as published by
+    the Free Software Foundation, either version 3 of the License, or
+    (at your option) any later version.
+
+    This program is distributed in the hope that it will be useful,
+    but WITHOUT ANY WARRANTY; without even the implied warranty of
+    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+    GNU General Public License for more details.
+
+    You should have received a copy of the GNU General Public License
+    along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package edu.unm.casaa.main;
+
+import javafx.animation.AnimationTimer;
+import javafx.beans.property.ReadOnlyObjectProperty;
+import javafx.beans.property.ReadOnlyObjectWrapper;
+import javafx.scene.control.Label;
+import javafx.scene.control.Slider;
+import javafx.scene.media.MediaPlayer;
+import javafx.util.Duration;
+
+
+/**
+ * Shows the playback position in the position label and seek slider.
+ *
+ * While playing, the media clock is sampled once per pulse. Label and slider only change when the
+ * position moves to another tenth of a second, the resolution the label displays. While paused,
+ * position changes such as seeks are shown as the media player reports them.
+ *
+ * Slider moves made here are told apart from user drags, which are published through
+ * userSeekProperty(), so seek handlers need not filter out the updater's own changes.
+ */
+public class PlaybackPosition {
+
+    private final MediaPlayer mediaPlayer;
+    private final Label lblTimePos;
+    private final Slider sldSeek;
+    private final double totalMillis;
+
+    private final AnimationTimer pulse;
+    private boolean running = false;
+    // tenth of a second currently shown; MIN_VALUE forces next update
+    private long shownTenths = Long.MIN_VALUE;
+    // true while slider is moved by this updater
+    private boolean adjusting = false;
+    private final ReadOnlyObjectWrapper<Duration> userSeek = new ReadOnlyObjectWrapper<>(this, "userSeek");
+
+
+    /**
+     * @param mediaPlayer player whose position is shown
+     * @param totalDuration duration of media, for slider position
+     * @param lblTimePos position label
+     * @param sldSeek seek slider, 0..1
+     */
+    public PlaybackPosition(MediaPlayer mediaPlayer, Duration totalDuration, Label lblTimePos, Slider sldSeek) {
+        this.mediaPlayer = mediaPlayer;
+        this.lblTimePos = lblTimePos;
+        this.sldSeek = sldSeek;
+        this.totalMillis = totalDuration.toMillis();
+
+        pulse = new AnimationTimer() {
+            @Override
+            public void handle(long now) {
+                show(mediaPlayer.getCurrentTime());
+            }
+        };
+    }
+
+
+    /**
+     * Start following the player. Listeners are registered through bindings and go with them.
+     * @param bindings lifecycle of the listeners, normally that of the media player
+     */
+    public void attach(PlaybackBindings bindings) {
+
+        // sample per pulse only while playing
+        bindings.listen(mediaPlayer.statusProperty(), (observable, oldValue, newValue) -> {
+            if( newValue == MediaPlayer.Status.PLAYING ) {
+                start();
+            } else {
+                stop();
+                show(mediaPlayer.getCurrentTime());
+            }
+        });
+
+        // seeks while not playing
+        bindings.listen(mediaPlayer.currentTimeProperty(), (observable, oldValue, newValue) -> {
+            if( !running ) {
+                show(newValue);
+            }
+        });
+
+        // publish user drags only
+        bindings.listen(sldSeek.valueProperty(), (observable, oldValue, newValue) -> {
+            if( !adjusting && sldSeek.isValueChanging() ) {
+                userSeek.set(Duration.millis(newValue.doubleValue() * totalMillis));
+            }
+        });
+
+        bindings.onDetach(this::stop);
+
+        if( mediaPlayer.getStatus() == MediaPlayer.Status.PLAYING ) {
+            start();
+        }
+    }
+
+
+    /**
+     * Show position, e.g. right after a seek. Does nothing if the shown tenth of a second
+     * would not change.
+     * @param position media time
+     */
+    public void show(Duration position) {
+        double millis = position.toMillis();
+        long tenths = Math.round(millis / 100.0);
+        if( tenths == shownTenths ) {
+            return;
+        }
+        shownTenths = tenths;
+
+        lblTimePos.setText(Utils.formatDuration(position));
+
+        // leave slider alone while user drags it
+        if( !sldSeek.isValueChanging() ) {
+            adjusting = true;
+            try {
+                sldSeek.setValue(millis / totalMillis);
+            } finally {
+                adjusting = false;
+            }
+        }
+    }
+
+
+    /**
+     * @return position the user dragged the seek slider to
+     */
+    public ReadOnlyObjectProperty<Duration> userSeekProperty() {
+        return userSeek.getReadOnlyProperty();
+    }
+
+
+    private void start() {
+        if( !running ) {
+            running = true;
+            pulse.start();
+        }
+    }
+
+
+    private void stop() {
+        running = false;
+        pulse.stop();
+    }
+}
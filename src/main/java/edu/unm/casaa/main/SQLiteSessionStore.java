@@ -0,0 +1,841 @@
+/*
+This source code file is part of the CASAA Treatment Coding System Utility
+    Copyright (C) 2009  UNM CASAA
+
+    This program is free software: you can redistribute it and/or modify
+    it under the terms of the GNU General Public License as published by
+    the Free Software Foundation, either version 3 of the License, or
+    (at your option) any later version.
+
+    This program is distributed in the hope that it will be useful,
+    but WITHOUT ANY WARRANTY; without even the implied warranty of
+    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+    GNU General Public License for more details.
+
+    You should have received a copy of the GNU General Public License
+    along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package edu.unm.casaa.main;
+
+import edu.unm.casaa.globals.GlobalCode;
+import edu.unm.casaa.misc.MiscCode;
+import edu.unm.casaa.misc.MiscDataItem;
+import edu.unm.casaa.utterance.Utterance;
+import javafx.util.Duration;
+import org.sqlite.SQLiteConfig;
+import org.sqlite.SQLiteDataSource;
+
+import java.io.File;
+import java.io.FileNotFoundException;
+import java.io.FileReader;
+import java.io.IOException;
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.List;
+import java.util.SortedMap;
+import java.util.TreeMap;
+
+
+/**
+ * Session stored in a SQLite database, the ".casaa" file format.
+ *
+ * Reads go through a small connection pool; changes are written behind by SessionWriteQueue.
+ * A store opened read-only opens the file with SQLite's mode=ro and never starts the writer.
+ */
+final class SQLiteSessionStore implements SessionStore {
+
+    /* number of reader connections kept open for a session */
+    private static final int READER_CONNECTIONS = 2;
+    /* writes that may wait in the write-behind queue before coding blocks */
+    private static final int WRITE_QUEUE_CAPACITY = 1024;
+    /* how long a connection waits on another connection's lock, in ms */
+    private static final int BUSY_TIMEOUT = 10000;
+
+    /*
+     * schema versions, stored in the file's user_version. Earlier releases set user_version back to 1
+     * on every open, so the version only decides whether the performance steps are due; each step
+     * checks the schema itself before changing it.
+     */
+    static final int SCHEMA_VERSION_BASE = 1;
+    /* base schema plus indexes, file uses the WAL journal */
+    static final int SCHEMA_VERSION_PERFORMANCE = 2;
+    /* utterance start time also stored as integer milliseconds. The column is added to every file, whatever its version */
+    static final int SCHEMA_VERSION_START_MS = 3;
+    /* version given to performance schema files */
+    static final int SCHEMA_VERSION_CURRENT = SCHEMA_VERSION_START_MS;
+
+    /* secondary indexes added by the performance schema */
+    private static final String[] PERFORMANCE_INDEXES = {
+            "create index if not exists utterances_time_marker on utterances (time_marker)",
+            "create index if not exists utterances_code_id on utterances (code_id)",
+            "create index if not exists utterances_ratings_utterance_id on utterances_ratings (utterance_id)",
+            "create index if not exists utterances_ratings_rating_id on utterances_ratings (rating_id)"
+    };
+
+    private final SQLiteDataSource ds;
+    private final SessionConnectionPool pool;
+    private final SessionWriteQueue writeQueue;
+    private final boolean readOnly;
+    /* utterances table has start_ms column. Set before any utterance is read or written */
+    private boolean startMsColumn = false;
+
+
+    private SQLiteSessionStore(File file, boolean readOnly) {
+        this.readOnly = readOnly;
+        // database config
+        SQLiteConfig config = new SQLiteConfig();
+        // enable foreign key constraints
+        config.enforceForeignKeys(true);
+        // readers may wait briefly while the background writer commits
+        config.setBusyTimeout(BUSY_TIMEOUT);
+        config.setReadOnly(readOnly);
+        // attach config to our datasource
+        ds = new SQLiteDataSource(config);
+        if( readOnly ) {
+            ds.setUrl("jdbc:sqlite:" + readOnlyURI(file));
+        } else {
+            ds.setUrl("jdbc:sqlite:" + file.getAbsolutePath());
+        }
+        // connections are opened on first use and kept until the session is closed
+        pool = new SessionConnectionPool(ds, READER_CONNECTIONS);
+        // changes are written behind by a background thread
+        writeQueue = new SessionWriteQueue(pool, WRITE_QUEUE_CAPACITY);
+    }
+
+
+    /**
+     * Open existing session database
+     * @param file session file
+     * @return store for file
+     * @throws IOException
+     */
+    static SQLiteSessionStore open(File file) throws IOException {
+
+        // check file exists
+        if( !file.canRead() ) {
+            throw new FileNotFoundException("File not found.");
+        }
+        // check file format
+        if( !isSQLiteDataFile(file) ) {
+            throw new FileFormatException( "File is not correct format:\n"+file.getAbsolutePath() );
+        }
+
+        SQLiteSessionStore store = new SQLiteSessionStore(file, false);
+        try {
+            store.upgradeSchema();
+        } catch (SQLException e) {
+            store.closeQuietly();
+            throw new IOException(e);
+        }
+        return store;
+    }
+
+
+    /**
+     * Open existing session database for reading only. The schema is read as it is, not upgraded.
+     * @param file session file
+     * @return store for file
+     * @throws IOException
+     */
+    static SQLiteSessionStore openReadOnly(File file) throws IOException {
+
+        if( !file.canRead() ) {
+            throw new FileNotFoundException("File not found.");
+        }
+        if( !isSQLiteDataFile(file) ) {
+            throw new FileFormatException( "File is not correct format:\n"+file.getAbsolutePath() );
+        }
+
+        SQLiteSessionStore store = new SQLiteSessionStore(file, true);
+        try {
+            store.startMsColumn = store.pool.read(connection -> hasStartMsColumn(connection.getConnection()));
+        } catch (SQLException e) {
+            store.closeQuietly();
+            throw new IOException(e);
+        }
+        return store;
+    }
+
+
+    /**
+     * URI of file for a read-only connection. Without a write-ahead log the file is also opened
+     * immutable, so SQLite takes no locks, which saves round trips on network drives. Changes still
+     * in a write-ahead log are only seen without immutable.
+     */
+    private static String readOnlyURI(File file) {
+        File wal = new File(file.getAbsolutePath() + "-wal");
+        String query = (wal.length() > 0) ? "?mode=ro" : "?mode=ro&immutable=1";
+        // raw path keeps characters such as '?' and '#' percent-encoded
+        return "file:" + file.getAbsoluteFile().toURI().getRawPath() + query;
+    }
+
+
+    /**
+     * Create new session database
+     * @param file session file, which should not exist yet
+     * @param audioFilePath audio file of session
+     * @param codes codes that may be used in the session
+     * @param ratings global ratings of the session, at their default rating
+     * @return store for file
+     * @throws IOException
+     */
+    static SQLiteSessionStore create(File file, String audioFilePath, Collection<MiscCode> codes, Collection<GlobalCode> ratings) throws IOException {
+
+        SQLiteSessionStore store = new SQLiteSessionStore(file, false);
+        try {
+            boolean performance = SessionData.isPerformanceSchema();
+            if( performance ) {
+                store.initPerformanceFile();
+            }
+            store.initDB(performance, audioFilePath, codes, ratings);
+            store.startMsColumn = true;
+        } catch (SQLException e) {
+            store.closeQuietly();
+            // convert SQLException as we don't need the SQL details here
+            throw new IOException(e);
+        }
+        return store;
+    }
+
+
+    /**
+     * Test if file is a SQLite database
+     */
+    static boolean isSQLiteDataFile(File file) throws IOException {
+
+        // Test selected file format by looking for "SQLite" at beginning of file
+        try ( FileReader textFileReader = new FileReader(file) ) {
+            char[] buffer = new char[6];
+            int numberOfCharsRead = textFileReader.read(buffer);
+            return numberOfCharsRead > 0 && String.valueOf(buffer, 0, numberOfCharsRead).startsWith("SQLite");
+        }
+    }
+
+
+    /**
+     * Set page size and WAL journal on a new, empty session file.
+     * Both must be set before the schema is created.
+     * @throws SQLException
+     */
+    private void initPerformanceFile() throws SQLException {
+        try ( Connection connection = ds.getConnection();
+              Statement statement = connection.createStatement() ) {
+            statement.execute("pragma page_size = " + SessionData.getPageSize());
+            statement.execute("pragma journal_mode = WAL");
+        }
+        // WAL is safe against corruption with NORMAL; only the last commits may be lost on power failure
+        ds.setSynchronous(SQLiteConfig.SynchronousMode.NORMAL.getValue());
+    }
+
+
+    /**
+     * Bring an existing session file up to the current schema: start_ms for every file, and the
+     * performance steps when that setting is on.
+     * Runs on a short lived connection before the pool opens any, since the journal mode
+     * cannot change inside a transaction and pooled connections pick up synchronous mode on open.
+     * @throws SQLException
+     */
+    private void upgradeSchema() throws SQLException {
+
+        try ( Connection connection = ds.getConnection();
+              Statement statement = connection.createStatement() ) {
+
+            int version;
+            try ( ResultSet rs = statement.executeQuery("pragma user_version") ) {
+                version = rs.next() ? rs.getInt(1) : 0;
+            }
+
+            boolean performance = SessionData.isPerformanceSchema() && version < SCHEMA_VERSION_CURRENT;
+            if( performance && version < SCHEMA_VERSION_PERFORMANCE ) {
+                statement.execute("pragma journal_mode = WAL");
+            }
+
+            connection.setAutoCommit(false);
+            try {
+                if( performance ) {
+                    addPerformanceIndexes(statement);
+                    version = SCHEMA_VERSION_CURRENT;
+                }
+                addStartMsColumn(connection, statement);
+                connection.commit();
+            } catch (SQLException e) {
+                connection.rollback();
+                throw e;
+            } finally {
+                connection.setAutoCommit(true);
+            }
+
+            if( version >= SCHEMA_VERSION_PERFORMANCE ) {
+                ds.setSynchronous(SQLiteConfig.SynchronousMode.NORMAL.getValue());
+            }
+            startMsColumn = true;
+        }
+    }
+
+
+    /**
+     * Add performance schema indexes and version, inside the caller's transaction
+     * @throws SQLException
+     */
+    private static void addPerformanceIndexes(Statement statement) throws SQLException {
+        for (String sql : PERFORMANCE_INDEXES) {
+            statement.executeUpdate(sql);
+        }
+        statement.executeUpdate("pragma user_version = " + SCHEMA_VERSION_CURRENT);
+    }
+
+
+    /**
+     * Add start_ms column if the file does not have it, and fill it in where it is null, inside the caller's transaction.
+     * start_ms is nullable so earlier releases, which only write time_marker, can still add utterances;
+     * those rows are filled in on the next open. Readers fall back to time_marker when it is null.
+     * @throws SQLException
+     */
+    private static void addStartMsColumn(Connection connection, Statement statement) throws SQLException {
+
+        if( !hasStartMsColumn(connection) ) {
+            statement.executeUpdate("alter table utterances add column start_ms integer");
+        }
+        statement.executeUpdate("create index if not exists utterances_start_ms on utterances (start_ms)");
+
+        try ( PreparedStatement ps = connection.prepareStatement("update utterances set start_ms = ? where utterance_id = ?");
+              Statement query = connection.createStatement();
+              ResultSet rs = query.executeQuery("select utterance_id, time_marker from utterances where start_ms is null") ) {
+            while (rs.next()) {
+                ps.setLong(1, Math.round(Utils.parseDuration(rs.getString("time_marker")).toMillis()));
+                ps.setString(2, rs.getString("utterance_id"));
+                ps.addBatch();
+            }
+            ps.executeBatch();
+        }
+    }
+
+
+    /**
+     * @return true if utterances table has the start_ms column
+     */
+    private static boolean hasStartMsColumn(Connection connection) throws SQLException {
+        try ( Statement statement = connection.createStatement();
+              ResultSet rs = statement.executeQuery("pragma table_info(utterances)") ) {
+            while (rs.next()) {
+                if( "start_ms".equalsIgnoreCase(rs.getString("name")) ) {
+                    return true;
+                }
+            }
+        }
+        return false;
+    }
+
+
+    @Override
+    public void close() throws SQLException {
+        try {
+            // commit everything still queued before the connections go away
+            writeQueue.close();
+        } finally {
+            pool.close();
+        }
+    }
+
+
+    /**
+     * Release connections opened by a factory method that failed
+     */
+    private void closeQuietly() {
+        try {
+            pool.close();
+        } catch (SQLException ignored) {
+        }
+    }
+
+
+    @Override
+    public void flush() throws SQLException {
+        writeQueue.flush();
+    }
+
+
+    @Override
+    public void setWriteListener(SessionWriteQueue.Listener listener) {
+        writeQueue.setListener(listener);
+    }
+
+
+    /**
+     * Run query after queued changes are applied so it sees them
+     */
+    private <T> T read(SessionConnectionPool.Work<T> work) throws SQLException {
+        writeQueue.awaitCommitted();
+        return pool.read(work);
+    }
+
+
+    /**
+     * Queue change for the background writer
+     */
+    private void write(SessionConnectionPool.Work<?> work) throws SQLException {
+        if( readOnly ) {
+            throw new SQLException("Session is open read-only");
+        }
+        writeQueue.submit(work);
+    }
+
+
+    @Override
+    public List<MiscCode> loadCodes() throws SQLException {
+        return read(connection -> {
+
+            ArrayList<MiscCode> codes = new ArrayList<>();
+
+            try ( ResultSet rs = connection.prepare("select code_id, code_name, speaker_id from codes order by code_id").executeQuery() ) {
+                while (rs.next()) {
+                    codes.add(new MiscCode(rs.getInt("code_id"), rs.getString("code_name"), MiscCode.Speaker.values()[rs.getInt("speaker_id")]));
+                }
+            }
+
+            return codes;
+        });
+    }
+
+
+    @Override
+    public void loadRatings(HashMap< Integer, Integer > values, HashMap< Integer, String > names) throws SQLException {
+
+        read(connection -> {
+
+            try ( ResultSet rs = connection.prepare("select rating_id, rating_name, response_value from ratings").executeQuery() ) {
+                while (rs.next()) {
+                    int ratingId = rs.getInt("rating_id");
+                    values.put(ratingId, rs.getInt("response_value"));
+                    names.put(ratingId, rs.getString("rating_name"));
+                }
+            }
+
+            return null;
+        });
+    }
+
+
+    /**
+     * Load all utterances with their annotations and linked global ratings in one query
+     */
+    @Override
+    public SortedMap< String, Utterance > loadUtterances() throws SQLException
+    {
+        String orderBy = startMsColumn ? "utterances.start_ms" : "utterances.time_marker";
+
+        // one row per rating link, or one row with null rating_id for an utterance without links
+        String sql = "select utterances.*, codes.code_name, codes.speaker_id, utterances_ratings.rating_id as linked_rating_id " +
+                "from utterances inner join codes on utterances.code_id = codes.code_id " +
+                "left join utterances_ratings on utterances_ratings.utterance_id = utterances.utterance_id " +
+                "order by " + orderBy + ", utterances.utterance_id";
+
+        return read(connection -> {
+
+            SortedMap< String, Utterance > utteranceTreeMap = new TreeMap<>();
+            ArrayList<Integer> ratingIDs = new ArrayList<>();
+            MiscDataItem item = null;
+
+            try ( ResultSet rs = connection.prepare(sql).executeQuery() ) {
+
+                while (rs.next()) {
+
+                    String utterance_id = rs.getString("utterance_id");
+
+                    // rows of one utterance are adjacent
+                    if( item == null || !item.getID().equals(utterance_id) ) {
+                        setRatingIDs(item, ratingIDs);
+
+                        Duration startTime = getStartTime(rs);
+                        int codeId = rs.getInt("code_id");
+                        String codeName = rs.getString("code_name");
+                        int speakerId = rs.getInt("speaker_id");
+                        String annotationText = rs.getString("annotation");
+
+                        MiscCode code = new MiscCode(codeId, codeName, MiscCode.Speaker.values()[speakerId]);
+                        // stored id is the map key; keep item id identical to it
+                        item = new MiscDataItem(utterance_id, startTime);
+                        item.setMiscCode(code);
+                        item.setAnnotation(annotationText);
+
+                        utteranceTreeMap.put(utterance_id, item);
+                    }
+
+                    int ratingId = rs.getInt("linked_rating_id");
+                    if( !rs.wasNull() ) {
+                        ratingIDs.add(ratingId);
+                    }
+                }
+            }
+            setRatingIDs(item, ratingIDs);
+
+            return utteranceTreeMap;
+        });
+    }
+
+
+    /**
+     * Rows of a forward-only query in utterance id order, the order of the in-memory utterance list
+     */
+    @Override
+    public void forEachUtterance(UtteranceVisitor visitor) throws SQLException {
+
+        String sql = "select utterances.utterance_id, utterances.time_marker, utterances.annotation, codes.code_name " +
+                "from utterances inner join codes on utterances.code_id = codes.code_id " +
+                "order by utterances.utterance_id";
+
+        read(connection -> {
+            try ( ResultSet rs = connection.prepare(sql).executeQuery() ) {
+                while (rs.next()) {
+                    visitor.visit(rs.getString(1), rs.getString(2), rs.getString(4), rs.getString(3));
+                }
+            }
+            return null;
+        });
+    }
+
+
+    private static void setRatingIDs(Utterance utterance, ArrayList<Integer> ratingIDs) {
+        if( utterance != null && !ratingIDs.isEmpty() ) {
+            utterance.setRatingIDs(ratingIDs.stream().mapToInt(Integer::intValue).toArray());
+        }
+        ratingIDs.clear();
+    }
+
+
+    /**
+     * Utterance start time from current row. Exact milliseconds when stored,
+     * otherwise parsed from the time_marker string written by every schema version.
+     */
+    private Duration getStartTime(ResultSet rs) throws SQLException {
+        if( startMsColumn ) {
+            long startMs = rs.getLong("start_ms");
+            if( !rs.wasNull() ) {
+                return Duration.millis(startMs);
+            }
+        }
+        return Utils.parseDuration(rs.getString("time_marker"));
+    }
+
+
+    @Override
+    public HashMap< String, Integer > getCodeCounts() throws SQLException {
+        return read(connection -> {
+
+            HashMap< String, Integer > mapCodeCount = new HashMap<>();
+
+            try ( ResultSet rs = connection.prepare("select codes.code_name, count(codes.code_id) as code_count from codes join utterances on codes.code_id = utterances.code_id group by codes.code_name;").executeQuery() ) {
+
+                while (rs.next()) {
+
+                    String code_name = rs.getString("code_name");
+                    int code_count = rs.getInt("code_count");
+                    mapCodeCount.put( code_name, code_count);
+                }
+            }
+
+            return mapCodeCount;
+        });
+    }
+
+
+    @Override
+    public void setAttribute(SessionData.SessionAttributes attribute, String value) throws SQLException
+    {
+        String sql = "update attributes set value = ? where name = ?";
+
+        write(connection -> {
+            PreparedStatement ps = connection.prepare(sql);
+            ps.setString(1, value);
+            ps.setString(2, attribute.name());
+            return ps.executeUpdate();
+        });
+    }
+
+
+    @Override
+    public String getAttribute(SessionData.SessionAttributes sessionAttribute) throws SQLException
+    {
+        String sql = "select value from attributes where name = ?";
+
+        return read(connection -> {
+            PreparedStatement ps = connection.prepare(sql);
+            ps.setString(1, sessionAttribute.name());
+
+            try ( ResultSet rs = ps.executeQuery() ) {
+                if( rs.next() ) {
+                    return rs.getString("value");
+                } else {
+                    return "";
+                }
+            }
+        });
+    }
+
+
+    @Override
+    public void annotateUtterance(String utterance_id, String annotationText, int[] ratingIDs) throws SQLException
+    {
+        // the caller's array may change after this returns
+        int[] links = ratingIDs.clone();
+
+        /* all statements below run in one transaction */
+        write(connection -> {
+            PreparedStatement psU = connection.prepare("update utterances set annotation = ? where utterance_id = ?");
+            PreparedStatement psD = connection.prepare("delete from utterances_ratings where utterance_id = ?");
+            PreparedStatement psI = connection.prepare("INSERT INTO utterances_ratings (utterance_id, rating_id) VALUES (?, ?)");
+
+            /* handle annotation text */
+            psU.setString(1, annotationText);
+            psU.setString(2, utterance_id);
+            psU.executeUpdate();
+
+            /* clear all utterance to rating links */
+            psD.setString(1, utterance_id);
+            psD.executeUpdate();
+
+            /* add selected utterance to rating links */
+            for (int ratingID : links ) {
+                psI.setString(1, utterance_id);
+                psI.setInt(2, ratingID);
+                psI.addBatch();
+            }
+            return psI.executeBatch();
+        });
+    }
+
+
+    @Override
+    public void removeUtterance(String utterance_id) throws SQLException
+    {
+        /* both deletes run in one transaction */
+        write(connection -> {
+            PreparedStatement ps1 = connection.prepare("delete from utterances_ratings where utterance_id = ?");
+            PreparedStatement ps2 = connection.prepare("delete from utterances where utterance_id = ?");
+
+            /* clear all utterance to rating links */
+            ps1.setString(1, utterance_id);
+            ps1.executeUpdate();
+
+            /* delete utterance */
+            ps2.setString(1, utterance_id);
+            return ps2.executeUpdate();
+        });
+    }
+
+
+    @Override
+    public void addUtterance(String utterance_id, int code_id, Duration startTime, String annotation) throws SQLException
+    {
+        write(connection -> {
+            PreparedStatement ps = prepareUtteranceInsert(connection);
+            bindUtteranceInsert(ps, utterance_id, code_id, startTime, annotation);
+            return ps.executeUpdate();
+        });
+    }
+
+
+    @Override
+    public void addUtterances(List<Utterance> utterances) throws SQLException {
+        write(connection -> {
+            PreparedStatement ps = prepareUtteranceInsert(connection);
+            for (Utterance utr : utterances) {
+                bindUtteranceInsert(ps, utr.getID(), utr.getMiscCode().value, utr.getStartTime(), utr.getAnnotation());
+                ps.addBatch();
+            }
+
+            return ps.executeBatch();
+        });
+    }
+
+
+    /**
+     * time_marker is written for every schema version so earlier releases and exports can read it
+     */
+    private PreparedStatement prepareUtteranceInsert(SessionConnectionPool.PooledConnection connection) throws SQLException {
+        if( startMsColumn ) {
+            return connection.prepare("insert into utterances (utterance_id, code_id, time_marker, annotation, start_ms) values (?,?,?,?,?)");
+        } else {
+            return connection.prepare("insert into utterances (utterance_id, code_id, time_marker, annotation) values (?,?,?,?)");
+        }
+    }
+
+
+    private void bindUtteranceInsert(PreparedStatement ps, String utterance_id, int code_id, Duration startTime, String annotation) throws SQLException {
+        ps.setString(1, utterance_id);
+        ps.setInt(2, code_id);
+        ps.setString(3, Utils.formatDuration(startTime));
+        ps.setString(4, annotation);
+        if( startMsColumn ) {
+            ps.setLong(5, Math.round(startTime.toMillis()));
+        }
+    }
+
+
+    @Override
+    public void addRating(String rating_name, int response_value) throws SQLException
+    {
+
+        /* look up and insert or update in one transaction */
+        write(connection -> {
+
+            int rating_id = -1;
+
+            PreparedStatement ps = connection.prepare("select rating_id from ratings where rating_name = ?");
+            ps.setString(1, rating_name);
+            try ( ResultSet rs = ps.executeQuery() ) {
+                if( rs.next() ) {
+                    rating_id = rs.getInt("rating_id");
+                }
+            }
+
+            if( rating_id == -1 ){
+                ps = connection.prepare("insert into ratings (rating_name, response_value) values (?,?)");
+                ps.setString(1, rating_name);
+                ps.setInt(2, response_value);
+            } else {
+                ps = connection.prepare("update ratings set response_value = ? where rating_id = ?");
+                ps.setInt(1, response_value);
+                ps.setInt(2, rating_id);
+            }
+            return ps.executeUpdate();
+        });
+    }
+
+
+    @Override
+    public void setRatingValue(int rating_id, int response_value) throws SQLException
+    {
+        String sql = "update ratings set response_value = ? where rating_id = ?";
+
+        write(connection -> {
+            PreparedStatement ps = connection.prepare(sql);
+            ps.setInt(1, response_value);
+            ps.setInt(2, rating_id);
+            return ps.executeUpdate();
+        });
+    }
+
+
+    /**
+     * Initialize datasource schema and default values
+     * @param performance add performance schema indexes
+     * @throws SQLException
+     */
+    private void initDB(boolean performance, String audioFilePath, Collection<MiscCode> codes, Collection<GlobalCode> ratings) throws SQLException
+    {
+
+        /* schema and lookup tables are created in a single transaction */
+        pool.write(pooled -> {
+
+            Connection connection = pooled.getConnection();
+
+            try ( Statement statement = connection.createStatement() ) {
+
+                /*
+                Create schema
+                 */
+                statement.executeUpdate("create table if not exists speakers ( " +
+                        "speaker_id integer primary key not null, " +
+                        "speaker_name string not null unique" +
+                        ")");
+                statement.executeUpdate("create table if not exists codes ( " +
+                        "code_id integer primary key not null, " +
+                        "code_name string not null unique, " +
+                        "speaker_id integer, " +
+                        "  foreign key (speaker_id) references speakers (speaker_id)" +
+                        ")");
+                /* utterance_id needs to be 'TEXT' to preserve leading zeros used as id in node graph */
+                statement.executeUpdate("create table if not exists utterances ( " +
+                        "utterance_id TEXT primary key not null unique, " +
+                        "time_marker string not null, " +
+                        "code_id integer, " +
+                        "annotation string," +
+                        "  foreign key (code_id) references codes (code_id)" +
+                        ")");
+                statement.executeUpdate("create table if not exists ratings ( " +
+                        "rating_id integer primary key not null, " +
+                        "rating_name string not null unique," +
+                        "response_value integer not null" +
+                        ")");
+                statement.executeUpdate("create table if not exists utterances_ratings ( " +
+                        "utterance_id TEXT," +
+                        "rating_id integer, " +
+                        "  foreign key (utterance_id) references utterances (utterance_id)," +
+                        "  foreign key (rating_id) references ratings (rating_id)" +
+                        ")");
+                statement.executeUpdate("create table if not exists attributes ( name, value )");
+
+                addStartMsColumn(connection, statement);
+
+                // give database a version
+                if( performance ) {
+                    addPerformanceIndexes(statement);
+                } else {
+                    statement.executeUpdate("pragma user_version = " + SCHEMA_VERSION_BASE);
+                }
+            }
+
+            // assumes data file does not exists
+            PreparedStatement ps = connection.prepareStatement("insert into attributes ( name, value ) values ( ?, ? )");
+            ps.setString(1, SessionData.SessionAttributes.AUDIO_FILE_PATH.name());
+            ps.setString(2, audioFilePath);
+            ps.addBatch();
+            ps.setString(1, SessionData.SessionAttributes.GLOBAL_NOTES.name());
+            ps.setString(2, "");
+            ps.addBatch();
+            ps.executeBatch();
+            ps.close();
+
+
+            /*
+            Populate speakers table
+             */
+            ps = connection.prepareStatement("insert into speakers (speaker_id, speaker_name) values (?,?)");
+            for (MiscCode.Speaker speaker : MiscCode.Speaker.values() ) {
+                ps.setInt(1, speaker.ordinal());
+                ps.setString(2, speaker.name());
+                ps.addBatch();
+            }
+            ps.executeBatch();
+            ps.close();
+
+
+            /*
+            Populate MiscCode table
+             */
+            ps = connection.prepareStatement("insert into codes (code_id, code_name, speaker_id) values (?,?,?)");
+            for (MiscCode code : codes) {
+                ps.setInt(1, code.value);
+                ps.setString(2, code.name);
+                ps.setInt(3, code.getSpeaker().ordinal());
+                ps.addBatch();
+            }
+            ps.executeBatch();
+            ps.close();
+
+
+            /*
+            Populate Global Ratings table
+             */
+            ps = connection.prepareStatement("insert into ratings (rating_id, rating_name, response_value) values (?,?,?)");
+            for (GlobalCode rating : ratings) {
+                ps.setInt(1, rating.id);
+                ps.setString(2, rating.name);
+                ps.setInt(3, rating.defaultRating);
+                ps.addBatch();
+            }
+            ps.executeBatch();
+            ps.close();
+
+            return null;
+        });
+    }
+}
@@ -0,0 +1,265 @@
+/*
+This source code file is part of the CASAA Treatment Coding System Utility
+    Copyright (C) 2009  UNM CASAA
+
+    This program is free software: you can redistribute it and/or modify
+    it under the terms of the GNU General Public License as published by
+    the Free Software Foundation, either version 3 of the License, or
+    (at your option) any later version.
+
+    This program is distributed in the hope that it will be useful,
+    but WITHOUT ANY WARRANTY; without even the implied warranty of
+    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+    GNU General Public License for more details.
+
+    You should have received a copy of the GNU General Public License
+    along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package edu.unm.casaa.main;
+
+import org.sqlite.SQLiteDataSource;
+
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.concurrent.ArrayBlockingQueue;
+
+
+/**
+ * Session scoped pool of SQLite connections.
+ *
+ * One writer connection and a small number of reader connections are opened lazily and
+ * then kept for the life of the session so the session file is not reopened, and its
+ * pragmas are not reapplied, on every code insert. Each pooled connection caches its
+ * prepared statements by SQL text.
+ *
+ * The pool is owned by SessionData and must be closed when the session ends.
+ */
+public class SessionConnectionPool implements AutoCloseable {
+
+    /**
+     * Unit of work run against a pooled connection
+     * @param <T> result type
+     */
+    @FunctionalInterface
+    public interface Work<T> {
+        T apply(PooledConnection connection) throws SQLException;
+    }
+
+
+    private final SQLiteDataSource ds;
+    private final int maxReaders;
+
+    // single writer connection. Guarded by writerLock
+    private final Object writerLock = new Object();
+    private PooledConnection writer = null;
+
+    // reader connections not currently in use
+    private final ArrayBlockingQueue<PooledConnection> idleReaders;
+    // every reader connection opened so far. Guarded by this
+    private final ArrayList<PooledConnection> openReaders = new ArrayList<>();
+
+    private volatile boolean closed = false;
+
+
+    /**
+     * @param ds configured datasource for the session file
+     * @param maxReaders number of reader connections that may be open at once
+     */
+    public SessionConnectionPool(SQLiteDataSource ds, int maxReaders) {
+        this.ds = ds;
+        this.maxReaders = Math.max(1, maxReaders);
+        this.idleReaders = new ArrayBlockingQueue<>(this.maxReaders);
+    }
+
+
+    /**
+     * Run work on the writer connection inside a single transaction.
+     * Work is committed on success and rolled back on failure.
+     * @param work statements to run
+     * @return result of work
+     * @throws SQLException
+     */
+    public <T> T write(Work<T> work) throws SQLException {
+        synchronized (writerLock) {
+            if( writer == null ) {
+                writer = open();
+            }
+
+            Connection connection = writer.getConnection();
+            connection.setAutoCommit(false);
+            try {
+                T result = work.apply(writer);
+                connection.commit();
+                return result;
+            } catch (SQLException | RuntimeException e) {
+                connection.rollback();
+                throw e;
+            } finally {
+                connection.setAutoCommit(true);
+            }
+        }
+    }
+
+
+    /**
+     * Run work on one of the reader connections
+     * @param work queries to run
+     * @return result of work
+     * @throws SQLException
+     */
+    public <T> T read(Work<T> work) throws SQLException {
+        PooledConnection reader = borrowReader();
+        try {
+            return work.apply(reader);
+        } finally {
+            returnReader(reader);
+        }
+    }
+
+
+    /**
+     * Close every pooled connection. Readers in use are closed when returned.
+     */
+    @Override
+    public void close() throws SQLException {
+
+        if( closed ) {
+            return;
+        }
+        closed = true;
+
+        SQLException failure = null;
+
+        synchronized (writerLock) {
+            if( writer != null ) {
+                try {
+                    writer.close();
+                } catch (SQLException e) {
+                    failure = e;
+                }
+                writer = null;
+            }
+        }
+
+        PooledConnection reader;
+        while( (reader = idleReaders.poll()) != null ) {
+            try {
+                reader.close();
+            } catch (SQLException e) {
+                failure = (failure == null) ? e : failure;
+            }
+        }
+
+        if( failure != null ) {
+            throw failure;
+        }
+    }
+
+
+    public boolean isClosed() {
+        return closed;
+    }
+
+
+    /**
+     * Get an idle reader, open a new one if under the limit, or wait for one to be returned
+     */
+    private PooledConnection borrowReader() throws SQLException {
+
+        if( closed ) {
+            throw new SQLException("Session connection pool is closed");
+        }
+
+        PooledConnection reader = idleReaders.poll();
+        if( reader != null ) {
+            return reader;
+        }
+
+        synchronized (this) {
+            if( openReaders.size() < maxReaders ) {
+                reader = open();
+                openReaders.add(reader);
+                return reader;
+            }
+        }
+
+        try {
+            return idleReaders.take();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new SQLException("Interrupted waiting for session connection", e);
+        }
+    }
+
+
+    private void returnReader(PooledConnection reader) throws SQLException {
+        if( closed ) {
+            reader.close();
+        } else {
+            idleReaders.offer(reader);
+        }
+    }
+
+
+    private PooledConnection open() throws SQLException {
+        if( closed ) {
+            throw new SQLException("Session connection pool is closed");
+        }
+        return new PooledConnection(ds.getConnection());
+    }
+
+
+
+    /**
+     * A pooled connection with its prepared statement cache.
+     * Statements returned by prepare() belong to the cache and must not be closed by callers.
+     */
+    public static class PooledConnection {
+
+        private final Connection connection;
+        private final HashMap<String, PreparedStatement> statements = new HashMap<>();
+
+
+        private PooledConnection(Connection connection) {
+            this.connection = connection;
+        }
+
+
+        public Connection getConnection() {
+            return connection;
+        }
+
+
+        /**
+         * @param sql statement text
+         * @return cached statement for sql, prepared on first use
+         * @throws SQLException
+         */
+        public PreparedStatement prepare(String sql) throws SQLException {
+            PreparedStatement ps = statements.get(sql);
+            if( ps == null ) {
+                ps = connection.prepareStatement(sql);
+                statements.put(sql, ps);
+            } else {
+                ps.clearParameters();
+            }
+            return ps;
+        }
+
+
+        private void close() throws SQLException {
+            try {
+                for (PreparedStatement ps : statements.values()) {
+                    ps.close();
+                }
+                statements.clear();
+            } finally {
+                connection.close();
+            }
+        }
+    }
+}
@@ -19,6 +19,7 @@ This source code file is part of the CASAA Treatment Coding System Utility
 package edu.unm.casaa.main;
 
 
+
 import edu.unm.casaa.globals.GlobalCode;
 import edu.unm.casaa.misc.MiscCode;
 import edu.unm.casaa.misc.MiscDataItem;
@@ -26,30 +27,41 @@ import edu.unm.casaa.utterance.Utterance;
 import javafx.collections.FXCollections;
 import javafx.collections.ObservableMap;
 import javafx.util.Duration;
-import org.sqlite.SQLiteDataSource;
-import org.sqlite.SQLiteConfig;
 import java.io.*;
 import java.nio.file.Files;
-import java.sql.*;
+import java.sql.SQLException;
 import java.util.*;
 
 
 /**
  * Session Data Model
+ *
+ * Kept in memory; changes are passed on to the SessionStore of the session file.
  */
-public class SessionData
+public class SessionData implements AutoCloseable
 {
+    public static final int DEFAULT_PAGE_SIZE = 4096;
+
+    /*
+     * Opt-in performance schema for ".casaa" files: WAL journal, synchronous=NORMAL, secondary indexes and integer start times.
+     * Off by default because WAL needs shared memory, which network file systems may not provide.
+     * Applies to sessions created or opened after it is set.
+     */
+    private static volatile boolean performanceSchema = false;
+    /* page size for new performance schema files */
+    private static volatile int pageSize = DEFAULT_PAGE_SIZE;
+
     private File sessionFile;
-    private final SQLiteDataSource ds;
+    private final SessionStore store;
     private String audioFilePath = "";
 
     /**
-     * Store and manipulate list of utterances for session
+     * Store and manipulate list of utterances for session. Null when opened read-only.
      */
     public UtteranceList utteranceList;
 
     /**
-     * Store and manipulate list of global ratings for session
+     * Store and manipulate list of global ratings for session. Null when opened read-only.
      */
     public Ratings ratingsList;
 
@@ -63,478 +75,269 @@ public class SessionData
 
 
     /**
-     * Common initDB code
+     * One line of the session report: a global rating heading, or an utterance
      */
-    private SessionData () {
-        // database config
-        SQLiteConfig config = new SQLiteConfig();
-        // enable foreign key constraints
-        config.enforceForeignKeys(true);
-        // give database a version
-        config.setUserVersion(1);
-        // attach config to our datasource
-        ds = new SQLiteDataSource(config);
+    public static final class ReportRow {
+        /** rating of heading or of linked utterance; null in list of all utterances */
+        public final String ratingName;
+        public final int ratingValue;
+        /** null for rating headings */
+        public final Duration startTime;
+        public final String codeName;
+        public final String annotation;
+
+        ReportRow(String ratingName, int ratingValue, Duration startTime, String codeName, String annotation) {
+            this.ratingName = ratingName;
+            this.ratingValue = ratingValue;
+            this.startTime = startTime;
+            this.codeName = codeName;
+            this.annotation = (annotation == null) ? "" : annotation;
+        }
+
+        public boolean isRatingHeading() {
+            return startTime == null;
+        }
     }
 
 
     /**
-     * Initialize new session data
-     * @param storageFile session data file
-     * @param audioFile session audio file
-     * @throws IOException
+     * Session report content, from memory. Taken on the FX thread; the utterance list and ratings are
+     * copied so rows can be made on another thread. Rows of the global ratings list are made once, on
+     * first use, and rows of the list of all utterances as they are asked for.
      */
-    public SessionData(File storageFile, File audioFile) throws IOException {
+    public static final class ReportData {
+
+        public final HashMap< String, Double > summary;
+        public final String notes;
+        // time order
+        private final ArrayList< Utterance > utterances;
+        // rating headings by rating id, and rating ids in report order
+        private final HashMap< Integer, ReportRow > headings = new HashMap<>();
+        private final ArrayList< Integer > ratingOrder = new ArrayList<>();
+        private List< ReportRow > globalRows = null;
+
+        private ReportData(SessionData session) {
+            summary = session.utteranceList.getLiveSummary().toMap();
+            notes = session.ratingsList.getNotes();
+            utterances = new ArrayList<>(session.utteranceList.values());
+
+            Ratings ratings = session.ratingsList;
+            ratings.ratings.forEach((id, value) -> headings.put(id, new ReportRow(ratings.names.get(id), value, null, null, null)));
+            ratingOrder.addAll(headings.keySet());
+            ratingOrder.sort(Comparator.comparing((Integer id) -> headings.get(id).ratingName).thenComparing(id -> id));
+        }
 
-        this();
-        sessionFile = storageFile;
-        audioFilePath = audioFile.getAbsolutePath();
-        ds.setUrl("jdbc:sqlite:" + sessionFile.getAbsolutePath());
+        public int getUtteranceRowCount() {
+            return utterances.size();
+        }
 
-        try {
-            initDB();
-            utteranceList = new SessionData.UtteranceList();
-            ratingsList = new SessionData.Ratings();
-        } catch (SQLException e) {
-            // constructor can fail for basic IO or SQL
-            // convert SQLException as we don't need the SQL details here
-            throw new IOException(e);
+        /**
+         * @return rows of list of all utterances, in time order
+         */
+        public List< ReportRow > getUtteranceRows(int offset, int limit) {
+            ArrayList< ReportRow > rows = new ArrayList<>(limit);
+            for( Utterance utr : utterances.subList(offset, Math.min(offset + limit, utterances.size())) ) {
+                rows.add(new ReportRow(null, 0, utr.getStartTime(), utr.getMiscCode().name, utr.getAnnotation()));
+            }
+            return rows;
         }
-    }
 
+        public synchronized int getGlobalRowCount() {
+            return globalRows().size();
+        }
 
-    /**
-     * Initialize with existing session file
-     * @param storageFile session data file
-     * @throws IOException
-     */
-    public SessionData(File storageFile) throws IOException {
+        /**
+         * @return rows of list of global ratings; each rating heading is followed by its linked utterances in time order
+         */
+        public synchronized List< ReportRow > getGlobalRows(int offset, int limit) {
+            List< ReportRow > rows = globalRows();
+            return new ArrayList<>(rows.subList(offset, Math.min(offset + limit, rows.size())));
+        }
 
-        this();
-        sessionFile = storageFile;
-        ds.setUrl("jdbc:sqlite:" + sessionFile.getAbsolutePath());
-
-        // check file exists
-        if( sessionFileExists() ) {
-            // check file format
-            if( isSQLiteDataFile() ) {
-                // try loading file
-                try {
-                    audioFilePath = getAttribute(SessionAttributes.AUDIO_FILE_PATH);
-                    utteranceList = new SessionData.UtteranceList();
-                    ratingsList = new SessionData.Ratings();
-                } catch (SQLException e) {
-                    throw new IOException(e);
+        private List< ReportRow > globalRows() {
+            if( globalRows == null ) {
+                HashMap< Integer, ArrayList< ReportRow > > linked = new HashMap<>();
+                for( Utterance utr : utterances ) {
+                    for( int id : utr.getRatingIDs() ) {
+                        ReportRow heading = headings.get(id);
+                        if( heading != null ) {
+                            linked.computeIfAbsent(id, k -> new ArrayList<>())
+                                    .add(new ReportRow(heading.ratingName, heading.ratingValue, utr.getStartTime(), utr.getMiscCode().name, utr.getAnnotation()));
+                        }
+                    }
+                }
+
+                ArrayList< ReportRow > rows = new ArrayList<>(headings.size());
+                for( Integer id : ratingOrder ) {
+                    rows.add(headings.get(id));
+                    rows.addAll(linked.getOrDefault(id, new ArrayList<>()));
                 }
-            } else {
-                // wrong file format
-                throw new FileFormatException( "File is not correct format:\n"+sessionFile.getAbsolutePath() );
+                globalRows = rows;
             }
-        } else {
-            // file not found
-            throw new FileNotFoundException("File not found.");
+            return globalRows;
         }
     }
 
 
-
     /**
-     * Test if current session file is a SQLite database
+     * @return report content of this session, without reading the session file
      */
-    private boolean isSQLiteDataFile() throws IOException {
-
-        // Test selected file format by looking for "SQLite" at beginning of file
-        try ( FileReader textFileReader = new FileReader(sessionFile) ) {
-            char[] buffer = new char[6];
-            int numberOfCharsRead = textFileReader.read(buffer);
-            //System.out.println("XX" + String.valueOf(buffer, 0, numberOfCharsRead) + "XX");
-            return String.valueOf(buffer, 0, numberOfCharsRead).startsWith("SQLite");
-        }
+    public ReportData getReportData() {
+        return new ReportData(this);
     }
 
 
     /**
-     * Retrieve ratings from database
-     * @return HashMap of ratings
-     * @throws SQLException
+     * Initialize new session data
+     * @param storageFile session data file; its extension chooses the store
+     * @param audioFile session audio file
+     * @throws IOException
      */
-    private HashMap< Integer, Integer > getRatingsMap() throws SQLException {
-
-        HashMap< Integer, Integer > ratings = new HashMap<>();
+    public SessionData(File storageFile, File audioFile) throws IOException {
 
-        try (Connection connection = ds.getConnection();
-             Statement statement = connection.createStatement() ) {
+        sessionFile = storageFile;
+        audioFilePath = audioFile.getAbsolutePath();
+        store = SessionStore.create(sessionFile, audioFilePath, MiscCode.getRegistry().getCodes(), GlobalCode.getRegistry().getCodes());
+        load();
+    }
 
-            ResultSet rs = statement.executeQuery("select rating_id, response_value from ratings");
 
-            while (rs.next()) {
-                int ratingId = rs.getInt("rating_id");
-                int responseValue = rs.getInt("response_value");
-                ratings.put(ratingId, responseValue);
-            }
+    /**
+     * Initialize with existing session file
+     * @param storageFile session data file
+     * @throws IOException
+     */
+    public SessionData(File storageFile) throws IOException {
 
-            return ratings;
+        sessionFile = storageFile;
+        store = SessionStore.open(sessionFile);
+        try {
+            audioFilePath = store.getAttribute(SessionAttributes.AUDIO_FILE_PATH);
+        } catch (SQLException e) {
+            closeQuietly();
+            throw new IOException(e);
         }
+        load();
     }
 
 
     /**
-     * @param utterance_id
-     * @return array of global rating ids already linked to this utterance
-     * @throws SQLException
+     * Open existing session file for export and summaries only. Utterances and ratings are not
+     * loaded and no JavaFX collections are made; export streams utterances from the file.
+     * @param storageFile session data file
+     * @return session without utterance and ratings lists
+     * @throws IOException
      */
-    public ArrayList<Integer> getUtteranceRatingIDs(String utterance_id) throws SQLException {
-
-        ArrayList<Integer> selectedRatingIDs = new ArrayList<>();
-
-        try (Connection connection = ds.getConnection();
-             PreparedStatement ps = connection.prepareStatement("select ratings.rating_id from ratings left outer join utterances_ratings on utterances_ratings.rating_id = ratings.rating_id where utterances_ratings.utterance_id = ?;")
-        ) {
+    public static SessionData openReadOnly(File storageFile) throws IOException {
+        return new SessionData(storageFile, SessionStore.openReadOnly(storageFile));
+    }
 
-            ps.setString(1, utterance_id);
-            ResultSet rs = ps.executeQuery();
 
-            while (rs.next()) {
-                selectedRatingIDs.add(rs.getInt("rating_id"));
-            }
+    private SessionData(File storageFile, SessionStore readOnlyStore) throws IOException {
 
-            return selectedRatingIDs;
+        sessionFile = storageFile;
+        store = readOnlyStore;
+        try {
+            audioFilePath = store.getAttribute(SessionAttributes.AUDIO_FILE_PATH);
+        } catch (SQLException e) {
+            closeQuietly();
+            throw new IOException(e);
         }
     }
 
 
-
     /**
-     * @return
-     * @throws SQLException
+     * Read session into memory
+     * @throws IOException
      */
-    public ArrayList< TreeMap< String, String> > getGlobalUtterances() throws SQLException
-    {
-        String sql = "SELECT ratings.rating_id, ratings.rating_name, ratings.response_value, utterances.utterance_id, utterances.time_marker, utterances.annotation, codes.code_name " +
-                "FROM ratings " +
-                "LEFT JOIN utterances_ratings ON ratings.rating_id = utterances_ratings.rating_id " +
-                "LEFT JOIN utterances ON utterances.utterance_id = utterances_ratings.utterance_id " +
-                "LEFT JOIN codes ON utterances.code_id = codes.code_id " +
-                "ORDER BY ratings.rating_name, utterances.time_marker";
-
-        TreeMap< String, String> row;
-        ArrayList< TreeMap< String, String> > records = new ArrayList<>();
-
-
-        try ( Connection connection = ds.getConnection();
-              Statement statement = connection.createStatement()  ) {
-
-            ResultSet rs = statement.executeQuery(sql);
-            while (rs.next()) {
-                String rating_id = rs.getString("rating_id");
-                String rating_name = rs.getString("rating_name");
-                String rating_value = rs.getString("response_value");
-                String time_marker = rs.getString("time_marker");
-                String code_name = rs.getString("code_name");
-                String annotation = rs.getString("annotation");
-
-                row = new TreeMap<>();
-                row.put("rating_id", rating_id);
-                row.put("rating_name", rating_name);
-                row.put("rating_value", rating_value);
-                row.put("time_marker", time_marker);
-                row.put("code_name", code_name);
-                row.put("annotation", annotation);
-                records.add(row);
-            }
-
-            return records;
+    private void load() throws IOException {
+        try {
+            utteranceList = new SessionData.UtteranceList();
+            ratingsList = new SessionData.Ratings();
+        } catch (SQLException e) {
+            closeQuietly();
+            throw new IOException(e);
         }
     }
 
 
+
     /**
-     * @return A populated map of utterances
-     * @throws SQLException
+     * @param enabled use performance schema for sessions created or opened from now on
      */
-    private SortedMap< String, Utterance > getUtterances() throws SQLException
-    {
-        SortedMap< String, Utterance > utteranceTreeMap = new TreeMap<>();
-
-        try ( Connection connection = ds.getConnection();
-              Statement statement = connection.createStatement() ) {
+    public static void setPerformanceSchema(boolean enabled) {
+        performanceSchema = enabled;
+    }
 
-            ResultSet rs = statement.executeQuery("select utterances.*, codes.code_name, codes.speaker_id from utterances inner join codes on utterances.code_id = codes.code_id order by utterances.time_marker");
 
-            while (rs.next()) {
+    public static boolean isPerformanceSchema() {
+        return performanceSchema;
+    }
 
-                String utterance_id = rs.getString("utterance_id");
-                Duration startTime = Utils.parseDuration(rs.getString("time_marker"));
-                int codeId = rs.getInt("code_id");
-                String codeName = rs.getString("code_name");
-                int speakerId = rs.getInt("speaker_id");
-                String annotationText = rs.getString("annotation");
 
-                MiscCode code = new MiscCode(codeId, codeName, MiscCode.Speaker.values()[speakerId]);
-                MiscDataItem item = new MiscDataItem(Utils.formatID(startTime, codeId), startTime);
-                item.setMiscCode(code);
-                item.setAnnotation(annotationText);
+    /**
+     * @param bytes page size for new performance schema files. Power of two from 512 to 65536.
+     */
+    public static void setPageSize(int bytes) {
+        if( bytes < 512 || bytes > 65536 || Integer.bitCount(bytes) != 1 ) {
+            throw new IllegalArgumentException("Invalid page size: " + bytes);
+        }
+        pageSize = bytes;
+    }
 
-                utteranceTreeMap.put(utterance_id, item);
-            }
 
-            return utteranceTreeMap;
-        }
+    public static int getPageSize() {
+        return pageSize;
     }
 
 
 
     /**
-     * Provide a count of codes used in all utterances
-     * @return map<code_name, count>
+     * Release the session file. Call when the session ends.
      * @throws SQLException
      */
-    private HashMap< String, Integer > getCodeCounts() throws SQLException {
-        HashMap< String, Integer > mapCodeCount = new HashMap<>();
+    @Override
+    public void close() throws SQLException {
+        store.close();
+    }
+
 
-        try ( Connection connection = ds.getConnection();
-              Statement statement = connection.createStatement() ) {
+    /**
+     * Release store opened by a constructor that failed
+     */
+    private void closeQuietly() {
+        try {
+            store.close();
+        } catch (SQLException ignored) {
+        }
+    }
 
-            ResultSet rs = statement.executeQuery("select codes.code_name, count(codes.code_id) as code_count from codes join utterances on codes.code_id = utterances.code_id group by codes.code_name;");
 
-            while (rs.next()) {
+    /**
+     * Wait for changes to be written to the session file
+     * @throws SQLException first write failure since the last flush
+     */
+    public void flush() throws SQLException {
+        store.flush();
+    }
 
-                String code_name = rs.getString("code_name");
-                int code_count = rs.getInt("code_count");
-                mapCodeCount.put( code_name, code_count);
-            }
 
-            return mapCodeCount;
-        }
+    /**
+     * @param listener notified of pending write count and write failures, from any thread
+     */
+    public void setWriteListener(SessionWriteQueue.Listener listener) {
+        store.setWriteListener(listener);
     }
 
 
 
+    /**
+     * Summary scores for this session, evaluated by the current SummaryEngine
+     * @return map<metric_name, value>
+     * @throws SQLException
+     */
     public HashMap< String, Double > getCodeSummaryMap() throws SQLException {
-
-        HashMap<String, Integer> mapCodeCount = null;
-        // get counts
-        mapCodeCount = getCodeCounts();
-
-
-        /* create map to store summary scores*/
-        HashMap< String, Double > mapCodeSummary = new HashMap<>();
-        /* Simply get counts */
-        mapCodeSummary.put("SUM_ADP", mapCodeCount.getOrDefault("ADP", 0).doubleValue());
-        mapCodeSummary.put("SUM_ADW", mapCodeCount.getOrDefault("ADW", 0).doubleValue());
-        mapCodeSummary.put("SUM_AF", mapCodeCount.getOrDefault("AF", 0).doubleValue());
-        mapCodeSummary.put("SUM_CO", mapCodeCount.getOrDefault("CO", 0).doubleValue());
-        mapCodeSummary.put("SUM_DI", mapCodeCount.getOrDefault("DI", 0).doubleValue());
-        mapCodeSummary.put("SUM_EC", mapCodeCount.getOrDefault("EC", 0).doubleValue());
-        mapCodeSummary.put("SUM_GI", mapCodeCount.getOrDefault("GI", 0).doubleValue());
-        mapCodeSummary.put("SUM_RCP", mapCodeCount.getOrDefault("RCP", 0).doubleValue());
-        mapCodeSummary.put("SUM_RCW", mapCodeCount.getOrDefault("RCW", 0).doubleValue());
-        mapCodeSummary.put("SUM_ST", mapCodeCount.getOrDefault("ST", 0).doubleValue());
-        mapCodeSummary.put("SUM_RF", mapCodeCount.getOrDefault("RF", 0).doubleValue());
-        mapCodeSummary.put("SUM_SU", mapCodeCount.getOrDefault("SU", 0).doubleValue());
-        mapCodeSummary.put("SUM_WA", mapCodeCount.getOrDefault("WA", 0).doubleValue());
-
-        /* Calculate sums of different code combinations */
-
-        // sum(C+,R+,D+,A+,N+,TS+,O+)
-        mapCodeSummary.put("SUM_CHANGE_ETOH",
-                mapCodeCount.entrySet()
-                        .stream()
-                        .filter(e -> e.getKey().equals("C+") || e.getKey().equals("R+") || e.getKey().equals("D+") || e.getKey().equals("A+") || e.getKey().equals("N+") || e.getKey().equals("TS+") || e.getKey().equals("O+") )
-                        .mapToDouble(e -> e.getValue())
-                        .sum());
-
-        // sum(C-,R-,D-,A-,N-,TS-,O-)
-        mapCodeSummary.put("SUM_SUSTAIN_ETOH",
-                mapCodeCount.entrySet()
-                        .stream()
-                        .filter(e -> e.getKey().equals("C-") || e.getKey().equals("R-") || e.getKey().equals("D-") || e.getKey().equals("A-") || e.getKey().equals("N-") || e.getKey().equals("TS-") || e.getKey().equals("O-") )
-                        .mapToDouble(e -> e.getValue())
-                        .sum());
-
-        // sum(C+_m, R+_m, D+_m, A+_m, N+_m, TS+_m, O+_m)
-        mapCodeSummary.put("SUM_CHANGE_DRUG",
-                mapCodeCount.entrySet()
-                        .stream()
-                        .filter(e -> e.getKey().equals("C+_m") || e.getKey().equals("R+_m") || e.getKey().equals("D+_m") || e.getKey().equals("A+_m") || e.getKey().equals("N+_m") || e.getKey().equals("TS+_m") || e.getKey().equals("O+_m") )
-                        .mapToDouble(e -> e.getValue())
-                        .sum());
-
-        // sum(C-_m, R-_m, D-_m, A-_m, N-_m, TS-_m, O-_m)
-        mapCodeSummary.put("SUM_SUSTAIN_DRUG",
-                mapCodeCount.entrySet()
-                        .stream()
-                        .filter(e -> e.getKey().equals("C-_m") || e.getKey().equals("R-_m") || e.getKey().equals("D-_m") || e.getKey().equals("A-_m") || e.getKey().equals("N-_m") || e.getKey().equals("TS-_m") || e.getKey().equals("O-_m") )
-                        .mapToDouble(e -> e.getValue())
-                        .sum());
-
-        // sum(ADP,AF,EC,RCP,SU)
-        mapCodeSummary.put("SUM_MICO",
-                mapCodeCount.entrySet()
-                        .stream()
-                        .filter(e -> e.getKey().equals("ADP") || e.getKey().equals("AF") || e.getKey().equals("EC") || e.getKey().equals("RCP") || e.getKey().equals("SU") )
-                        .mapToDouble(e -> e.getValue())
-                        .sum());
-
-        // sum(ADW,CO,DI,RCW,WA)
-        mapCodeSummary.put("SUM_MIIN",
-                mapCodeCount.entrySet()
-                        .stream()
-                        .filter(e -> e.getKey().equals("ADW") || e.getKey().equals("CO") || e.getKey().equals("DI") || e.getKey().equals("RCW") || e.getKey().equals("WA") )
-                        .mapToDouble(e -> e.getValue())
-                        .sum());
-
-        // sum(OQ-,OQ0,OQ+)
-        mapCodeSummary.put("SUM_OQ",
-                mapCodeCount.entrySet()
-                        .stream()
-                        .filter(e -> e.getKey().equals("OQ-") || e.getKey().equals("OQ0") || e.getKey().equals("OQ+") )
-                        .mapToDouble(e -> e.getValue())
-                        .sum());
-
-        // sum(CQ-,CQ0,CQ+)
-        mapCodeSummary.put("SUM_CQ",
-                mapCodeCount.entrySet()
-                        .stream()
-                        .filter(e -> e.getKey().equals("CQ-") || e.getKey().equals("CQ0") || e.getKey().equals("CQ+") )
-                        .mapToDouble(e -> e.getValue())
-                        .sum());
-
-
-        // sum(CR+,CR-,CR0,CR+/-)
-        mapCodeSummary.put("SUM_CR",
-                mapCodeCount.entrySet()
-                        .stream()
-                        .filter(e -> e.getKey().equals("CR+") || e.getKey().equals("CR-") || e.getKey().equals("CR0") || e.getKey().equals("CR+/-") )
-                        .mapToDouble(e -> e.getValue())
-                        .sum());
-
-        // sum(CQ-,CQ0,CQ+,OQ-,OQ0,OQ+)
-        mapCodeSummary.put("SUM_QUESTION",
-                mapCodeCount.entrySet()
-                        .stream()
-                        .filter(e -> e.getKey().equals("CQ-") || e.getKey().equals("CQ0") || e.getKey().equals("CQ+") || e.getKey().equals("OQ-") || e.getKey().equals("OQ0") || e.getKey().equals("OQ+") )
-                        .mapToDouble(e -> e.getValue())
-                        .sum());
-
-        // sum(SR+,SR-,SR0,SR+/-)
-        mapCodeSummary.put("SUM_SIMPLE",
-                mapCodeCount.entrySet()
-                        .stream()
-                        .filter(e -> e.getKey().equals("SR+") || e.getKey().equals("SR-") || e.getKey().equals("SR0") || e.getKey().equals("SR+/-") )
-                        .mapToDouble(e -> e.getValue())
-                        .sum());
-
-        // sum(SR+,SR-,SR0,SR+/-,CR+,CR-,CR0,CR+/-)
-        mapCodeSummary.put("SUM_REFLECTION",
-                mapCodeCount.entrySet()
-                        .stream()
-                        .filter(e -> e.getKey().equals("SR+") || e.getKey().equals("SR-") || e.getKey().equals("SR0") || e.getKey().equals("SR+/-") || e.getKey().equals("CR+") || e.getKey().equals("CR-") || e.getKey().equals("CR0") || e.getKey().equals("CR+/-") )
-                        .mapToDouble(e -> e.getValue())
-                        .sum());
-
-        // sum(Rem+, rem+_m)
-        mapCodeSummary.put("SUM_REM_POS",
-                mapCodeCount.entrySet()
-                        .stream()
-                        .filter(e -> e.getKey().equals("Rem+") || e.getKey().equals("Rem+_m") )
-                        .mapToDouble(e -> e.getValue())
-                        .sum());
-
-        // sum(Rem-, rem-_m)
-        mapCodeSummary.put("SUM_REM_NEG",
-                mapCodeCount.entrySet()
-                        .stream()
-                        .filter(e -> e.getKey().equals("Rem-") || e.getKey().equals("Rem-_m") )
-                        .mapToDouble(e -> e.getValue())
-                        .sum());
-
-        // sum(FN, rem+, rem-, rem+_m, rem-_m)
-        mapCodeSummary.put("SUM_FN_RM",
-                mapCodeCount.entrySet()
-                        .stream()
-                        .filter(e -> e.getKey().equals("FN") || e.getKey().equals("Rem+") || e.getKey().equals("Rem-") || e.getKey().equals("Rem+_m") || e.getKey().equals("Rem-_m") )
-                        .mapToDouble(e -> e.getValue())
-                        .sum());
-
-        // sum(SR+, CR+)
-        mapCodeSummary.put("SUM_REF_CT",
-                mapCodeCount.entrySet()
-                        .stream()
-                        .filter(e -> e.getKey().equals("SR+") || e.getKey().equals("CR+") )
-                        .mapToDouble(e -> e.getValue())
-                        .sum());
-
-        // sum(SR-, CR-)
-        mapCodeSummary.put("SUM_REF_ST",
-                mapCodeCount.entrySet()
-                        .stream()
-                        .filter(e -> e.getKey().equals("SR-") || e.getKey().equals("CR-") )
-                        .mapToDouble(e -> e.getValue())
-                        .sum());
-
-        // client_utt = sum( C+	R+	D+	A+	N+	TS+	O+	C-	R-	D-	A-	N-	TS-	O-	C+_m	R+_m	D+_m	A+_m	N+_m	TS+_m	O+_m	C-_m	R-_m	D-_m	A-_m	N-_m	TS-_m	O-_m	FN, Rem+, Rem-, Rem+_m, Rem-_m).
-        mapCodeSummary.put("SUM_CLIENT_UTT",
-                mapCodeCount.entrySet()
-                        .stream()
-                        .filter(e -> e.getKey().equals("C+") || e.getKey().equals("R+") || e.getKey().equals("D+") || e.getKey().equals("A+") || e.getKey().equals("N+") || e.getKey().equals("TS+") || e.getKey().equals("O+") || e.getKey().equals("C-") || e.getKey().equals("R-") || e.getKey().equals("D-") || e.getKey().equals("A-") || e.getKey().equals("N-") || e.getKey().equals("TS-") || e.getKey().equals("O-") || e.getKey().equals("C+_m") || e.getKey().equals("R+_m") || e.getKey().equals("D+_m") || e.getKey().equals("A+_m") || e.getKey().equals("N+_m") || e.getKey().equals("TS+_m") || e.getKey().equals("O+_m") || e.getKey().equals("C-_m") || e.getKey().equals("R-_m") || e.getKey().equals("D-_m") || e.getKey().equals("A-_m") || e.getKey().equals("N-_m") || e.getKey().equals("TS-_m") || e.getKey().equals("O-_m") || e.getKey().equals("") || e.getKey().equals("FN") || e.getKey().equals("Rem+") || e.getKey().equals("Rem-") || e.getKey().equals("Rem+_m") || e.getKey().equals("Rem-_m") )
-                        .mapToDouble(e -> e.getValue())
-                        .sum());
-
-        // ther_utt = sum(ADP	ADW	AF	CO	DI	EC	FA	FI	GI	CQ-	CQ0	CQ+	OQ-	OQ0	OQ+	RCP	RCW	SR+	SR-	SR0	SR+/-	CR+	CR-	CR0	CR+/-	RF	ST	SU	WA, p)
-        mapCodeSummary.put("SUM_THER_UTT",
-                mapCodeCount.entrySet()
-                        .stream()
-                        .filter(e -> e.getKey().equals("ADP") || e.getKey().equals("ADW") || e.getKey().equals("AF") || e.getKey().equals("CO") || e.getKey().equals("DI") || e.getKey().equals("EC") || e.getKey().equals("FA") || e.getKey().equals("FI") || e.getKey().equals("GI") || e.getKey().equals("CQ-") || e.getKey().equals("CQ0") || e.getKey().equals("CQ+") || e.getKey().equals("OQ-") || e.getKey().equals("OQ0") || e.getKey().equals("OQ+") || e.getKey().equals("RCP") || e.getKey().equals("RCW") || e.getKey().equals("SR+") || e.getKey().equals("SR-") || e.getKey().equals("SR0") || e.getKey().equals("SR+/-") || e.getKey().equals("CR+") || e.getKey().equals("CR-") || e.getKey().equals("CR0") || e.getKey().equals("CR+/-") || e.getKey().equals("RF") || e.getKey().equals("ST") || e.getKey().equals("SU") || e.getKey().equals("WA") || e.getKey().equals("P") )
-                        .mapToDouble(e -> e.getValue())
-                        .sum());
-
-
-        /* calculate sums by group */
-
-        // sum(adp to FN, Rem+, Rem-, Rem+_m, Rem-_m, p)
-        mapCodeSummary.put("SUM_TOTAL_UTT", (mapCodeSummary.get("SUM_THER_UTT") + mapCodeSummary.get("SUM_CLIENT_UTT")) );
-        // Change = sum(change_etoh, change_drug)
-        mapCodeSummary.put("SUM_CHANGE", (mapCodeSummary.get("SUM_CHANGE_ETOH") + mapCodeSummary.get("SUM_CHANGE_DRUG")) );
-        // Sustain = sum(sustain_etoh, sustain_drug).
-        mapCodeSummary.put("SUM_SUSTAIN", (mapCodeSummary.get("SUM_SUSTAIN_ETOH") + mapCodeSummary.get("SUM_SUSTAIN_DRUG")) );
-        // change_rem = sum(change, Rem+, rem+_m).
-        mapCodeSummary.put("SUM_CHANGE_REM", (mapCodeSummary.get("SUM_CHANGE") + mapCodeSummary.get("SUM_REM_POS")) );
-        // sustain_rem = sum(sustain, Rem-, rem-_m).
-        mapCodeSummary.put("SUM_SUSTAIN_REM", (mapCodeSummary.get("SUM_SUSTAIN") + mapCodeSummary.get("SUM_REM_NEG")) );
-
-        /* calculate percentage scores */
-        Double setVal = 0.0;
-
-        // pmic = mico/sum(mico, miin).
-        setVal = ((mapCodeSummary.get("SUM_MICO") / (mapCodeSummary.get("SUM_MICO") + mapCodeSummary.get("SUM_MIIN")))*100);
-        mapCodeSummary.put("PCT_MIC", setVal.isNaN() || setVal.isInfinite() ? 0.0 : setVal);
-        // pct_etoh = change_etoh/sum(change_etoh,sustain_etoh).
-        setVal = ((mapCodeSummary.get("SUM_CHANGE_ETOH") / (mapCodeSummary.get("SUM_CHANGE_ETOH") + mapCodeSummary.get("SUM_SUSTAIN_ETOH")))*100);
-        mapCodeSummary.put("PCT_ETOH", setVal.isNaN() || setVal.isInfinite() ? 0.0 : setVal);
-        // pct_drug = change_drug/sRATIO_THER2CLIum(change_drug, sustain_drug).
-        setVal = ((mapCodeSummary.get("SUM_CHANGE_DRUG") / (mapCodeSummary.get("SUM_CHANGE_DRUG") + mapCodeSummary.get("SUM_SUSTAIN_DRUG")))*100);
-        mapCodeSummary.put("PCT_DRUG", setVal.isNaN() || setVal.isInfinite() ? 0.0 : setVal);
-        // pct = change/sum(change, sustain).
-        setVal = ((mapCodeSummary.get("SUM_CHANGE") / (mapCodeSummary.get("SUM_CHANGE") + mapCodeSummary.get("SUM_SUSTAIN")))*100);
-        mapCodeSummary.put("PCT", setVal.isNaN() || setVal.isInfinite() ? 0.0 : setVal);
-        // pcr=sum(CR+,CR_,CR0,CR+/-)/sum(SR+,SR-,SR0,SR+/-,CR+,CR-,CR0,CR+/-)
-        setVal = ((mapCodeSummary.get("SUM_CR") / mapCodeSummary.get("SUM_REFLECTION")))*100;
-        mapCodeSummary.put("PCT_PCR", setVal.isNaN() || setVal.isInfinite() ? 0.0 : setVal);
-        // poq = sum(OQ-,OQ0,OQ+)/sum(CQ-,CQ0,CQ+,OQ-,OQ0,OQ+).
-        setVal = ((mapCodeSummary.get("SUM_OQ") / mapCodeSummary.get("SUM_QUESTION")))*100;
-        mapCodeSummary.put("PCT_POQ", setVal.isNaN() || setVal.isInfinite() ? 0.0 : setVal);
-
-        // sr2cr = sum(SR+,SR-,SR0,SR+/-)/sum(CR+,CR-,CR0,CR+/-).
-        setVal = (mapCodeSummary.get("SUM_SIMPLE") / mapCodeSummary.get("SUM_CR"));
-        mapCodeSummary.put("RATIO_SR2CR", setVal.isNaN() || setVal.isInfinite() ? 0.0 : setVal);
-        // r2q=sum(SR+,SR-,SR0,SR+/-,CR+,CR-,CR0,CR+/-)/sum(CQ-,CQ0,CQ+,OQ-,OQ0,OQ+)
-        setVal = (mapCodeSummary.get("SUM_REFLECTION") / mapCodeSummary.get("SUM_QUESTION"));
-        mapCodeSummary.put("RATIO_R2Q", setVal.isNaN() || setVal.isInfinite() ? 0.0 : setVal);
-        // ther2cli = ther_utt/client_utt.
-        setVal = (mapCodeSummary.get("SUM_THER_UTT") / mapCodeSummary.get("SUM_CLIENT_UTT"));
-        mapCodeSummary.put("RATIO_THER2CLI", setVal.isNaN() || setVal.isInfinite() ? 0.0 : setVal);
-
-        return mapCodeSummary;
+        return SummaryEngine.getCurrent().evaluate(store.getCodeCounts());
     }
 
 
@@ -545,26 +348,11 @@ public class SessionData
      * @throws SQLException
      */
     public void setUtteranceList(List<Utterance> utteranceList) throws SQLException {
-        String sql = "insert into utterances (utterance_id, code_id, time_marker, annotation) values (?,?,?,?)";
-
-        try ( Connection connection = ds.getConnection();
-              PreparedStatement ps = connection.prepareStatement(sql)  )
-        {
-            connection.setAutoCommit(false);
-            for (Utterance utr : utteranceList) {
-                ps.setString(1, utr.getID());
-                ps.setInt(2, utr.getMiscCode().value);
-                ps.setString(3, Utils.formatDuration(utr.getStartTime()));
-                ps.setString(4, utr.getAnnotation());
-                ps.addBatch();
-            }
 
-            ps.executeBatch();
-            // apply changes
-            connection.commit();
-        }
+        store.addUtterances(utteranceList);
+        flush();
 
-        /* reload from now populated db */
+        /* reload from now populated store */
         this.utteranceList = new SessionData.UtteranceList();
 
     }
@@ -573,34 +361,16 @@ public class SessionData
 
     public void setRatingsList(HashMap<String, Integer> ratingsMap) throws SQLException {
         for (Map.Entry<String, Integer> entry : ratingsMap.entrySet()) {
-            addRating(entry.getKey(), entry.getValue());
+            store.addRating(entry.getKey(), entry.getValue());
         }
+        flush();
 
-        /* reload from now populated db */
+        /* reload from now populated store */
         this.ratingsList = new SessionData.Ratings();
 
     }
 
 
-    /**
-     * @param attribute SessionAttribute to update
-     * @param value new value
-     * @throws SQLException
-     */
-    private void setAttribute(SessionAttributes attribute, String value) throws SQLException
-    {
-        String sql = "update attributes set value = ? where name = ?";
-
-        try ( Connection connection = ds.getConnection();
-              PreparedStatement ps = connection.prepareStatement(sql)  )
-        {
-            ps.setString(1, value);
-            ps.setString(2, attribute.name());
-            ps.executeUpdate();
-        }
-    }
-
-
     /**
      * Audio file path associated with this session
      * @return full file path
@@ -615,7 +385,7 @@ public class SessionData
      */
     public void setAudioFilePath(String filePath) throws SQLException {
         this.audioFilePath = filePath;
-        setAttribute(SessionAttributes.AUDIO_FILE_PATH, this.audioFilePath);
+        store.setAttribute(SessionAttributes.AUDIO_FILE_PATH, this.audioFilePath);
     }
 
 
@@ -638,38 +408,15 @@ public class SessionData
      */
     public String getAttribute(SessionAttributes sessionAttribute) throws SQLException
     {
-        String sql = "select value from attributes where name = ?";
-
-        try ( Connection connection = ds.getConnection();
-              PreparedStatement ps = connection.prepareStatement(sql) )
-        {
-            ps.setString(1, sessionAttribute.name());
-            ResultSet rs = ps.executeQuery();
-
-            if( rs.next() ) {
-                return rs.getString("value");
-            } else {
-                return "";
-            }
-        }
+        return store.getAttribute(sessionAttribute);
     }
 
 
 
 
     public String getUtteranceAnnotationText(String utterance_id) throws SQLException {
-        try ( Connection connection = ds.getConnection();
-              PreparedStatement ps = connection.prepareStatement("select annotation from utterances where utterance_id = ?") ) {
-
-            // annotation text
-            ps.setString(1, utterance_id);
-            ResultSet rs = ps.executeQuery();
-            if( rs.next() ) {
-                return rs.getString("annotation");
-            } else {
-                return "";
-            }
-        }
+        Utterance utterance = this.utteranceList.get(utterance_id);
+        return (utterance == null) ? "" : utterance.getAnnotation();
     }
 
 
@@ -677,290 +424,16 @@ public class SessionData
 
     public void annotateUtterance(String utterance_id, String annotationText, ArrayList<GlobalCode> globalsList) throws SQLException
     {
-        try ( Connection connection = ds.getConnection();
-              PreparedStatement psU = connection.prepareStatement("update utterances set annotation = ? where utterance_id = ?");
-              PreparedStatement psI = connection.prepareStatement("INSERT INTO utterances_ratings (utterance_id, rating_id) VALUES (?, ?)");
-              Statement statement = connection.createStatement()
-            ) {
-
-            /* disable autocommit */
-            connection.setAutoCommit(false);
-
-            // TODO: update the map instance here automatically?
-            // there is probably a better design pattern for doing this where when the instance gets updated the persistence is updated
-            this.utteranceList.get(utterance_id).setAnnotation(annotationText);
-
-            //System.out.println("--- annotateUtterance: Update annotation string:"+utterance_id);
-            /* handle annotation text */
-            psU.setString(1, annotationText);
-            psU.setString(2, utterance_id);
-            psU.executeUpdate();
-
-            /* clear all utterance to rating links */
-            //System.out.println("--- annotateUtterance: Clear rating links:"+utterance_id);
-            statement.execute("delete from utterances_ratings where utterance_id = '"+ utterance_id + "'");
-
-            /* add selected utterance to rating links */
-            for (GlobalCode gc : globalsList ) {
-                psI.setString(1, utterance_id);
-                psI.setInt(2, gc.id);
-                psI.addBatch();
-            }
-            //System.out.println("--- annotateUtterance: Insert rating links:"+utterance_id);
-            psI.executeBatch();
-
-            //System.out.println("--- annotateUtterance: commit:"+utterance_id);
-            // apply changes
-            connection.commit();
-        }
-    }
-
-
-
-    /**
-     * Remove utterance from datasource
-     * @param utterance_id
-     * @throws SQLException
-     */
-    private void removeUtterance(String utterance_id) throws SQLException
-    {
-        //System.out.println("--- Remove utterance:" + utterance_id);
-        try ( Connection connection = ds.getConnection();
-              PreparedStatement ps1 = connection.prepareStatement("delete from utterances_ratings where utterance_id = ?");
-              PreparedStatement ps2 = connection.prepareStatement("delete from utterances where utterance_id = ?");
-              Statement statement = connection.createStatement()
-            ) {
-
-            /* disable autocommit */
-            connection.setAutoCommit(false);
-
-            /* clear all utterance to rating links */
-            ps1.setString(1, utterance_id);
-            ps1.executeUpdate();
-
-            /* delete utterance */
-            ps2.setString(1, utterance_id);
-            ps2.executeUpdate();
-
-            // apply changes
-            connection.commit();
-
-
-            /*
-            Provides an accounting of utterances for debugging
-
-            System.out.println("--- Remaining Utterances:");
-            ResultSet rs = statement.executeQuery("select utterances.*, codes.code_name, codes.speaker_id from utterances inner join codes on utterances.code_id = codes.code_id order by utterances.time_marker");
-
-            while (rs.next()) {
-                String utt_id = rs.getString("utterance_id");
-                String startTime = rs.getString("time_marker");
-                String codeName = rs.getString("code_name");
-                System.out.println(String.format("%s - %s - %s", utt_id, startTime, codeName));
-            }
-             */
-
-        }
-    }
-
-
-    /**
-     * Insert utterance into datasource
-     * @param utterance_id
-     * @param code_id
-     * @param time_marker
-     * @param annotation
-     * @throws SQLException
-     */
-    private void addUtterance(String utterance_id, int code_id, String time_marker, String annotation) throws SQLException
-    {
+        Utterance utterance = this.utteranceList.get(utterance_id);
+        utterance.setAnnotation(annotationText);
 
-        /*
-        utterance accounting
+        int[] ratingIDs = globalsList.stream().mapToInt(gc -> gc.id).toArray();
+        utterance.setRatingIDs(ratingIDs);
 
-        System.out.println( String.format("--- Add utterance: %s - %s - %s", utterance_id, time_marker, annotation) );
-         */
-
-        String sql = "insert into utterances (utterance_id, code_id, time_marker, annotation) values (?,?,?,?)";
-
-        try ( Connection connection = ds.getConnection();
-              PreparedStatement ps = connection.prepareStatement(sql) )
-        {
-            ps.setString(1, utterance_id);
-            ps.setInt(2, code_id);
-            ps.setString(3, time_marker);
-            ps.setString(4, annotation);
-            ps.executeUpdate();
-        }
+        store.annotateUtterance(utterance_id, annotationText, ratingIDs);
     }
 
 
-    private void addRating(String rating_name, int response_value) throws SQLException
-    {
-
-        String sql = "select rating_id from ratings where rating_name = ?";
-
-        int rating_id = -1;
-
-        try ( Connection connection = ds.getConnection();
-              PreparedStatement ps = connection.prepareStatement(sql) )
-        {
-            ps.setString(1, rating_name);
-            ResultSet rs = ps.executeQuery();
-
-            if( rs.next() ) {
-                rating_id = rs.getInt("rating_id");
-            }
-        }
-
-
-        if( rating_id == -1 ){
-
-            sql = "insert into ratings (rating_name, response_value) values (?,?)";
-
-            try ( Connection connection = ds.getConnection();
-                  PreparedStatement ps = connection.prepareStatement(sql) )
-            {
-                ps.setString(1, rating_name);
-                ps.setInt(2, response_value);
-                ps.executeUpdate();
-            }
-        } else {
-          setRatingResponseValue(rating_id, response_value);
-        }
-    }
-
-
-
-    /**
-     * Set global rating value in datasource
-     * @param rating_id
-     * @param response_value
-     * @throws SQLException
-     */
-    private void setRatingResponseValue(int rating_id, int response_value) throws SQLException
-    {
-        String sql = "update ratings set response_value = ? where rating_id = ?";
-
-        try ( Connection connection = ds.getConnection();
-              PreparedStatement ps = connection.prepareStatement(sql)
-        )
-        {
-            ps.setInt(1, response_value);
-            ps.setInt(2, rating_id);
-            ps.executeUpdate();
-        }
-    }
-
-
-    /**
-     * Initialize datasource schema and default values
-     * Codes and their defaults initialized from UserConfig
-     * @throws SQLException
-     */
-    private void initDB() throws SQLException
-    {
-
-        try ( Connection connection = ds.getConnection();
-              Statement statement = connection.createStatement() )
-        {
-
-            /*
-            Create schema
-             */
-            statement.executeUpdate("create table if not exists speakers ( " +
-                    "speaker_id integer primary key not null, " +
-                    "speaker_name string not null unique" +
-                    ")");
-            statement.executeUpdate("create table if not exists codes ( " +
-                    "code_id integer primary key not null, " +
-                    "code_name string not null unique, " +
-                    "speaker_id integer, " +
-                    "  foreign key (speaker_id) references speakers (speaker_id)" +
-                    ")");
-            /* utterance_id needs to be 'TEXT' to preserve leading zeros used as id in node graph */
-            statement.executeUpdate("create table if not exists utterances ( " +
-                    "utterance_id TEXT primary key not null unique, " +
-                    "time_marker string not null, " +
-                    "code_id integer, " +
-                    "annotation string," +
-                    "  foreign key (code_id) references codes (code_id)" +
-                    ")");
-            statement.executeUpdate("create table if not exists ratings ( " +
-                    "rating_id integer primary key not null, " +
-                    "rating_name string not null unique," +
-                    "response_value integer not null" +
-                    ")");
-            statement.executeUpdate("create table if not exists utterances_ratings ( " +
-                    "utterance_id TEXT," +
-                    "rating_id integer, " +
-                    "  foreign key (utterance_id) references utterances (utterance_id)," +
-                    "  foreign key (rating_id) references ratings (rating_id)" +
-                    ")");
-            statement.executeUpdate("create table if not exists attributes ( name, value )");
-            // assumes data file does not exists
-            statement.executeUpdate("insert into attributes ( name, value ) values ( '" + SessionAttributes.AUDIO_FILE_PATH + "', '" + this.audioFilePath + "')");
-            statement.executeUpdate("insert into attributes ( name, value ) values ('" + SessionAttributes.GLOBAL_NOTES + "', '')");
-
-
-            /*
-            Populate speakers table
-             */
-            connection.setAutoCommit(false);
-            PreparedStatement ps = connection.prepareStatement("insert into speakers (speaker_id, speaker_name) values (?,?)");
-            for (MiscCode.Speaker speaker : MiscCode.Speaker.values() ) {
-                ps.setInt(1, speaker.ordinal());
-                ps.setString(2, speaker.name());
-                ps.addBatch();
-            }
-            ps.executeBatch();
-            // apply changes
-            connection.commit();
-
-
-
-            /*
-            Populate MiscCode table
-            add codes from user environment
-             */
-            connection.setAutoCommit(false);
-            ps = connection.prepareStatement("insert into codes (code_id, code_name, speaker_id) values (?,?,?)");
-            ListIterator<MiscCode> miscCodeListIterator = MiscCode.getIterator();
-            while(miscCodeListIterator.hasNext()) {
-                MiscCode code = miscCodeListIterator.next();
-                ps.setInt(1, code.value);
-                ps.setString(2, code.name);
-                ps.setInt(3, code.getSpeaker().ordinal());
-                ps.addBatch();
-            }
-            //
-            ps.executeBatch();
-            // apply changes
-            connection.commit();
-
-
-            /*
-            Populate Global Ratings table
-            add codes from user environment
-             */
-            connection.setAutoCommit(false);
-            ps = connection.prepareStatement("insert into ratings (rating_id, rating_name, response_value) values (?,?,?)");
-            ListIterator<GlobalCode> globalCodeListIterator = GlobalCode.getIterator();
-            while(globalCodeListIterator.hasNext()) {
-                GlobalCode rating = globalCodeListIterator.next();
-                ps.setInt(1, rating.id);
-                ps.setString(2, rating.name);
-                ps.setInt(3, rating.defaultRating);
-                ps.addBatch();
-            }
-            //
-            ps.executeBatch();
-            // apply changes
-            connection.commit();
-
-        }
-    }
-
     public boolean sessionFileExists() {
         return sessionFile.canRead();
     }
@@ -970,10 +443,6 @@ public class SessionData
 
 
 
-
-
-
-
     /**
      * Session Utterance Markers
      */
@@ -984,23 +453,33 @@ public class SessionData
          */
         private SortedMap< String, Utterance > utteranceTreeMap = new TreeMap<>();
         private ObservableMap<String, Utterance> observableMap;
+        /* summary scores kept current as utterances are added and removed */
+        private LiveSummary liveSummary;
 
         /**
          * Constructor initializes utterance map
          * @throws SQLException
          */
         private UtteranceList() throws SQLException {
-            utteranceTreeMap.putAll(getUtterances());
+            utteranceTreeMap.putAll(store.loadUtterances());
             observableMap = FXCollections.observableMap(utteranceTreeMap);
+            liveSummary = new LiveSummary(SummaryEngine.getCurrent(), utteranceTreeMap.values());
         }
 
         /**
          * @return observable version of utterance map for listeners
          */
-        public ObservableMap getObservableMap() {
+        public ObservableMap<String, Utterance> getObservableMap() {
             return observableMap;
         }
 
+        /**
+         * @return summary scores for the utterances in this list
+         */
+        public LiveSummary getLiveSummary() {
+            return liveSummary;
+        }
+
 
         /**
          * Add new utterance
@@ -1009,9 +488,14 @@ public class SessionData
          */
         public void add( Utterance utr ) throws SQLException {
             // update local map
-            observableMap.put( Utils.formatID(utr.getStartTime(), utr.getMiscCode().value), utr);
+            Utterance replaced = observableMap.put( Utils.formatID(utr.getStartTime(), utr.getMiscCode().value), utr);
+            // update live summary
+            if( replaced != null ) {
+                liveSummary.remove(replaced);
+            }
+            liveSummary.add(utr);
             // update persistence
-            addUtterance(utr.getID(), utr.getMiscCode().value, Utils.formatDuration(utr.getStartTime()), "");
+            store.addUtterance(utr.getID(), utr.getMiscCode().value, utr.getStartTime(), "");
         }
 
 
@@ -1021,10 +505,10 @@ public class SessionData
         public void removeLast() throws SQLException{
             if( !utteranceTreeMap.isEmpty() ) {
                 // update map
-                observableMap.remove(utteranceTreeMap.lastKey());
+                Utterance utr = observableMap.remove(utteranceTreeMap.lastKey());
+                liveSummary.remove(utr);
                 // update persistence
-                Utterance utr = utteranceTreeMap.get(utteranceTreeMap.lastKey());
-                removeUtterance(utr.getID());
+                store.removeUtterance(utr.getID());
             }
         }
 
@@ -1034,14 +518,16 @@ public class SessionData
          * @throws SQLException
          */
         public void remove(Utterance utr) throws SQLException {
-            observableMap.remove(utr.getID());
-            removeUtterance(utr.getID());
+            remove(utr.getID());
         }
 
 
         public void remove(String ID) throws SQLException {
-            observableMap.remove(ID);
-            removeUtterance(ID);
+            Utterance removed = observableMap.remove(ID);
+            if( removed != null ) {
+                liveSummary.remove(removed);
+            }
+            store.removeUtterance(ID);
         }
 
 
@@ -1087,7 +573,9 @@ public class SessionData
     public class Ratings {
 
         // list for all ratings
-        private HashMap< Integer, Integer > ratings;
+        private final HashMap< Integer, Integer > ratings = new HashMap<>();
+        // rating names as stored in session, by rating id
+        private final HashMap< Integer, String > names = new HashMap<>();
         // notes field for ratings overall. Could just be session notes at this point.
         private String notes;
 
@@ -1096,8 +584,8 @@ public class SessionData
          * @throws SQLException
          */
         private Ratings() throws SQLException {
-            ratings = getRatingsMap();
-            notes = getAttribute(SessionAttributes.GLOBAL_NOTES);
+            store.loadRatings(ratings, names);
+            notes = store.getAttribute(SessionAttributes.GLOBAL_NOTES);
         }
 
 
@@ -1117,7 +605,7 @@ public class SessionData
          */
         public void	setRating( GlobalCode code, int rating ) throws SQLException {
             ratings.put( code.id, rating );
-            setRatingResponseValue( code.id, rating);
+            store.setRatingValue( code.id, rating);
         }
 
 
@@ -1138,7 +626,7 @@ public class SessionData
          */
         public void setNotes(String notes) throws SQLException {
             this.notes = notes;
-            setAttribute(SessionAttributes.GLOBAL_NOTES, notes);
+            store.setAttribute(SessionAttributes.GLOBAL_NOTES, notes);
         }
 
 
@@ -1179,15 +667,17 @@ public class SessionData
          */
         public void writeCodeList() throws IOException {
 
-            String outFilePath = this.destinationPath + File.separator + "exported_codelist_" + sessionFile.getName().replace(".casaa", ".txt");
+            String outFilePath = this.destinationPath + File.separator + "exported_codelist_" + getSessionLabel() + ".txt";
 
             try(FileWriter fileWriter = new FileWriter(new File( outFilePath ), false);
                 BufferedWriter bufferedWriter = new BufferedWriter(fileWriter);
                 PrintWriter printWriter = new PrintWriter(bufferedWriter)) {
                 // add the line that indicates the audio file
                 printWriter.println("Audio File:\t" + getAudioFilePath());
-                // finish with the code list
-                utteranceList.values().forEach(utterance -> printWriter.println(utterance.displayCoded()));
+                // finish with the code list, same lines as Utterance.displayCoded(), read a row at a time
+                store.forEachUtterance((utteranceID, timeMarker, codeName, annotation) -> printWriter.println(timeMarker + " " + codeName));
+            } catch (SQLException e) {
+                throw new IOException(e.getMessage(), e);
             }
         }
 
@@ -1203,20 +693,42 @@ public class SessionData
                 PrintWriter printWriter = new PrintWriter(bufferedWriter))
             {
 
+                HashMap<String, Double> summary = getCodeSummaryMap();
+
                 // include header on null length files only
                 if( summaryFilePath.length() == 0 ){
-                    getCodeSummaryMap().keySet().forEach(key -> printWriter.print(key + ","));
-                    printWriter.println("");
+                    printWriter.println(summaryHeader(summary));
                 }
 
                 // write out summary values
-                getCodeSummaryMap().entrySet().forEach(entry -> printWriter.print(entry.getValue() + ","));
-                printWriter.println("");
+                printWriter.println(summaryRow(summary));
             }
 
 
         }
 
+
+        /**
+         * @param summary summary scores of a session
+         * @return summary file header line, without line separator
+         */
+        static String summaryHeader(Map<String, Double> summary) {
+            StringBuilder line = new StringBuilder();
+            summary.keySet().forEach(key -> line.append(key).append(','));
+            return line.toString();
+        }
+
+
+        /**
+         * @param summary summary scores of a session
+         * @return summary file row, without line separator
+         */
+        static String summaryRow(Map<String, Double> summary) {
+            StringBuilder line = new StringBuilder();
+            summary.values().forEach(value -> line.append(value).append(','));
+            return line.toString();
+        }
+
     }
 
 
@@ -1228,167 +740,119 @@ public class SessionData
      */
     public static class Compatibility {
 
+
         /**
-         * Separate function for reading audio filename from code file
-         * @param casaaFileTextFormat casaa file
-         * @return filenameAudio
+         * Contents of a session file in the text format, read in one pass
          */
-        public static String getAudioFilename( File casaaFileTextFormat ) throws IOException {
+        public static class LegacySession {
 
-            Scanner in;
-            in = new Scanner(casaaFileTextFormat);
+            private final String audioFilename;
+            private final List<Utterance> utterances;
 
-            if( !in.hasNext() ){
-                throw new IOException("No Audio File Listed in casaa file");
+            private LegacySession(String audioFilename, List<Utterance> utterances) {
+                this.audioFilename = audioFilename;
+                this.utterances = utterances;
             }
 
-            // Get the audio filename line.
-            String 			filenameAudio 	= in.nextLine();
-            StringTokenizer headReader 		= new StringTokenizer(filenameAudio, "\t");
-
-            headReader.nextToken(); // Eat line heading "Audio Filename:"
-            filenameAudio = headReader.nextToken();
-            if( (filenameAudio.trim()).equalsIgnoreCase("") ){
-                throw new IOException("No Audio File Listed in casaa file");
+            /**
+             * @return filenameAudio
+             * @throws IOException if the file lists no audio file
+             */
+            public String getAudioFilename() throws IOException {
+                if( audioFilename == null ) {
+                    throw new IOException("No Audio File Listed in casaa file");
+                }
+                return audioFilename;
             }
 
-            return filenameAudio;
+            public List<Utterance> getUtterances() {
+                return utterances;
+            }
         }
 
 
-
         /**
-         * Convert old file format to new
-         * @param sessionFileTextFormat
-         * @throws IOException
+         * Contents of a globals file in the text format, read in one pass
          */
-        static public SessionData sessionDataFromPreviousFileFormat(File sessionFileTextFormat) throws IOException {
+        public static class LegacyGlobals {
 
-            /* move old format casaa file to same name with "*.casaa.bak" or "*.casaa.txt" */
-            String backupFilePath = sessionFileTextFormat.getAbsolutePath().replace("casaa", "casaa.txt.bak");
-            File backupSessionFile = new File(backupFilePath);
-            /* if a backup file by that name already exists we will assume it doesn't need repeating */
-            if( !backupSessionFile.exists() ) {
-                Files.copy(sessionFileTextFormat.toPath(), backupSessionFile.toPath());
-            }
-
-            /* now delete old session file so a new session can be created */
-            Files.delete(sessionFileTextFormat.toPath());
+            private final HashMap<String, Integer> ratings;
+            private final String notes;
 
-            /* new session file */
-            File sessionFile = new File(sessionFileTextFormat.getAbsolutePath());
-            /* get audioFile from old casaa file format */
-            File audioFile = new File(Compatibility.getAudioFilename(backupSessionFile));
-
-            /* initialize session data */
-            SessionData sessionData = new SessionData(sessionFile, audioFile);
-
-            /* load utterances from old text format into new session data */
-            List<Utterance> utteranceList = utteranceListFromPreviousFileFormat(backupSessionFile);
-
-            try {
-                sessionData.setUtteranceList(utteranceList);
-            } catch (SQLException e) {
-                throw new IOException(e.getMessage());
+            private LegacyGlobals(HashMap<String, Integer> ratings, String notes) {
+                this.ratings = ratings;
+                this.notes = notes;
             }
 
-            return sessionData;
+            /**
+             * @return rating values by upper case rating name
+             */
+            public HashMap<String, Integer> getRatings() {
+                return ratings;
+            }
 
+            /**
+             * @return notes text, empty if none
+             */
+            public String getNotes() {
+                return notes;
+            }
         }
 
 
         /**
-         * Convert old file format to new. Include globals file merge
-         * @param sessionFile
-         * @param globalsFile
-         * @throws IOException
+         * Separate function for reading audio filename from code file. Reads only the first line.
+         * @param casaaFileTextFormat casaa file
+         * @return filenameAudio
          */
-        static public SessionData sessionDataFromPreviousFileFormat(File sessionFile, File globalsFile) throws IOException {
-
-            SessionData sessionData = sessionDataFromPreviousFileFormat(sessionFile);
+        public static String getAudioFilename( File casaaFileTextFormat ) throws IOException {
+            try ( LegacyTextReader in = new LegacyTextReader(casaaFileTextFormat) ) {
+                return new LegacySession(readAudioFilename(in), null).getAudioFilename();
+            }
+        }
 
-            /* import globals file */
-            HashMap<String, Integer> globalsList = globalRatingsListFromPreviousFileFormat(globalsFile);
 
-            try {
-                sessionData.setRatingsList(globalsList);
-            } catch (SQLException e) {
-                throw new IOException(e.getMessage());
+        /**
+         * Read first line, "Audio Filename:" followed by the audio file
+         * @return audio filename, null if not listed
+         */
+        private static String readAudioFilename( LegacyTextReader in ) throws IOException {
+            if( !in.nextLine() || in.fieldCount() < 2 ) {
+                return null;
             }
-
-            String globalsNotes = globalNotesListFromPreviousFileFormat(globalsFile);
-            try {
-                sessionData.ratingsList.setNotes(globalsNotes);
-            } catch (SQLException e) {
-                throw new IOException(e.getMessage());
+            String filenameAudio = in.fieldString(1);
+            if( filenameAudio.trim().isEmpty() ) {
+                return null;
             }
-
-            return sessionData;
+            return filenameAudio;
         }
 
 
         /**
-         * @param sessionFileTextFormat
-         * @return list of utterances loaded from the text file format
-         * @throws IOException
+         * Read audio filename and utterances of a session file in the text format
+         * @param sessionFileTextFormat casaa file
+         * @return file contents
+         * @throws FileFormatException naming the line that could not be parsed
+         * @throws IOException if a code is not in the user configuration, or the file cannot be read
          */
-        public static List<Utterance> utteranceListFromPreviousFileFormat(File sessionFileTextFormat) throws IOException {
+        public static LegacySession readSession(File sessionFileTextFormat) throws IOException {
 
             List<Utterance> utteranceList = new ArrayList<>();
 
-            Scanner in = new Scanner(sessionFileTextFormat);
-
-            // get the audio filename line.
-            String 			filenameAudio 	= in.nextLine();
-            StringTokenizer headReader 		= new StringTokenizer(filenameAudio, "\t");
-
-            // Eat  "Audio Filename:"
-            headReader.nextToken();
-
-            while( in.hasNextLine() ){
-
-                String 			nextStr 	= in.nextLine();
-                StringTokenizer st 			= new StringTokenizer(nextStr, "\t");
-                int 			lineSize 	= st.countTokens();
+            try ( LegacyTextReader in = new LegacyTextReader(sessionFileTextFormat) ) {
 
-                /* new data format */
-                if( lineSize == 3 ){
-
-                    Duration startTime  = Utils.parseDuration(st.nextToken());
-                    int codeId          = Integer.parseInt( st.nextToken() );
-                    String codeName     = st.nextToken();
-                    MiscDataItem item 	= new MiscDataItem(Utils.formatID(startTime,codeId), startTime);
-
-                    // look up parsed code in user config codes loaded at initDB
-                    try {
-                        item.setMiscCodeByValue(codeId);
-                    } catch (Exception e) {
-                        // if lookup failed there is a possible disconnect between codes in casaa file
-                        // and codes in user config file
-                        throw new IOException( String.format("The code (%s) with value (%d) in file (%s) was not found in the current user configuration file.\n\nIf you uncode (%s) you will not be able to recode it with the current config file.", codeName, codeId, sessionFileTextFormat.getName(), codeName ) );
-                    }
-
-                    utteranceList.add(item);
-
-                }
-                /* read 7 to handle old data format */
-                else if( lineSize == 7 ) {
+                String filenameAudio = readAudioFilename(in);
 
-                    /* throw away useless index number, start time*/
-                    st.nextToken();
-                    st.nextToken();
-                    /* start time */
-                    Duration startTime  = Utils.parseDuration(st.nextToken());
+                while( in.nextLine() ) {
 
-                    /* skip time zero utterances from this format */
-                    if(!startTime.equals(Duration.ZERO)) {
+                    int lineSize = in.fieldCount();
 
-                        /* throw away useless, byte data */
-                        st.nextToken();
-                        st.nextToken();
+                    /* new data format: start time, code value, code name */
+                    if( lineSize == 3 ) {
 
-                        int codeId = Integer.parseInt(st.nextToken());
-                        MiscDataItem item = new MiscDataItem(Utils.formatID(startTime, codeId), startTime);
+                        Duration startTime  = in.fieldDuration(0);
+                        int codeId          = in.fieldInt(1);
+                        MiscDataItem item 	= new MiscDataItem(Utils.formatID(startTime,codeId), startTime);
 
                         // look up parsed code in user config codes loaded at initDB
                         try {
@@ -1396,91 +860,168 @@ public class SessionData
                         } catch (Exception e) {
                             // if lookup failed there is a possible disconnect between codes in casaa file
                             // and codes in user config file
-                            throw new IOException(String.format("Code(%d) in casaa file not found in user configuration file", codeId));
+                            String codeName = in.fieldString(2);
+                            throw new IOException( String.format("The code (%s) with value (%d) in file (%s), line %d, was not found in the current user configuration file.\n\nIf you uncode (%s) you will not be able to recode it with the current config file.", codeName, codeId, sessionFileTextFormat.getName(), in.lineNumber(), codeName ) );
                         }
-                        st.nextToken(); // throw away the code string
 
                         utteranceList.add(item);
+
+                    }
+                    /* old data format: index, start time, byte data, code value and code name */
+                    else if( lineSize == 7 ) {
+
+                        Duration startTime  = in.fieldDuration(2);
+
+                        /* skip time zero utterances from this format */
+                        if( !startTime.equals(Duration.ZERO) ) {
+
+                            int codeId = in.fieldInt(5);
+                            MiscDataItem item = new MiscDataItem(Utils.formatID(startTime, codeId), startTime);
+
+                            // look up parsed code in user config codes loaded at initDB
+                            try {
+                                item.setMiscCodeByValue(codeId);
+                            } catch (Exception e) {
+                                // if lookup failed there is a possible disconnect between codes in casaa file
+                                // and codes in user config file
+                                throw new IOException(String.format("Code(%d) on line %d of casaa file not found in user configuration file", codeId, in.lineNumber()));
+                            }
+
+                            utteranceList.add(item);
+                        }
                     }
                 }
-            }
 
-            return utteranceList;
+                return new LegacySession(filenameAudio, utteranceList);
+            }
         }
 
 
         /**
-         * @param globalsFileTextFormat
-         * @return Map of global rating items parsed from text file format
-         * @throws IOException
+         * Read ratings and notes of a globals file in the text format
+         * @param globalsFileTextFormat globals file
+         * @return file contents
+         * @throws FileFormatException naming the line that could not be parsed
+         * @throws IOException if the file cannot be read
          */
-        public static HashMap<String, Integer> globalRatingsListFromPreviousFileFormat(File globalsFileTextFormat) throws IOException {
+        public static LegacyGlobals readGlobals(File globalsFileTextFormat) throws IOException {
 
             HashMap<String, Integer> ratingList = new HashMap<>();
+            String notes = "";
 
-            Scanner in = new Scanner(globalsFileTextFormat);
-
-            // get the audio filename line.
-            String 			filenameAudio 	= in.nextLine();
-            StringTokenizer headReader 		= new StringTokenizer(filenameAudio, "\t");
-
-            // Eat  "Audio Filename:"
-            headReader.nextToken();
-            in.nextLine();
+            try ( LegacyTextReader in = new LegacyTextReader(globalsFileTextFormat) ) {
 
-            while( in.hasNextLine() ){
+                // skip "Audio Filename:" and the line after it
+                for (int i = 0; i < 2; i++) {
+                    if( !in.nextLine() ) {
+                        throw new FileFormatException(String.format("%s: missing globals file heading", globalsFileTextFormat.getName()));
+                    }
+                }
 
-                String 			nextStr 	= in.nextLine();
-                StringTokenizer st 			= new StringTokenizer(nextStr, "\t");
-                int 			lineSize 	= st.countTokens();
+                while( in.nextLine() ) {
 
-                if( lineSize == 2 ){
-                    /* global */
-                    String rating_name = st.nextToken().toUpperCase().replace(":","");
-                    if( !rating_name.equalsIgnoreCase("NOTES") ) {
-                        int response_value = Integer.parseInt( st.nextToken() );
-                        ratingList.put(rating_name, response_value);
+                    if( in.fieldCount() == 2 ) {
+                        String rating_name = in.fieldString(0).toUpperCase().replace(":","");
+                        if( rating_name.equalsIgnoreCase("NOTES") ) {
+                            notes = in.fieldString(1);
+                        } else {
+                            /* global */
+                            ratingList.put(rating_name, in.fieldInt(1));
+                        }
                     }
                 }
             }
 
-            return ratingList;
+            return new LegacyGlobals(ratingList, notes);
         }
 
 
         /**
-         * @param globalsFileTextFormat
-         * @return Notes text parsed from text format file
+         * Convert old file format to new
+         * @param sessionFileTextFormat
          * @throws IOException
          */
-        public static String globalNotesListFromPreviousFileFormat(File globalsFileTextFormat) throws IOException {
+        static public SessionData sessionDataFromPreviousFileFormat(File sessionFileTextFormat) throws IOException {
+            return sessionDataFromPreviousFileFormat(sessionFileTextFormat, null);
+        }
 
-            String notes = "";
 
-            Scanner in = new Scanner(globalsFileTextFormat);
+        /**
+         * Convert old file format to new. Include globals file merge
+         * @param sessionFileTextFormat
+         * @param globalsFile globals file, or null if there is none
+         * @throws IOException
+         */
+        static public SessionData sessionDataFromPreviousFileFormat(File sessionFileTextFormat, File globalsFile) throws IOException {
 
-            // get the audio filename line.
-            String 			filenameAudio 	= in.nextLine();
-            StringTokenizer headReader 		= new StringTokenizer(filenameAudio, "\t");
+            /* move old format casaa file to same name with "*.casaa.bak" or "*.casaa.txt" */
+            String backupFilePath = sessionFileTextFormat.getAbsolutePath().replace("casaa", "casaa.txt.bak");
+            File backupSessionFile = new File(backupFilePath);
 
-            // Eat  "Audio Filename:"
-            headReader.nextToken();
-            in.nextLine();
+            /* parse everything before touching any file. if a backup file already exists it holds the old session */
+            LegacySession legacySession = readSession(backupSessionFile.exists() ? backupSessionFile : sessionFileTextFormat);
+            /* get audioFile from old casaa file format */
+            File audioFile = new File(legacySession.getAudioFilename());
+            LegacyGlobals legacyGlobals = (globalsFile == null) ? null : readGlobals(globalsFile);
+
+            /* if a backup file by that name already exists we will assume it doesn't need repeating */
+            if( !backupSessionFile.exists() ) {
+                Files.copy(sessionFileTextFormat.toPath(), backupSessionFile.toPath());
+            }
 
-            while( in.hasNextLine() ){
+            /* now delete old session file so a new session can be created */
+            Files.delete(sessionFileTextFormat.toPath());
 
-                String 			nextStr 	= in.nextLine();
-                StringTokenizer st 			= new StringTokenizer(nextStr, "\t");
-                int 			lineSize 	= st.countTokens();
+            /* new session file */
+            File sessionFile = new File(sessionFileTextFormat.getAbsolutePath());
 
-                if( lineSize == 2 ){
-                    String rating_name = st.nextToken().toUpperCase().replace(":","");
-                    if( rating_name.equalsIgnoreCase("NOTES") ) {
-                        notes = st.nextToken();
-                    }
+            /* initialize session data */
+            SessionData sessionData = new SessionData(sessionFile, audioFile);
+
+            try {
+                /* load utterances from old text format into new session data */
+                sessionData.setUtteranceList(legacySession.getUtterances());
+
+                /* import globals file */
+                if( legacyGlobals != null ) {
+                    sessionData.setRatingsList(legacyGlobals.getRatings());
+                    sessionData.ratingsList.setNotes(legacyGlobals.getNotes());
                 }
+            } catch (SQLException e) {
+                throw new IOException(e.getMessage());
             }
-            return notes;
+
+            return sessionData;
+        }
+
+
+        /**
+         * @param sessionFileTextFormat
+         * @return list of utterances loaded from the text file format
+         * @throws IOException
+         */
+        public static List<Utterance> utteranceListFromPreviousFileFormat(File sessionFileTextFormat) throws IOException {
+            return readSession(sessionFileTextFormat).getUtterances();
+        }
+
+
+        /**
+         * @param globalsFileTextFormat
+         * @return Map of global rating items parsed from text file format
+         * @throws IOException
+         */
+        public static HashMap<String, Integer> globalRatingsListFromPreviousFileFormat(File globalsFileTextFormat) throws IOException {
+            return readGlobals(globalsFileTextFormat).getRatings();
+        }
+
+
+        /**
+         * @param globalsFileTextFormat
+         * @return Notes text parsed from text format file
+         * @throws IOException
+         */
+        public static String globalNotesListFromPreviousFileFormat(File globalsFileTextFormat) throws IOException {
+            return readGlobals(globalsFileTextFormat).getNotes();
         }
 
 
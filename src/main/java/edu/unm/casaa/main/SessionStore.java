@@ -0,0 +1,219 @@
+/*
+This source code file is part of the CASAA Treatment Coding System Utility
+    Copyright (C) 2009  UNM CASAA
+
+    This program is free software: you can redistribute it and/or modify
+    it under the terms of the GNU General Public License as published by
+    the Free Software Foundation, either version 3 of the License, or
+    (at your option) any later version.
+
+    This program is distributed in the hope that it will be useful,
+    but WITHOUT ANY WARRANTY; without even the implied warranty of
+    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+    GNU General Public License for more details.
+
+    You should have received a copy of the GNU General Public License
+    along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package edu.unm.casaa.main;
+
+import edu.unm.casaa.globals.GlobalCode;
+import edu.unm.casaa.misc.MiscCode;
+import edu.unm.casaa.utterance.Utterance;
+import javafx.util.Duration;
+
+import java.io.File;
+import java.io.IOException;
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.List;
+import java.util.SortedMap;
+
+
+/**
+ * Persistence beneath SessionData.
+ *
+ * A store holds one session file. SessionData keeps the session in memory and tells the store of
+ * each change; the store only has to read the whole session back when it is opened. Stores are
+ * chosen by file name: ".casaa" files are SQLite databases, ".casaalog" files are append-only logs.
+ *
+ * Failures are reported as SQLException for every store, since that is what SessionData callers handle.
+ */
+public interface SessionStore extends AutoCloseable {
+
+
+    /**
+     * Receives utterances one at a time
+     */
+    interface UtteranceVisitor {
+        /**
+         * @param timeMarker start time as written by Utils.formatDuration
+         */
+        void visit(String utteranceID, String timeMarker, String codeName, String annotation);
+    }
+
+
+    /**
+     * Open existing session file
+     * @param file session file
+     * @return store for file
+     * @throws java.io.FileNotFoundException if file does not exist
+     * @throws FileFormatException if file is not a session of its kind, e.g. a legacy text file
+     * @throws IOException on other failures
+     */
+    static SessionStore open(File file) throws IOException {
+        if( LogSessionStore.accepts(file) ) {
+            return LogSessionStore.open(file);
+        }
+        return SQLiteSessionStore.open(file);
+    }
+
+
+    /**
+     * Open existing session file for reading only, e.g. for export. Changes throw SQLException.
+     * @param file session file
+     * @return store for file
+     * @throws java.io.FileNotFoundException if file does not exist
+     * @throws FileFormatException if file is not a session of its kind
+     * @throws IOException on other failures
+     */
+    static SessionStore openReadOnly(File file) throws IOException {
+        if( LogSessionStore.accepts(file) ) {
+            return LogSessionStore.openReadOnly(file);
+        }
+        return SQLiteSessionStore.openReadOnly(file);
+    }
+
+
+    /**
+     * Create new session file
+     * @param file session file, which should not exist yet
+     * @param audioFilePath audio file of session
+     * @param codes codes that may be used in the session
+     * @param ratings global ratings of the session, at their default rating
+     * @return store for file
+     * @throws IOException
+     */
+    static SessionStore create(File file, String audioFilePath, Collection<MiscCode> codes, Collection<GlobalCode> ratings) throws IOException {
+        if( LogSessionStore.accepts(file) ) {
+            return LogSessionStore.create(file, audioFilePath, codes, ratings);
+        }
+        return SQLiteSessionStore.create(file, audioFilePath, codes, ratings);
+    }
+
+
+    /**
+     * Copy a session to a new file, possibly of another kind, e.g. from ".casaa" to ".casaalog" and back
+     * @param source existing session file, opened read-only and left unchanged
+     * @param target new session file
+     * @throws IOException
+     */
+    static void convert(File source, File target) throws IOException {
+        try ( SessionStore in = openReadOnly(source) ) {
+
+            HashMap<Integer, Integer> values = new HashMap<>();
+            HashMap<Integer, String> names = new HashMap<>();
+            in.loadRatings(values, names);
+            // stored ratings keep their ids, names and values
+            ArrayList<GlobalCode> ratings = new ArrayList<>();
+            values.forEach((id, value) -> {
+                GlobalCode rating = new GlobalCode(id, names.get(id), names.get(id));
+                rating.defaultRating = value;
+                ratings.add(rating);
+            });
+
+            SortedMap<String, Utterance> utterances = in.loadUtterances();
+
+            try ( SessionStore out = create(target, in.getAttribute(SessionData.SessionAttributes.AUDIO_FILE_PATH), in.loadCodes(), ratings) ) {
+                out.setAttribute(SessionData.SessionAttributes.GLOBAL_NOTES, in.getAttribute(SessionData.SessionAttributes.GLOBAL_NOTES));
+                out.addUtterances(new ArrayList<>(utterances.values()));
+                for (Utterance utr : utterances.values()) {
+                    if( utr.getRatingIDs().length > 0 ) {
+                        out.annotateUtterance(utr.getID(), utr.getAnnotation(), utr.getRatingIDs());
+                    }
+                }
+                out.flush();
+            }
+        } catch (SQLException e) {
+            throw new IOException(e.getMessage(), e);
+        }
+    }
+
+
+    /**
+     * @return value of attribute, empty if not set
+     */
+    String getAttribute(SessionData.SessionAttributes attribute) throws SQLException;
+
+    void setAttribute(SessionData.SessionAttributes attribute, String value) throws SQLException;
+
+    /**
+     * @return codes stored with the session
+     */
+    List<MiscCode> loadCodes() throws SQLException;
+
+    /**
+     * @return all utterances with annotations and linked rating ids, by utterance id
+     */
+    SortedMap<String, Utterance> loadUtterances() throws SQLException;
+
+    /**
+     * Visit utterances in utterance id order without loading them all, e.g. to export a long session
+     */
+    void forEachUtterance(UtteranceVisitor visitor) throws SQLException;
+
+    /**
+     * @param values filled with response value by rating id
+     * @param names filled with rating name by rating id
+     */
+    void loadRatings(HashMap<Integer, Integer> values, HashMap<Integer, String> names) throws SQLException;
+
+    /**
+     * @return map<code_name, count> of codes used in utterances
+     */
+    HashMap<String, Integer> getCodeCounts() throws SQLException;
+
+    void addUtterance(String utteranceID, int codeID, Duration startTime, String annotation) throws SQLException;
+
+    /**
+     * Add utterances with their annotations, in one write
+     */
+    void addUtterances(List<Utterance> utterances) throws SQLException;
+
+    /**
+     * Remove utterance and its rating links
+     */
+    void removeUtterance(String utteranceID) throws SQLException;
+
+    /**
+     * Replace annotation and rating links of utterance
+     */
+    void annotateUtterance(String utteranceID, String annotation, int[] ratingIDs) throws SQLException;
+
+    /**
+     * Set value of rating by name, adding the rating if the session does not have it
+     */
+    void addRating(String ratingName, int value) throws SQLException;
+
+    void setRatingValue(int ratingID, int value) throws SQLException;
+
+    /**
+     * Wait for changes to be durable
+     * @throws SQLException first write failure since the last flush
+     */
+    void flush() throws SQLException;
+
+    /**
+     * @param listener notified of pending write count and write failures, from any thread
+     */
+    void setWriteListener(SessionWriteQueue.Listener listener);
+
+    /**
+     * Write outstanding changes and release the file
+     */
+    @Override
+    void close() throws SQLException;
+}
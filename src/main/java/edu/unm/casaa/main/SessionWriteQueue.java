@@ -0,0 +1,274 @@
+/*
+This source code file is part of the CASAA Treatment Coding System Utility
+    Copyright (C) 2009  UNM CASAA
+
+    This program is free software: you can redistribute it and/or modify
+    it under the terms of the GNU General Public License as published by
+    the Free Software Foundation, either version 3 of the License, or
+    (at your option) any later version.
+
+    This program is distributed in the hope that it will be useful,
+    but WITHOUT ANY WARRANTY; without even the implied warranty of
+    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+    GNU General Public License for more details.
+
+    You should have received a copy of the GNU General Public License
+    along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package edu.unm.casaa.main;
+
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.concurrent.ArrayBlockingQueue;
+
+
+/**
+ * Write-behind journal for session persistence.
+ *
+ * Writes are queued in submit order and applied by a single background thread,
+ * which groups whatever is waiting into one transaction on the pool's writer connection.
+ * Callers return as soon as the write is queued, so coding is not held up by disk latency.
+ *
+ * flush() is the barrier: it returns once everything submitted before it has been committed,
+ * and rethrows the first write failure since the last flush.
+ */
+public class SessionWriteQueue implements AutoCloseable {
+
+    /**
+     * Notified, from any thread, when the number of uncommitted writes changes or a write fails.
+     * Pending counts are delivered in the order they changed, under the queue lock, so listeners
+     * must only hand them on, e.g. with Platform.runLater.
+     */
+    public interface Listener {
+        void pendingWritesChanged(int pending);
+        void writeFailed(SQLException e);
+    }
+
+
+    /* most writes grouped into one transaction */
+    private static final int MAX_BATCH = 256;
+
+    private final SessionConnectionPool pool;
+    private final ArrayBlockingQueue< SessionConnectionPool.Work<?> > queue;
+
+    // submit and completion counters. Guarded by this
+    private long submitted = 0;
+    private long completed = 0;
+    private SQLException failure = null;
+
+    private Thread writer = null;
+    private volatile boolean closed = false;
+    private volatile Listener listener = null;
+
+
+    /**
+     * @param pool session pool providing the writer connection
+     * @param capacity writes that may be waiting before submit() blocks
+     */
+    public SessionWriteQueue(SessionConnectionPool pool, int capacity) {
+        this.pool = pool;
+        this.queue = new ArrayBlockingQueue<>(capacity);
+    }
+
+
+    public synchronized void setListener(Listener listener) {
+        this.listener = listener;
+        notifyPending();
+    }
+
+
+    /**
+     * Queue work to run on the writer connection.
+     * Blocks only when the queue is full.
+     * @param work statements to run
+     * @throws SQLException if the queue is closed
+     */
+    public void submit(SessionConnectionPool.Work<?> work) throws SQLException {
+
+        // hold the lock across put() so queue order matches submit order
+        synchronized (this) {
+            if( closed ) {
+                throw new SQLException("Session write queue is closed");
+            }
+            startWriter();
+
+            try {
+                queue.put(work);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new SQLException("Interrupted queueing session write", e);
+            }
+            submitted++;
+            notifyPending();
+        }
+    }
+
+
+    /**
+     * Wait until every write submitted so far is committed.
+     * @throws SQLException first write failure since the last flush
+     */
+    public void flush() throws SQLException {
+
+        synchronized (this) {
+            awaitCommitted();
+
+            if( failure != null ) {
+                SQLException e = failure;
+                failure = null;
+                throw e;
+            }
+        }
+    }
+
+
+    /**
+     * Wait until every write submitted so far has been applied, without reporting failures.
+     * Used before reads so they see earlier writes; failures are left for flush() and the listener.
+     * @throws SQLException if interrupted
+     */
+    public synchronized void awaitCommitted() throws SQLException {
+        long target = submitted;
+        while( completed < target ) {
+            try {
+                wait();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new SQLException("Interrupted waiting for session writes", e);
+            }
+        }
+    }
+
+
+    /**
+     * @return number of writes not yet committed
+     */
+    public synchronized int getPending() {
+        return (int) (submitted - completed);
+    }
+
+
+    /**
+     * Flush pending writes and stop the writer thread
+     * @throws SQLException first write failure since the last flush
+     */
+    @Override
+    public void close() throws SQLException {
+
+        if( closed ) {
+            return;
+        }
+
+        try {
+            flush();
+        } finally {
+            Thread t;
+            synchronized (this) {
+                closed = true;
+                t = writer;
+                writer = null;
+            }
+            if( t != null ) {
+                t.interrupt();
+            }
+        }
+    }
+
+
+    /**
+     * Writer thread is started on first submit so read-only sessions never create one
+     */
+    private void startWriter() {
+        if( writer == null ) {
+            writer = new Thread(this::drain, "session-writer");
+            writer.setDaemon(true);
+            writer.start();
+        }
+    }
+
+
+    /**
+     * Writer thread loop: take what is waiting and commit it as one transaction
+     */
+    private void drain() {
+
+        ArrayList< SessionConnectionPool.Work<?> > batch = new ArrayList<>();
+
+        while( true ) {
+            try {
+                batch.add(queue.take());
+            } catch (InterruptedException e) {
+                // close() interrupts only after everything has been flushed
+                return;
+            }
+            queue.drainTo(batch, MAX_BATCH - 1);
+
+            SQLException error = apply(batch);
+
+            synchronized (this) {
+                completed += batch.size();
+                if( error != null && failure == null ) {
+                    failure = error;
+                }
+                notifyAll();
+                notifyPending();
+            }
+
+            Listener l = listener;
+            if( error != null && l != null ) {
+                l.writeFailed(error);
+            }
+
+            batch.clear();
+        }
+    }
+
+
+    /**
+     * Commit batch in one transaction. If that fails, apply each write in its own
+     * transaction so one bad write does not discard the others.
+     * @return first failure or null
+     */
+    private SQLException apply(ArrayList< SessionConnectionPool.Work<?> > batch) {
+        try {
+            pool.write(connection -> {
+                for (SessionConnectionPool.Work<?> work : batch) {
+                    work.apply(connection);
+                }
+                return null;
+            });
+            return null;
+        } catch (SQLException | RuntimeException batchError) {
+            if( batch.size() == 1 ) {
+                return asSQLException(batchError);
+            }
+
+            SQLException first = null;
+            for (SessionConnectionPool.Work<?> work : batch) {
+                try {
+                    pool.write(work);
+                } catch (SQLException | RuntimeException e) {
+                    first = (first == null) ? asSQLException(e) : first;
+                }
+            }
+            return first;
+        }
+    }
+
+
+    private static SQLException asSQLException(Exception e) {
+        return (e instanceof SQLException) ? (SQLException) e : new SQLException(e);
+    }
+
+
+    /**
+     * Called holding the lock, so counts from the submitting and writer threads cannot arrive out of order
+     */
+    private void notifyPending() {
+        Listener l = listener;
+        if( l != null ) {
+            l.pendingWritesChanged((int) (submitted - completed));
+        }
+    }
+}
@@ -0,0 +1,449 @@
+/*
+This source code file is part of the CASAA Treatment Coding System Utility
+    Copyright (C) 2009  UNM CASAA
+
+    This program is free software: you can redistribute it and/or modify
+    it under the terms of the GNU General Public License as published by
+    the Free Software Foundation, either version 3 of the License, or
+    (at your option) any later version.
+
+    This program is distributed in the hope that it will be useful,
+    but WITHOUT ANY WARRANTY; without even the implied warranty of
+    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+    GNU General Public License for more details.
+
+    You should have received a copy of the GNU General Public License
+    along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package edu.unm.casaa.main;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.stream.IntStream;
+
+
+/**
+ * Summary score engine.
+ *
+ * Each summary metric is declared either as a sum over a set of code names or as a formula
+ * over metrics declared before it. Declarations are compiled once into a plan in which every
+ * code name has a slot in a count array and every operand is a metric index, so a summary is
+ * one pass over the counts followed by one pass over the metrics.
+ *
+ * The built in metrics reproduce the original summary scores. Extra metrics may be declared
+ * in the user config file and are evaluated after them.
+ */
+public class SummaryEngine {
+
+    /**
+     * How a metric value is computed
+     */
+    public enum Kind {
+        /* sum of code counts */
+        SUM,
+        /* a + b */
+        ADD,
+        /* a / (a + b) * 100 */
+        SHARE,
+        /* a / b * 100 */
+        PERCENT,
+        /* a / b */
+        RATIO;
+
+        /**
+         * @param name kind name as written in the user config, case insensitive
+         * @return kind
+         * @throws IllegalArgumentException for unknown names
+         */
+        public static Kind fromName(String name) {
+            return Kind.valueOf(name.trim().toUpperCase());
+        }
+    }
+
+
+    /**
+     * Declared metric: code names for SUM, two earlier metric names for formulas
+     */
+    public static final class Metric {
+
+        public final String name;
+        public final Kind kind;
+        public final List<String> codes;
+        public final String a;
+        public final String b;
+
+        private Metric(String name, Kind kind, List<String> codes, String a, String b) {
+            this.name = name;
+            this.kind = kind;
+            this.codes = codes;
+            this.a = a;
+            this.b = b;
+        }
+
+        public static Metric sum(String name, String... codes) {
+            return new Metric(name, Kind.SUM, Collections.unmodifiableList(Arrays.asList(codes)), null, null);
+        }
+
+        public static Metric formula(String name, Kind kind, String a, String b) {
+            if( kind == Kind.SUM ) {
+                throw new IllegalArgumentException("Formula metric cannot be a sum: " + name);
+            }
+            return new Metric(name, kind, Collections.emptyList(), a, b);
+        }
+    }
+
+
+    /* codes counted as client and therapist utterances */
+    private static final String[] CHANGE_ETOH = { "C+", "R+", "D+", "A+", "N+", "TS+", "O+" };
+    private static final String[] SUSTAIN_ETOH = { "C-", "R-", "D-", "A-", "N-", "TS-", "O-" };
+    private static final String[] CHANGE_DRUG = { "C+_m", "R+_m", "D+_m", "A+_m", "N+_m", "TS+_m", "O+_m" };
+    private static final String[] SUSTAIN_DRUG = { "C-_m", "R-_m", "D-_m", "A-_m", "N-_m", "TS-_m", "O-_m" };
+
+    /**
+     * Built in metrics, in the order the summary map has always been filled
+     */
+    public static final List<Metric> DEFAULT_METRICS = Collections.unmodifiableList(Arrays.asList(
+            /* Simply get counts */
+            Metric.sum("SUM_ADP", "ADP"),
+            Metric.sum("SUM_ADW", "ADW"),
+            Metric.sum("SUM_AF", "AF"),
+            Metric.sum("SUM_CO", "CO"),
+            Metric.sum("SUM_DI", "DI"),
+            Metric.sum("SUM_EC", "EC"),
+            Metric.sum("SUM_GI", "GI"),
+            Metric.sum("SUM_RCP", "RCP"),
+            Metric.sum("SUM_RCW", "RCW"),
+            Metric.sum("SUM_ST", "ST"),
+            Metric.sum("SUM_RF", "RF"),
+            Metric.sum("SUM_SU", "SU"),
+            Metric.sum("SUM_WA", "WA"),
+
+            /* Calculate sums of different code combinations */
+            Metric.sum("SUM_CHANGE_ETOH", CHANGE_ETOH),
+            Metric.sum("SUM_SUSTAIN_ETOH", SUSTAIN_ETOH),
+            Metric.sum("SUM_CHANGE_DRUG", CHANGE_DRUG),
+            Metric.sum("SUM_SUSTAIN_DRUG", SUSTAIN_DRUG),
+            Metric.sum("SUM_MICO", "ADP", "AF", "EC", "RCP", "SU"),
+            Metric.sum("SUM_MIIN", "ADW", "CO", "DI", "RCW", "WA"),
+            Metric.sum("SUM_OQ", "OQ-", "OQ0", "OQ+"),
+            Metric.sum("SUM_CQ", "CQ-", "CQ0", "CQ+"),
+            Metric.sum("SUM_CR", "CR+", "CR-", "CR0", "CR+/-"),
+            Metric.sum("SUM_QUESTION", "CQ-", "CQ0", "CQ+", "OQ-", "OQ0", "OQ+"),
+            Metric.sum("SUM_SIMPLE", "SR+", "SR-", "SR0", "SR+/-"),
+            Metric.sum("SUM_REFLECTION", "SR+", "SR-", "SR0", "SR+/-", "CR+", "CR-", "CR0", "CR+/-"),
+            Metric.sum("SUM_REM_POS", "Rem+", "Rem+_m"),
+            Metric.sum("SUM_REM_NEG", "Rem-", "Rem-_m"),
+            Metric.sum("SUM_FN_RM", "FN", "Rem+", "Rem-", "Rem+_m", "Rem-_m"),
+            Metric.sum("SUM_REF_CT", "SR+", "CR+"),
+            Metric.sum("SUM_REF_ST", "SR-", "CR-"),
+            Metric.sum("SUM_CLIENT_UTT", concat(CHANGE_ETOH, SUSTAIN_ETOH, CHANGE_DRUG, SUSTAIN_DRUG,
+                    new String[]{ "", "FN", "Rem+", "Rem-", "Rem+_m", "Rem-_m" })),
+            Metric.sum("SUM_THER_UTT", "ADP", "ADW", "AF", "CO", "DI", "EC", "FA", "FI", "GI",
+                    "CQ-", "CQ0", "CQ+", "OQ-", "OQ0", "OQ+", "RCP", "RCW",
+                    "SR+", "SR-", "SR0", "SR+/-", "CR+", "CR-", "CR0", "CR+/-", "RF", "ST", "SU", "WA", "P"),
+
+            /* calculate sums by group */
+            Metric.formula("SUM_TOTAL_UTT", Kind.ADD, "SUM_THER_UTT", "SUM_CLIENT_UTT"),
+            Metric.formula("SUM_CHANGE", Kind.ADD, "SUM_CHANGE_ETOH", "SUM_CHANGE_DRUG"),
+            Metric.formula("SUM_SUSTAIN", Kind.ADD, "SUM_SUSTAIN_ETOH", "SUM_SUSTAIN_DRUG"),
+            Metric.formula("SUM_CHANGE_REM", Kind.ADD, "SUM_CHANGE", "SUM_REM_POS"),
+            Metric.formula("SUM_SUSTAIN_REM", Kind.ADD, "SUM_SUSTAIN", "SUM_REM_NEG"),
+
+            /* calculate percentage scores */
+            Metric.formula("PCT_MIC", Kind.SHARE, "SUM_MICO", "SUM_MIIN"),
+            Metric.formula("PCT_ETOH", Kind.SHARE, "SUM_CHANGE_ETOH", "SUM_SUSTAIN_ETOH"),
+            Metric.formula("PCT_DRUG", Kind.SHARE, "SUM_CHANGE_DRUG", "SUM_SUSTAIN_DRUG"),
+            Metric.formula("PCT", Kind.SHARE, "SUM_CHANGE", "SUM_SUSTAIN"),
+            Metric.formula("PCT_PCR", Kind.PERCENT, "SUM_CR", "SUM_REFLECTION"),
+            Metric.formula("PCT_POQ", Kind.PERCENT, "SUM_OQ", "SUM_QUESTION"),
+
+            Metric.formula("RATIO_SR2CR", Kind.RATIO, "SUM_SIMPLE", "SUM_CR"),
+            Metric.formula("RATIO_R2Q", Kind.RATIO, "SUM_REFLECTION", "SUM_QUESTION"),
+            Metric.formula("RATIO_THER2CLI", Kind.RATIO, "SUM_THER_UTT", "SUM_CLIENT_UTT")
+    ));
+
+
+    private static volatile SummaryEngine current = compile(DEFAULT_METRICS);
+
+
+    /* compiled plan */
+    private final List<Metric> metrics;
+    private final String[] names;
+    private final Kind[] kinds;
+    // SUM: count slots to add
+    private final int[][] slots;
+    // formulas: metric indexes of operands
+    private final int[] operandA;
+    private final int[] operandB;
+    // code name to count slot
+    private final HashMap<String, Integer> slotByCode;
+    private final HashMap<String, Integer> indexByName;
+    // per slot: metrics whose value depends on it, in evaluation order
+    private final int[][] affected;
+
+
+    private SummaryEngine(List<Metric> metrics) {
+
+        int n = metrics.size();
+        this.metrics = Collections.unmodifiableList(new ArrayList<>(metrics));
+        names = new String[n];
+        kinds = new Kind[n];
+        slots = new int[n][];
+        operandA = new int[n];
+        operandB = new int[n];
+        slotByCode = new HashMap<>();
+        indexByName = new HashMap<>();
+
+        for (int i = 0; i < n; i++) {
+            Metric m = metrics.get(i);
+            if( indexByName.containsKey(m.name) ) {
+                throw new IllegalArgumentException("Duplicate summary metric: " + m.name);
+            }
+            names[i] = m.name;
+            kinds[i] = m.kind;
+
+            if( m.kind == Kind.SUM ) {
+                // same code listed twice counts once, like the original filters
+                int[] s = m.codes.stream().distinct().mapToInt(this::slotOf).toArray();
+                slots[i] = s;
+            } else {
+                operandA[i] = operand(m, m.a);
+                operandB[i] = operand(m, m.b);
+            }
+            indexByName.put(m.name, i);
+        }
+
+        // slots each metric depends on, directly or through its operands
+        ArrayList<BitSet> dependsOn = new ArrayList<>(n);
+        for (int i = 0; i < n; i++) {
+            BitSet d = new BitSet();
+            if( kinds[i] == Kind.SUM ) {
+                for (int slot : slots[i]) {
+                    d.set(slot);
+                }
+            } else {
+                d.or(dependsOn.get(operandA[i]));
+                d.or(dependsOn.get(operandB[i]));
+            }
+            dependsOn.add(d);
+        }
+
+        affected = new int[slotByCode.size()][];
+        for (int slot = 0; slot < affected.length; slot++) {
+            final int s = slot;
+            affected[slot] = IntStream.range(0, n).filter(i -> dependsOn.get(i).get(s)).toArray();
+        }
+    }
+
+
+    /**
+     * @param metrics declarations, formulas may only refer to metrics before them
+     * @return compiled engine
+     * @throws IllegalArgumentException on duplicate names or unknown operands
+     */
+    public static SummaryEngine compile(List<Metric> metrics) {
+        return new SummaryEngine(metrics);
+    }
+
+
+    /**
+     * @param extra metrics declared in the user config
+     * @return engine for the built in metrics followed by extra
+     * @throws IllegalArgumentException on duplicate names or unknown operands
+     */
+    public static SummaryEngine withExtraMetrics(List<Metric> extra) {
+        ArrayList<Metric> all = new ArrayList<>(DEFAULT_METRICS);
+        all.addAll(extra);
+        return compile(all);
+    }
+
+
+    /**
+     * @return engine used for session summaries
+     */
+    public static SummaryEngine getCurrent() {
+        return current;
+    }
+
+
+    /**
+     * Replace the engine used for session summaries, e.g. after user config reload
+     */
+    public static void setCurrent(SummaryEngine engine) {
+        current = engine;
+    }
+
+
+    /**
+     * @return declared metrics in evaluation order
+     */
+    public List<Metric> getMetrics() {
+        return metrics;
+    }
+
+
+    /**
+     * @return number of count slots, the length of the array evaluate(int[]) expects
+     */
+    public int getSlotCount() {
+        return slotByCode.size();
+    }
+
+
+    /**
+     * @param codeName code name
+     * @return count slot for code, or -1 if no metric uses it
+     */
+    public int getSlot(String codeName) {
+        Integer slot = slotByCode.get(codeName);
+        return slot == null ? -1 : slot;
+    }
+
+
+    /**
+     * @param metricName metric name
+     * @return index of metric in evaluate(int[]) results, or -1
+     */
+    public int getIndex(String metricName) {
+        Integer index = indexByName.get(metricName);
+        return index == null ? -1 : index;
+    }
+
+
+    /**
+     * @param codeCounts count per code name
+     * @return count array indexed by slot
+     */
+    public int[] toSlotCounts(Map<String, Integer> codeCounts) {
+        int[] counts = new int[getSlotCount()];
+        for (Map.Entry<String, Integer> e : codeCounts.entrySet()) {
+            Integer slot = slotByCode.get(e.getKey());
+            if( slot != null ) {
+                counts[slot] += e.getValue();
+            }
+        }
+        return counts;
+    }
+
+
+    /**
+     * Evaluate every metric
+     * @param counts count array indexed by slot
+     * @return metric values indexed like getMetrics()
+     */
+    public double[] evaluate(int[] counts) {
+
+        double[] values = new double[names.length];
+
+        for (int i = 0; i < names.length; i++) {
+            values[i] = compute(i, counts, values);
+        }
+
+        return values;
+    }
+
+
+    /**
+     * Re-evaluate only the metrics that depend on one count slot, after that count changed.
+     * Cost is bounded by the number of metrics using the slot, not by session length.
+     * @param counts count array indexed by slot, already changed
+     * @param values values from an earlier evaluate(int[]) of the same counts, updated in place
+     * @param slot slot that changed
+     * @return indexes of metrics that were re-evaluated, in evaluation order. Must not be modified
+     */
+    public int[] update(int[] counts, double[] values, int slot) {
+        int[] metricIndexes = affected[slot];
+        for (int i : metricIndexes) {
+            values[i] = compute(i, counts, values);
+        }
+        return metricIndexes;
+    }
+
+
+    /**
+     * @param codeCounts count per code name
+     * @return metric name to value, filled in declaration order
+     */
+    public HashMap<String, Double> evaluate(Map<String, Integer> codeCounts) {
+        return toMap(evaluate(toSlotCounts(codeCounts)));
+    }
+
+
+    /**
+     * @param values result of evaluate(int[])
+     * @return metric name to value, filled in declaration order
+     */
+    public HashMap<String, Double> toMap(double[] values) {
+        HashMap<String, Double> map = new HashMap<>();
+        for (int i = 0; i < names.length; i++) {
+            map.put(names[i], values[i]);
+        }
+        return map;
+    }
+
+
+    private double compute(int i, int[] counts, double[] values) {
+
+        double a = values[operandA[i]];
+        double b = values[operandB[i]];
+
+        switch (kinds[i]) {
+            case SUM:
+                long sum = 0;
+                for (int slot : slots[i]) {
+                    sum += counts[slot];
+                }
+                return sum;
+            case ADD:
+                return a + b;
+            case SHARE:
+                return finite((a / (a + b)) * 100);
+            case PERCENT:
+                return finite((a / b) * 100);
+            case RATIO:
+                return finite(a / b);
+            default:
+                throw new IllegalStateException("Unknown summary metric kind: " + kinds[i]);
+        }
+    }
+
+
+    private int slotOf(String codeName) {
+        Integer slot = slotByCode.get(codeName);
+        if( slot == null ) {
+            slot = slotByCode.size();
+            slotByCode.put(codeName, slot);
+        }
+        return slot;
+    }
+
+
+    private int operand(Metric m, String operandName) {
+        Integer index = (operandName == null) ? null : indexByName.get(operandName);
+        if( index == null ) {
+            throw new IllegalArgumentException(String.format("Summary metric %s refers to unknown or later metric: %s", m.name, operandName));
+        }
+        return index;
+    }
+
+
+    /* undefined percentages and ratios are reported as zero */
+    private static double finite(double value) {
+        return (Double.isNaN(value) || Double.isInfinite(value)) ? 0.0 : value;
+    }
+
+
+    private static String[] concat(String[]... parts) {
+        ArrayList<String> all = new ArrayList<>();
+        for (String[] part : parts) {
+            all.addAll(Arrays.asList(part));
+        }
+        return all.toArray(new String[0]);
+    }
+}
@@ -16,25 +16,29 @@ package edu.unm.casaa.main;
 
 import edu.unm.casaa.misc.MiscCode;
 import edu.unm.casaa.utterance.Utterance;
-import javafx.animation.Animation;
-import javafx.animation.Interpolator;
-import javafx.animation.TranslateTransition;
+import javafx.animation.AnimationTimer;
+import javafx.beans.value.ChangeListener;
 import javafx.collections.MapChangeListener;
 import javafx.collections.ObservableMap;
+import javafx.geometry.Point2D;
 import javafx.geometry.Pos;
 import javafx.geometry.Side;
+import javafx.geometry.VPos;
 import javafx.scene.Group;
-import javafx.scene.Node;
+import javafx.scene.canvas.Canvas;
+import javafx.scene.canvas.GraphicsContext;
 import javafx.scene.control.ContextMenu;
 import javafx.scene.control.MenuItem;
 import javafx.scene.control.OverrunStyle;
 import javafx.scene.control.Tooltip;
 import javafx.scene.input.MouseButton;
 import javafx.scene.input.MouseEvent;
+import javafx.scene.layout.Region;
 import javafx.scene.layout.StackPane;
 import javafx.scene.layout.VBox;
 import javafx.scene.paint.Color;
 import javafx.scene.shape.*;
+import javafx.scene.text.Font;
 import javafx.scene.text.Text;
 import javafx.scene.text.TextAlignment;
 import javafx.util.Duration;
@@ -42,20 +46,67 @@ import javafx.util.Duration;
 import java.beans.PropertyChangeListener;
 import java.beans.PropertyChangeSupport;
 import java.sql.SQLException;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.function.Supplier;
 
 
 /**
  * Animated timeline of utterances
+ *
+ * Utterances are kept in a time index and only those in the visible window, plus a margin
+ * either side, have marker nodes. Marker nodes leaving the window are hidden and reused for
+ * markers entering it, so the scene graph stays the same size however long the session is.
+ *
+ * With canvas rendering there are no marker nodes at all. The axis and markers in the window are
+ * drawn onto one canvas, redrawn only when the window moves on or markers change. Selection,
+ * context menu and annotation tooltip hit-test the time index, and the menu and tooltip are
+ * created only for the marker clicked or hovered.
+ *
+ * While playing, a scroller reads the media clock once per pulse and positions the timeline from
+ * it, so the timeline cannot drift from playback whatever the rate.
  */
 public class TimeLine extends Group {
 
+    /* markers are materialized at least this many seconds either side of the visible window */
+    private static final double MIN_MARGIN_SECONDS = 10.0;
+    /* room left of time zero for marker bubbles. Keeps layout bounds, and so timeline position, fixed */
+    private static final double EXTENT_PAD = 50.0;
+    /* set this system property to print scroller metrics each time playback pauses */
+    public static final String METRICS_PROPERTY = "casaa.timeline.metrics";
+
     private int pixelsPerSecond	                     = 50;     // sort of a framerate for the animation
-    private TranslateTransition animation           = null;   // animation for moving timeline
+    private final Scroller scroller;                           // moves timeline with the media clock
+    private final Supplier<Duration> mediaClock;               // current media time
+    private final double originX;                              // translateX at time zero
+    private Runnable onPauseRequest                 = null;   // asks owner to pause playback
+    private final MapChangeListener<String, Utterance> utteranceListener; // keeps markers in step with model
+    private final ChangeListener<Number> parentWidthListener = (o, oldWidth, newWidth) -> updateWindow(false); // on current parent only
     private TimeLineMarker selectedMarker           = null;   // store currently selected marker, if any
+    private Utterance selectedUtterance             = null;   // utterance of selected marker, either renderer
     private SessionData.UtteranceList utteranceList = null;   //
     private double height                           = 55.0;   // projected height of timeline. forces Group dimensions early
     private double thickness                        = 2.0;    // thickness of line that represents time :)
 
+    private final Duration audioDuration;
+    private final Line axis;                                   // center line, spans materialized window only
+    // every utterance, ordered by start time
+    private final TreeMap<MarkerKey, Utterance> timeIndex = new TreeMap<>();
+    // every utterance, by id. Kept in step with timeIndex
+    private final HashMap<String, Utterance> idIndex = new HashMap<>();
+    // markers currently shown, by utterance id
+    private final HashMap<String, TimeLineMarker> shownMarkers = new HashMap<>();
+    // hidden marker nodes ready for reuse
+    private final ArrayDeque<TimeLineMarker> markerPool = new ArrayDeque<>();
+    // draws markers instead of marker nodes. null unless canvas rendering
+    private final MarkerCanvas markerCanvas;
+    // time span, in seconds, that currently has marker nodes
+    private double shownFrom = 0.0;
+    private double shownTo = -1.0;
+
 
     /*
         Add change property support to TimeLine
@@ -109,11 +160,26 @@ public class TimeLine extends Group {
      * @param pixelsPerSecond Temporal resolution of timeline
      * @param center Horizontal center is beginning of timeline
      * @param utteranceList A reference to the utterance list that will be rendered on the timeline as TimeLineMarkers
+     * @param mediaClock current time of the media the timeline follows
      */
-    public TimeLine(Duration audioDuration, int pixelsPerSecond, double center, SessionData.UtteranceList utteranceList) {
+    public TimeLine(Duration audioDuration, int pixelsPerSecond, double center, SessionData.UtteranceList utteranceList, Supplier<Duration> mediaClock) {
+        this(audioDuration, pixelsPerSecond, center, utteranceList, mediaClock, false);
+    }
+
+
+    /**
+     * @param audioDuration Time span of timeline
+     * @param pixelsPerSecond Temporal resolution of timeline
+     * @param center Horizontal center is beginning of timeline
+     * @param utteranceList A reference to the utterance list that will be rendered on the timeline
+     * @param mediaClock current time of the media the timeline follows
+     * @param canvasRendering draw markers on a canvas rather than as TimeLineMarker nodes
+     */
+    public TimeLine(Duration audioDuration, int pixelsPerSecond, double center, SessionData.UtteranceList utteranceList, Supplier<Duration> mediaClock, boolean canvasRendering) {
 
         this.pixelsPerSecond = pixelsPerSecond;
         this.utteranceList = utteranceList;
+        this.mediaClock = mediaClock;
 
         /*
             horizontal center is beginning of timeline
@@ -121,56 +187,75 @@ public class TimeLine extends Group {
             Manual layout is ok as i don't want cursor to move when window is resized
             Manual layout is sort of required because the Node type is Group
         */
+        this.audioDuration = audioDuration;
+
+        /*
+            fixed extent left of time zero. The parent lays this Group out by its bounds, which would
+            otherwise change as markers come and go. Offset translation so time zero stays at center.
+         */
+        Rectangle extent = new Rectangle(-EXTENT_PAD, 0, EXTENT_PAD, height);
+        extent.setFill(Color.TRANSPARENT);
+        extent.setMouseTransparent(true);
+        this.getChildren().add(extent);
+
         // where does timeline begin; center
-        this.setTranslateX(center);
+        originX = center + (thickness/2.0) - EXTENT_PAD;
+        this.setTranslateX(originX);
 
         /*
             the center line of the timeline
          */
-        double end = audioDuration.toSeconds() * pixelsPerSecond;
-        Line h = new Line(0,0,end,0);
-        h.setStroke(Color.rgb(255,0,0,1.0));
-        h.setStrokeWidth(thickness);
-        h.setTranslateY( (height/2.0) + (thickness/2.0) );
-        this.getChildren().add(h);
+        axis = new Line(0,0,0,0);
+        axis.setStroke(Color.rgb(255,0,0,1.0));
+        axis.setStrokeWidth(thickness);
+        axis.setTranslateY( (height/2.0) + (thickness/2.0) );
+        this.getChildren().add(axis);
+
+        if( canvasRendering ) {
+            // canvas draws its own axis
+            axis.setVisible(false);
+            markerCanvas = new MarkerCanvas();
+            this.getChildren().add(markerCanvas);
+        } else {
+            markerCanvas = null;
+        }
 
         renderUtterances();
 
-
         /*
-         * initialize the animation of timeline
-         * add 2 seconds to duration of timeline. We want to timeline to outlast
-         * the media playback until we figure out how to recover timeline after
-         * onFinished
+            materialize markers for the visible window as the timeline moves or is resized
          */
-        animation = new TranslateTransition(audioDuration.add(new Duration(2000.0)), this);
-        // interpolator needs to be linear like the audio playback
-        animation.setInterpolator(Interpolator.LINEAR);
+        this.translateXProperty().addListener((observable, oldValue, newValue) -> updateWindow(false));
+        this.layoutXProperty().addListener((observable, oldValue, newValue) -> updateWindow(false));
+        this.parentProperty().addListener((observable, oldParent, newParent) -> {
+            // parent may outlive this timeline, e.g. a cached view, so never leave the listener behind
+            if( oldParent instanceof Region ) {
+                ((Region) oldParent).widthProperty().removeListener(parentWidthListener);
+            }
+            if( newParent instanceof Region ) {
+                ((Region) newParent).widthProperty().addListener(parentWidthListener);
+            }
+            updateWindow(true);
+        });
 
-        /*
-         * translation is negative of the entire timeline width
-         * Here, subtract 2 seconds worth of line to compensate for duration extension above
-         */
-        double byX = -audioDuration.toSeconds() * pixelsPerSecond - (2 * pixelsPerSecond);
-        animation.setByX(byX);
+
+        scroller = new Scroller();
 
         /*
          * Define listeners for change to utterance list
          * This links timeline markers to changes in utterance list
         */
         ObservableMap<String, Utterance> observableMap = utteranceList.getObservableMap();
-        observableMap.addListener(new MapChangeListener() {
-            public void onChanged(MapChangeListener.Change change) {
-                if(change.wasAdded()){
-                    Utterance utr = (Utterance) change.getValueAdded();
-                    addMarker(utr);
-
-                } else if(change.wasRemoved()) {
-                    Utterance utr = (Utterance) change.getValueRemoved();
-                    removeMarker(utr);
-                }
+        utteranceListener = change -> {
+            // a put over an existing id is both a removal and an addition
+            if(change.wasRemoved()) {
+                removeMarker(change.getValueRemoved());
             }
-        });
+            if(change.wasAdded()){
+                addMarker(change.getValueAdded());
+            }
+        };
+        observableMap.addListener(utteranceListener);
 
     }
 
@@ -182,10 +267,17 @@ public class TimeLine extends Group {
      * @param newUtterance Utterance to add
      */
     public void addMarker(Utterance newUtterance) {
-        // insert updated marker
-        //TimeLineMarker newMarker = new TimeLineMarker(newUtterance.toString(), newUtterance.getMiscCode().name, newUtterance.getStartTime().toSeconds(), newUtterance.getMiscCode().getSpeaker());
-        TimeLineMarker newMarker = new TimeLineMarker(newUtterance);
-        this.getChildren().add(newMarker);
+        index(newUtterance);
+
+        // show now if inside the materialized window
+        double t = newUtterance.getStartTime().toSeconds();
+        if( t >= shownFrom && t <= shownTo ) {
+            if( markerCanvas != null ) {
+                markerCanvas.redraw();
+            } else {
+                showMarker(newUtterance);
+            }
+        }
     }
 
     /**
@@ -195,16 +287,16 @@ public class TimeLine extends Group {
      */
     public String add(Utterance newUtterance) throws SQLException {
         /* check for selected timeline marker */
-        TimeLineMarker activeMarker = getSelectedMarker();
+        Utterance activeUtterance = selectedUtterance;
 
         /*
             if the timeline's active marker is not null
             we are in edit mode and will update code and speaker
          */
-        if(activeMarker != null) {
+        if(activeUtterance != null) {
             /* Edit active marker */
-            String prevId  = activeMarker.getMarkerID();
-            double prevPos = activeMarker.utterance.getStartTime().toSeconds();
+            String prevId  = activeUtterance.getID();
+            double prevPos = activeUtterance.getStartTime().toSeconds();
 
             /* remove marker from timeline and model */
             utteranceList.remove(prevId);
@@ -213,8 +305,7 @@ public class TimeLine extends Group {
             String newID = Utils.formatID(Duration.seconds(prevPos), newUtterance.getMiscCode().value);
 
             /* prevent flipping onto existing marker */
-            Node r = this.lookup("#"+newUtterance.getID());
-            if( r == null) {
+            if( !idIndex.containsKey(newID) ) {
                 /*
                   update model, id and time = PREVIOUS, the other members can be updated
                  */
@@ -228,14 +319,7 @@ public class TimeLine extends Group {
              * check if exact utterance is already in list.
              * This to prevent timeline from adding duplicates.
              */
-            Node r = this.lookup("#"+newUtterance.getID());
-            if( r == null ) {
-                /*
-                 * sync timeline with player time to marker appears lined up.
-                 * Do this only for new markers not edited above here
-                 */
-                this.getAnimation().jumpTo(newUtterance.getStartTime());
-
+            if( !idIndex.containsKey(newUtterance.getID()) ) {
                 // new utterance in storage
                 utteranceList.add(newUtterance);
             }
@@ -249,8 +333,7 @@ public class TimeLine extends Group {
      * Call me when you want to delete an utterance from model
     */
     public void remove(String markerID) throws SQLException {
-        Node r = this.lookup("#"+markerID);
-        if( r != null) {
+        if( idIndex.containsKey(markerID) ) {
             utteranceList.remove(markerID);
         }
     }
@@ -259,19 +342,132 @@ public class TimeLine extends Group {
      * Call me when you want to delete an utterance marker from the timeline
     */
     public void removeMarker(Utterance utr) {
-        Node r = this.lookup("#"+(utr.getID()));
-        if( r != null) {
-            this.getChildren().remove(r);
+        // index by id, utr may be a stale copy with a different start time
+        Utterance indexed = idIndex.remove(utr.getID());
+        if( indexed != null ) {
+            timeIndex.remove(new MarkerKey(indexed));
+        }
+
+        if( markerCanvas != null ) {
+            if( selectedUtterance != null && selectedUtterance.getID().equals(utr.getID()) ) {
+                selectedUtterance = null;
+            }
+            markerCanvas.redraw();
+            return;
+        }
+
+        TimeLineMarker marker = shownMarkers.remove(utr.getID());
+        if( marker != null) {
+            releaseMarker(marker);
             this.setSelectedMarker(null);
         }
     }
 
     /**
-     * adds a marker to the timeline for each utterance in the model
+     * indexes every utterance in the model and shows markers for the visible window
      */
     public void renderUtterances() {
-        this.getChildren().remove(1, this.getChildren().size());
-        utteranceList.values().forEach(this::addMarker);
+        new ArrayList<>(shownMarkers.values()).forEach(this::releaseMarker);
+        shownMarkers.clear();
+        timeIndex.clear();
+        idIndex.clear();
+        utteranceList.values().forEach(this::index);
+        updateWindow(true);
+    }
+
+
+    /**
+     * Add utterance to id and time indexes, replacing any entry with the same id
+     */
+    private void index(Utterance utr) {
+        Utterance previous = idIndex.put(utr.getID(), utr);
+        if( previous != null ) {
+            timeIndex.remove(new MarkerKey(previous));
+        }
+        timeIndex.put(new MarkerKey(utr), utr);
+    }
+
+
+    /**
+     * Show markers for the visible window plus margin, reusing nodes of markers that left it.
+     * Does nothing while the visible window is still inside the materialized one, unless forced.
+     * @param force recompute even if the visible window has not left the materialized one
+     */
+    private void updateWindow(boolean force) {
+
+        // visible span in timeline coordinates
+        double viewWidth = (getParent() instanceof Region) ? ((Region) getParent()).getWidth()
+                : (getScene() != null ? getScene().getWidth() : 0.0);
+        Point2D left = parentToLocal(0.0, 0.0);
+        Point2D right = parentToLocal(viewWidth, 0.0);
+        double visibleFrom = left.getX() / pixelsPerSecond;
+        double visibleTo = right.getX() / pixelsPerSecond;
+
+        if( !force && visibleFrom >= shownFrom && visibleTo <= shownTo ) {
+            return;
+        }
+
+        double margin = Math.max(MIN_MARGIN_SECONDS, (visibleTo - visibleFrom) / 2.0);
+        shownFrom = visibleFrom - margin;
+        shownTo = visibleTo + margin;
+
+        if( markerCanvas != null ) {
+            markerCanvas.relocate();
+            markerCanvas.redraw();
+            return;
+        }
+
+        // hide markers that left the window. Selected marker keeps its node so selection is not lost
+        ArrayList<String> leaving = new ArrayList<>();
+        for (Map.Entry<String, TimeLineMarker> e : shownMarkers.entrySet()) {
+            double t = e.getValue().utterance.getStartTime().toSeconds();
+            if( (t < shownFrom || t > shownTo) && e.getValue() != selectedMarker ) {
+                leaving.add(e.getKey());
+            }
+        }
+        for (String id : leaving) {
+            releaseMarker(shownMarkers.remove(id));
+        }
+
+        // show markers that entered it
+        for (Utterance utr : timeIndex.subMap(MarkerKey.from(shownFrom), true, MarkerKey.to(shownTo), true).values()) {
+            if( !shownMarkers.containsKey(utr.getID()) ) {
+                showMarker(utr);
+            }
+        }
+
+        // center line covers the materialized part of the recording
+        double end = audioDuration.toSeconds();
+        axis.setStartX(Math.max(0.0, shownFrom) * pixelsPerSecond);
+        axis.setEndX(Math.max(0.0, Math.min(end, shownTo)) * pixelsPerSecond);
+    }
+
+
+    /**
+     * Bind a pooled or new marker node to utterance
+     */
+    private void showMarker(Utterance utr) {
+        TimeLineMarker marker = markerPool.poll();
+        if( marker == null ) {
+            marker = new TimeLineMarker();
+            this.getChildren().add(marker);
+        }
+        marker.setUtterance(utr);
+        marker.setVisible(true);
+        shownMarkers.put(utr.getID(), marker);
+    }
+
+
+    /**
+     * Hide marker node and return it to the pool
+     */
+    private void releaseMarker(TimeLineMarker marker) {
+        if( marker == selectedMarker ) {
+            setSelectedMarker(null);
+        }
+        marker.setVisible(false);
+        marker.clearUtterance();
+        markerPool.push(marker);
     }
 
     /**
@@ -288,14 +484,144 @@ public class TimeLine extends Group {
      */
     public void setSelectedMarker(TimeLineMarker selectedMarker) {
         this.selectedMarker = selectedMarker;
+        this.selectedUtterance = (selectedMarker == null) ? null : selectedMarker.utterance;
+    }
+
+
+    /**
+     * Deselect any selected marker, whichever renderer is used
+     */
+    public void clearSelection() {
+        if( selectedMarker != null ) {
+            selectedMarker.selected(false);
+        }
+        setSelectedMarker(null);
+        if( markerCanvas != null ) {
+            markerCanvas.redraw();
+        }
     }
 
+
     /**
-     * access the animation portion of this timeline
-     * @return animation
+     * Redraw marker after its utterance changed, e.g. annotation edited
+     * @param utterance_id
      */
-    public TranslateTransition getAnimation() {
-        return animation;
+    public void refreshMarker(String utterance_id) {
+        if( markerCanvas != null ) {
+            markerCanvas.redraw();
+            return;
+        }
+        TimeLineMarker marker = shownMarkers.get(utterance_id);
+        if( marker != null ) {
+            marker.setAnnotationToolTipText();
+        }
+    }
+
+
+    /**
+     * Screen position of the top right corner of a marker, used to place popups next to it
+     * @param utterance_id
+     * @return screen point or null if no such marker
+     */
+    public Point2D getMarkerScreenPoint(String utterance_id) {
+        if( markerCanvas != null ) {
+            Utterance utr = idIndex.get(utterance_id);
+            if( utr == null ) {
+                return null;
+            }
+            double[] bubble = markerCanvas.bubbleBounds(utr);
+            return localToScreen(bubble[0] + bubble[2], bubble[1]);
+        }
+        TimeLineMarker marker = getTimeLineMarker(utterance_id);
+        if( marker == null ) {
+            return null;
+        }
+        return marker.localToScreen(new Point2D(marker.getLayoutBounds().getMaxX(), marker.getLayoutBounds().getMinY()));
+    }
+
+    /**
+     * Stop following the media clock and the utterance list. Call when timeline is replaced or removed.
+     */
+    public void dispose() {
+        pause();
+        utteranceList.getObservableMap().removeListener(utteranceListener);
+        if( getParent() instanceof Region ) {
+            ((Region) getParent()).widthProperty().removeListener(parentWidthListener);
+        }
+    }
+
+
+    /**
+     * Follow the media clock on every pulse. Call when playback starts.
+     */
+    public void play() {
+        scroller.start();
+    }
+
+
+    /**
+     * Stop following the media clock, leaving timeline where it is
+     */
+    public void pause() {
+        if( scroller.running && Boolean.getBoolean(METRICS_PROPERTY) ) {
+            System.err.println("timeline " + getMetrics());
+        }
+        scroller.stop();
+    }
+
+
+    /**
+     * @return true while timeline follows the media clock
+     */
+    public boolean isPlaying() {
+        return scroller.running;
+    }
+
+
+    /**
+     * Position timeline at a media time, e.g. after a seek. Until the media clock
+     * catches up with the seek the timeline stays at this position.
+     * @param position media time
+     */
+    public void showTime(Duration position) {
+        scroller.seek(position.toMillis());
+    }
+
+
+    /**
+     * Position timeline at the current media time
+     */
+    public void sync() {
+        scroller.seek(mediaClock.get().toMillis());
+    }
+
+
+    /**
+     * @param onPauseRequest called when user interaction with the timeline should pause playback
+     */
+    public void setOnPauseRequest(Runnable onPauseRequest) {
+        this.onPauseRequest = onPauseRequest;
+    }
+
+
+    /**
+     * @return frame time and drift measured by the scroller since it was last started
+     */
+    public Metrics getMetrics() {
+        return scroller.metrics();
+    }
+
+
+    /**
+     * Stop the timeline and ask the owner to pause playback while user works with utterance code
+     */
+    private void requestPause() {
+        if( isPlaying() ) {
+            pause();
+            if( onPauseRequest != null ) {
+                onPauseRequest.run();
+            }
+        }
     }
 
 
@@ -304,7 +630,17 @@ public class TimeLine extends Group {
      * @return
      */
     public TimeLineMarker getTimeLineMarker(String utterance_id) {
-        return (TimeLine.TimeLineMarker) this.lookup("#"+utterance_id);
+        if( markerCanvas != null ) {
+            // no marker nodes with canvas rendering
+            return null;
+        }
+        TimeLineMarker marker = shownMarkers.get(utterance_id);
+        if( marker == null && idIndex.containsKey(utterance_id) ) {
+            // outside materialized window; caller needs a node to position against
+            showMarker(idIndex.get(utterance_id));
+            marker = shownMarkers.get(utterance_id);
+        }
+        return marker;
     }
 
 
@@ -322,6 +658,8 @@ public class TimeLine extends Group {
         // TODO: i need this only if i want to immediately update tooltip after editing annotation
         private Tooltip annotationToolTip;
         private StackPane codeBubble;
+        private Rectangle codeBubbleOutline;
+        private Rectangle annotationShape;  // shown when utterance is annotated
 
 
 
@@ -354,27 +692,28 @@ public class TimeLine extends Group {
          * @param utterance
          */
         public TimeLineMarker(Utterance utterance) {
+            this();
+            setUtterance(utterance);
+        }
+
+
+        /**
+         * Marker node not yet bound to an utterance. Used for the marker pool.
+         */
+        private TimeLineMarker() {
 
             // Set spacing between nodes inside marker. specify spacing as CSS doesn't appear to work for this
             this.setSpacing(0.0);
-            // timeline marker has an utterance
-            this.utterance = utterance;
-            this.markerID = utterance.toString();
-
-            // where does marker point on timeline
-            double tipPos = (utterance.getStartTime().toSeconds() * pixelsPerSecond);
 
             // initialize utterance code
-            markerCode = new Text(utterance.getMiscCode().name);
+            markerCode = new Text();
             markerCode.setTextAlignment(TextAlignment.CENTER);
-            double markerCodeWidth = markerCode.getBoundsInLocal().getWidth();
-            double markerCodeHeight = markerCode.getBoundsInLocal().getHeight();
 
             // stack code and surrounding bubble
             codeBubble = new StackPane();
 
             // bubble outline
-            Rectangle codeBubbleOutline = new Rectangle( (markerCodeWidth + 4.0), (markerCodeHeight + 1.0));
+            codeBubbleOutline = new Rectangle();
             codeBubbleOutline.setArcHeight(5.0);
             codeBubbleOutline.setArcWidth(5.0);
             codeBubbleOutline.setFill(Color.WHITE);
@@ -386,53 +725,22 @@ public class TimeLine extends Group {
             codeBubble.getChildren().addAll(codeBubbleOutline, markerCode);
 
             // shape to indicate if utterance is annotated
-            if( utterance.isAnnotated() ) {
-                this.setAnnotationIndicator();
-            }
-            //
-            codeBubble.autosize();
+            annotationShape = new Rectangle(4.0, 4.0);
+            annotationShape.setFill(Color.RED);
+            annotationShape.setStroke(Color.BLACK);
+            annotationShape.setStrokeWidth(1.0);
+            annotationShape.setStrokeType(StrokeType.INSIDE);
+            annotationShape.setArcWidth(4.0);
+            annotationShape.setArcHeight(4.0);
 
             // define tooltip for codeBubble. Assign text with setter member.
             annotationToolTip = new Tooltip();
             annotationToolTip.setWrapText(true);
             annotationToolTip.setTextOverrun(OverrunStyle.ELLIPSIS);
             annotationToolTip.setMaxWidth(300.0);
-            setAnnotationToolTipText();
-
-            // formatting of marker varies on speaker (above/below timeline)
-            if( utterance.getMiscCode().getSpeaker().equals(MiscCode.Speaker.Therapist) ) {
 
-                // individual node alignment in stackpane necessary to avoid little space between nodes on screen
-                StackPane.setAlignment(codeBubbleOutline, Pos.BOTTOM_CENTER);
-                StackPane.setAlignment(markerCode, Pos.CENTER);
-
-                // tick mark between code bubble and timeline
-                this.indicatorShape = new Polygon(0,-indicatorWidth, indicatorWidth, 0, indicatorWidth*2,-indicatorWidth);
-
-                // add code bubble and indicator to create marker
-                this.getChildren().addAll(codeBubble,indicatorShape);
-
-                // vertical placement on timeline
-                this.setTranslateY( (height/2.0)-(thickness/2.0)-indicatorWidth-codeBubbleOutline.getBoundsInParent().getHeight() );
-                if( System.getProperty("os.name","UNKNOWN").toLowerCase().contains("windows")) {
-                    this.setTranslateY( (height/2.0)-indicatorWidth-codeBubbleOutline.getBoundsInParent().getHeight() );
-                }
-
-
-            } else {
-                // speaker 2
-
-                // individual node alignment in stackpane necessary to avoid little space between nodes on screen
-                StackPane.setAlignment(codeBubbleOutline, Pos.TOP_CENTER);
-                StackPane.setAlignment(markerCode, Pos.CENTER);
-
-                this.indicatorShape = new Polygon(0,indicatorWidth, indicatorWidth,0, indicatorWidth*2,indicatorWidth);
-                this.getChildren().addAll(indicatorShape, codeBubble);
-                this.setTranslateY( (height/2.0)+thickness );
-            }
-
-            // horizontal placement on timeline
-            this.setTranslateX(tipPos - codeBubbleOutline.getBoundsInParent().getWidth()/2.0);
+            // tick mark between code bubble and timeline. Points depend on speaker
+            this.indicatorShape = new Polygon();
             this.setAlignment(Pos.CENTER);
 
 
@@ -445,9 +753,7 @@ public class TimeLine extends Group {
             this.addEventFilter(MouseEvent.MOUSE_CLICKED, e -> {
 
                 // Stop the timeline animation while user works with utterance code
-                if( animation.getStatus() == Animation.Status.RUNNING ) {
-                    animation.pause();
-                }
+                requestPause();
 
                 // get marker clicked on
                 TimeLineMarker timeLineMarker = (TimeLineMarker) e.getSource();
@@ -488,11 +794,90 @@ public class TimeLine extends Group {
 
             });
 
+        }
+
+
+        /**
+         * Bind this marker node to an utterance: code, speaker side, annotation and position
+         * @param utterance
+         */
+        private void setUtterance(Utterance utterance) {
+
+            // timeline marker has an utterance
+            this.utterance = utterance;
+            this.markerID = utterance.toString();
+
+            // where does marker point on timeline
+            double tipPos = (utterance.getStartTime().toSeconds() * pixelsPerSecond);
+
+            // utterance code sizes the bubble
+            markerCode.setText(utterance.getMiscCode().name);
+            double markerCodeWidth = markerCode.getBoundsInLocal().getWidth();
+            double markerCodeHeight = markerCode.getBoundsInLocal().getHeight();
+            codeBubbleOutline.setWidth(markerCodeWidth + 4.0);
+            codeBubbleOutline.setHeight(markerCodeHeight + 1.0);
+
+            // shape to indicate if utterance is annotated
+            this.setAnnotationIndicator();
+            //
+            codeBubble.autosize();
+
+            setAnnotationToolTipText();
+
+            // formatting of marker varies on speaker (above/below timeline)
+            if( utterance.getMiscCode().getSpeaker().equals(MiscCode.Speaker.Therapist) ) {
+
+                // individual node alignment in stackpane necessary to avoid little space between nodes on screen
+                StackPane.setAlignment(codeBubbleOutline, Pos.BOTTOM_CENTER);
+                StackPane.setAlignment(markerCode, Pos.CENTER);
+
+                // tick mark between code bubble and timeline
+                this.indicatorShape.getPoints().setAll(0.0,(double) -indicatorWidth, (double) indicatorWidth, 0.0, indicatorWidth*2.0,(double) -indicatorWidth);
+
+                // add code bubble and indicator to create marker
+                this.getChildren().setAll(codeBubble,indicatorShape);
+
+                // vertical placement on timeline
+                this.setTranslateY( (height/2.0)-(thickness/2.0)-indicatorWidth-codeBubbleOutline.getBoundsInParent().getHeight() );
+                if( System.getProperty("os.name","UNKNOWN").toLowerCase().contains("windows")) {
+                    this.setTranslateY( (height/2.0)-indicatorWidth-codeBubbleOutline.getBoundsInParent().getHeight() );
+                }
+
+
+            } else {
+                // speaker 2
+
+                // individual node alignment in stackpane necessary to avoid little space between nodes on screen
+                StackPane.setAlignment(codeBubbleOutline, Pos.TOP_CENTER);
+                StackPane.setAlignment(markerCode, Pos.CENTER);
+
+                this.indicatorShape.getPoints().setAll(0.0,(double) indicatorWidth, (double) indicatorWidth,0.0, indicatorWidth*2.0,(double) indicatorWidth);
+                this.getChildren().setAll(indicatorShape, codeBubble);
+                this.setTranslateY( (height/2.0)+thickness );
+            }
+
+            // horizontal placement on timeline
+            this.setTranslateX(tipPos - codeBubbleOutline.getBoundsInParent().getWidth()/2.0);
+
+            // reused nodes start deselected
+            this.selected(false);
+
             // set parent container to id that will be used to pull utterance;
             this.setId(markerID);
         }
 
 
+        /**
+         * Unbind from utterance before returning to the pool
+         */
+        private void clearUtterance() {
+            Tooltip.uninstall(codeBubble, annotationToolTip);
+            this.utterance = null;
+            this.markerID = null;
+            this.setId(null);
+        }
+
+
         /**
          * generate right-click pop-up menu
          * @return ContextMenu
@@ -536,22 +921,14 @@ public class TimeLine extends Group {
         public void setAnnotationIndicator() {
 
             if (this.utterance.isAnnotated() && this.codeBubble.getChildren().size() == 2) {
-                // shape to indicate if utterance is annotated
-                Rectangle annotationShape = new Rectangle(4.0, 4.0);
-                annotationShape.setFill(Color.RED);
-                annotationShape.setStroke(Color.BLACK);
-                annotationShape.setStrokeWidth(1.0);
-                annotationShape.setStrokeType(StrokeType.INSIDE);
-                annotationShape.setArcWidth(4.0);
-                annotationShape.setArcHeight(4.0);
-
                 this.codeBubble.getChildren().add(annotationShape);
+            }
 
-                if (this.utterance.getMiscCode().getSpeaker().equals(MiscCode.Speaker.Therapist)) {
-                    StackPane.setAlignment(annotationShape, Pos.TOP_RIGHT);
-                } else {
-                    StackPane.setAlignment(annotationShape, Pos.BOTTOM_RIGHT);
-                }
+            // reused nodes may change speaker side
+            if (this.utterance.getMiscCode().getSpeaker().equals(MiscCode.Speaker.Therapist)) {
+                StackPane.setAlignment(annotationShape, Pos.TOP_RIGHT);
+            } else {
+                StackPane.setAlignment(annotationShape, Pos.BOTTOM_RIGHT);
             }
 
 
@@ -589,4 +966,403 @@ public class TimeLine extends Group {
     }
 
 
+
+    /**
+     * Draws axis and markers of the materialized window.
+     * Inline so that it has access to TimeLine properties and indexes
+     */
+    private class MarkerCanvas extends Canvas {
+
+        private final int indicatorWidth = 4;       // size of arrow, as TimeLineMarker
+        private final Font font = Font.getDefault();
+        // measures code text; bubble sizes cached per code
+        private final Text measure = new Text();
+        private final HashMap<String, double[]> bubbleSizes = new HashMap<>();
+        // widest bubble so far, bounds hit-test search in time index
+        private double maxBubbleWidth = 0.0;
+        // created on first hover over an annotated marker
+        private Tooltip annotationToolTip = null;
+        private Utterance hovered = null;
+
+
+        MarkerCanvas() {
+            super(0.0, height);
+            measure.setFont(font);
+
+            this.addEventHandler(MouseEvent.MOUSE_CLICKED, this::clicked);
+            this.addEventHandler(MouseEvent.MOUSE_MOVED, e -> hover(hitTest(e.getX() + getTranslateX(), e.getY()), e));
+            this.addEventHandler(MouseEvent.MOUSE_EXITED, e -> hover(null, e));
+        }
+
+
+        /**
+         * Move and size canvas to the materialized window. Never extends left of the fixed
+         * extent, so layout bounds of the timeline stay put.
+         */
+        void relocate() {
+            double from = Math.max(-EXTENT_PAD, shownFrom * pixelsPerSecond);
+            double to = Math.max(from, shownTo * pixelsPerSecond);
+            setTranslateX(from);
+            setWidth(to - from);
+        }
+
+
+        /**
+         * Draw axis and every marker in the materialized window in one pass
+         */
+        void redraw() {
+            GraphicsContext gc = getGraphicsContext2D();
+            double originX = getTranslateX();
+            gc.clearRect(0, 0, getWidth(), getHeight());
+
+            // center line of the timeline, recording part only
+            double axisFrom = Math.max(0.0, shownFrom) * pixelsPerSecond;
+            double axisTo = Math.max(0.0, Math.min(audioDuration.toSeconds(), shownTo)) * pixelsPerSecond;
+            if( axisTo > axisFrom ) {
+                gc.setFill(Color.rgb(255,0,0,1.0));
+                gc.fillRect(axisFrom - originX, height/2.0, axisTo - axisFrom, thickness);
+            }
+
+            gc.setFont(font);
+            gc.setTextAlign(TextAlignment.CENTER);
+            gc.setTextBaseline(VPos.CENTER);
+            gc.setLineWidth(1.0);
+
+            for (Utterance utr : timeIndex.subMap(MarkerKey.from(shownFrom), true, MarkerKey.to(shownTo), true).values()) {
+                draw(gc, utr, originX);
+            }
+        }
+
+
+        private void draw(GraphicsContext gc, Utterance utr, double originX) {
+            double[] bubble = bubbleBounds(utr);
+            double x = bubble[0] - originX;
+            double y = bubble[1];
+            double w = bubble[2];
+            double h = bubble[3];
+            double tip = utr.getStartTime().toSeconds() * pixelsPerSecond - originX;
+            boolean therapist = utr.getMiscCode().getSpeaker().equals(MiscCode.Speaker.Therapist);
+
+            // code bubble
+            gc.setFill(Color.WHITE);
+            gc.fillRoundRect(x, y, w, h, 5.0, 5.0);
+            gc.setStroke(Color.GRAY);
+            gc.strokeRoundRect(x - 0.5, y - 0.5, w + 1.0, h + 1.0, 5.0, 5.0);
+            gc.setFill(Color.BLACK);
+            gc.fillText(utr.getMiscCode().name, x + w/2.0, y + h/2.0);
+
+            // annotation indicator
+            if( utr.isAnnotated() ) {
+                double ay = therapist ? y : y + h - 4.0;
+                gc.setFill(Color.RED);
+                gc.fillRoundRect(x + w - 4.0, ay, 4.0, 4.0, 4.0, 4.0);
+                gc.setStroke(Color.BLACK);
+                gc.strokeRoundRect(x + w - 3.5, ay + 0.5, 3.0, 3.0, 4.0, 4.0);
+            }
+
+            // tick mark between code bubble and timeline
+            boolean selected = selectedUtterance != null && selectedUtterance.getID().equals(utr.getID());
+            gc.setFill(selected ? Color.INDIANRED : Color.BLACK);
+            double tipY = therapist ? height/2.0 : height/2.0 + thickness;
+            double baseY = therapist ? tipY - indicatorWidth : tipY + indicatorWidth;
+            gc.fillPolygon(new double[]{tip - indicatorWidth, tip, tip + indicatorWidth}, new double[]{baseY, tipY, baseY}, 3);
+        }
+
+
+        /**
+         * @return x, y, width, height of code bubble in timeline coordinates
+         */
+        double[] bubbleBounds(Utterance utr) {
+            String code = utr.getMiscCode().name;
+            double[] size = bubbleSizes.get(code);
+            if( size == null ) {
+                measure.setText(code);
+                size = new double[]{ measure.getLayoutBounds().getWidth() + 4.0, measure.getLayoutBounds().getHeight() + 1.0 };
+                bubbleSizes.put(code, size);
+                maxBubbleWidth = Math.max(maxBubbleWidth, size[0]);
+            }
+            double tip = utr.getStartTime().toSeconds() * pixelsPerSecond;
+            double y = utr.getMiscCode().getSpeaker().equals(MiscCode.Speaker.Therapist)
+                    ? (height/2.0) - indicatorWidth - size[1]
+                    : (height/2.0) + thickness + indicatorWidth;
+            return new double[]{ tip - size[0]/2.0, y, size[0], size[1] };
+        }
+
+
+        /**
+         * Find marker under a point using the time index
+         * @param x timeline x coordinate
+         * @param y timeline y coordinate
+         * @return utterance whose marker contains the point or null
+         */
+        private Utterance hitTest(double x, double y) {
+            double t = x / pixelsPerSecond;
+            double reach = (maxBubbleWidth / 2.0 + indicatorWidth) / pixelsPerSecond;
+            Utterance hit = null;
+            for (Utterance utr : timeIndex.subMap(MarkerKey.from(t - reach), true, MarkerKey.to(t + reach), true).values()) {
+                double[] b = bubbleBounds(utr);
+                boolean therapist = utr.getMiscCode().getSpeaker().equals(MiscCode.Speaker.Therapist);
+                // bubble plus indicator down to, or up from, the axis
+                double top = therapist ? b[1] : height/2.0;
+                double bottom = therapist ? height/2.0 + thickness : b[1] + b[3];
+                if( x >= b[0] && x <= b[0] + b[2] && y >= top && y <= bottom ) {
+                    // later markers are drawn on top
+                    hit = utr;
+                }
+            }
+            return hit;
+        }
+
+
+        /**
+         * Same selection and context menu behaviour as TimeLineMarker
+         */
+        private void clicked(MouseEvent e) {
+            Utterance utr = hitTest(e.getX() + getTranslateX(), e.getY());
+            if( utr == null ) {
+                return;
+            }
+
+            // Stop the timeline animation while user works with utterance code
+            requestPause();
+
+            if( selectedUtterance != null && selectedUtterance.getID().equals(utr.getID()) ) {
+                // selected marker clicked again. If left-click, deselect this marker, if right-click, don't.
+                if( e.getButton().equals(MouseButton.PRIMARY) ) {
+                    selectedUtterance = null;
+                }
+            } else {
+                selectedUtterance = utr;
+            }
+            redraw();
+
+            // "|| e.isControlDown()" is for OSX Ctrl+Click provided in addition to two finger click
+            if( selectedUtterance != null && (e.getButton().equals(MouseButton.SECONDARY) || e.isControlDown()) ) {
+                getContextMenu(selectedUtterance.getID()).show(this, e.getScreenX(), e.getScreenY());
+            }
+        }
+
+
+        private ContextMenu getContextMenu(String markerID) {
+            ContextMenu contextMenu = new ContextMenu();
+
+            MenuItem mniRemoveMarker = new MenuItem("Remove Marker");
+            mniRemoveMarker.setOnAction( e -> {
+                try {
+                    remove(markerID);
+                } catch (SQLException e1) {
+                    e1.printStackTrace();
+                }
+            });
+
+            MenuItem mniAnnotateUtterance = new MenuItem("Annotate");
+            mniAnnotateUtterance.setOnAction( e -> setAnnotateMarker(markerID) );
+
+            contextMenu.getItems().addAll(mniRemoveMarker, mniAnnotateUtterance);
+            contextMenu.getStyleClass().add("contextMenu");
+            return contextMenu;
+        }
+
+
+        /**
+         * Show annotation of hovered marker, hide when leaving it
+         */
+        private void hover(Utterance utr, MouseEvent e) {
+            if( utr == hovered ) {
+                return;
+            }
+            hovered = utr;
+
+            if( annotationToolTip != null ) {
+                annotationToolTip.hide();
+            }
+            if( utr == null || !utr.isAnnotated() ) {
+                return;
+            }
+
+            if( annotationToolTip == null ) {
+                annotationToolTip = new Tooltip();
+                annotationToolTip.setWrapText(true);
+                annotationToolTip.setTextOverrun(OverrunStyle.ELLIPSIS);
+                annotationToolTip.setMaxWidth(300.0);
+            }
+            annotationToolTip.setText(utr.getAnnotation());
+            annotationToolTip.show(this, e.getScreenX() + 10.0, e.getScreenY() + 10.0);
+        }
+    }
+
+
+
+    /**
+     * Positions the timeline from the media clock once per pulse.
+     *
+     * Drift is how far the media clock had moved from the time shown when a pulse arrives,
+     * i.e. how stale the timeline was before being repositioned. Frame time is the interval
+     * between pulses.
+     */
+    private class Scroller extends AnimationTimer {
+
+        /* a seek is considered caught up once the media clock is this close to it */
+        private static final double SEEK_TOLERANCE_MILLIS = 250.0;
+        /* stop waiting for the media clock to reflect a seek after this long */
+        private static final long SEEK_TIMEOUT_NANOS = 1_000_000_000L;
+
+        private boolean running = false;
+        private double shownMillis = -1.0;
+        // position requested by seek that media clock may not reflect yet; NaN if none
+        private double seekMillis = Double.NaN;
+        private long seekNanos = 0L;
+
+        // metrics since start
+        private long lastPulse = 0L;
+        private long frames = 0L;
+        private long totalFrameNanos = 0L;
+        private long maxFrameNanos = 0L;
+        private double lastDriftMillis = 0.0;
+        private double maxDriftMillis = 0.0;
+
+
+        @Override
+        public void start() {
+            if( !running ) {
+                running = true;
+                lastPulse = 0L;
+                frames = 0L;
+                totalFrameNanos = 0L;
+                maxFrameNanos = 0L;
+                maxDriftMillis = 0.0;
+                super.start();
+            }
+        }
+
+
+        @Override
+        public void stop() {
+            running = false;
+            super.stop();
+        }
+
+
+        @Override
+        public void handle(long now) {
+
+            if( lastPulse != 0L ) {
+                long frame = now - lastPulse;
+                frames++;
+                totalFrameNanos += frame;
+                maxFrameNanos = Math.max(maxFrameNanos, frame);
+            }
+            lastPulse = now;
+
+            double millis = mediaClock.get().toMillis();
+
+            // media clock can report the pre-seek time for a while after a seek
+            if( !Double.isNaN(seekMillis) ) {
+                if( Math.abs(millis - seekMillis) < SEEK_TOLERANCE_MILLIS || now - seekNanos > SEEK_TIMEOUT_NANOS ) {
+                    seekMillis = Double.NaN;
+                } else {
+                    millis = seekMillis;
+                }
+            }
+
+            if( shownMillis >= 0.0 ) {
+                lastDriftMillis = millis - shownMillis;
+                maxDriftMillis = Math.max(maxDriftMillis, Math.abs(lastDriftMillis));
+            }
+
+            show(millis);
+        }
+
+
+        void seek(double millis) {
+            seekMillis = millis;
+            seekNanos = System.nanoTime();
+            show(millis);
+        }
+
+
+        private void show(double millis) {
+            if( millis == shownMillis ) {
+                // paused media, nothing to move
+                return;
+            }
+            shownMillis = millis;
+            double seconds = Math.max(0.0, Math.min(audioDuration.toSeconds(), millis / 1000.0));
+            setTranslateX(originX - seconds * pixelsPerSecond);
+        }
+
+
+        Metrics metrics() {
+            double meanFrame = frames == 0 ? 0.0 : (totalFrameNanos / (double) frames) / 1e6;
+            return new Metrics(frames, meanFrame, maxFrameNanos / 1e6, lastDriftMillis, maxDriftMillis);
+        }
+    }
+
+
+
+    /**
+     * Scroller frame time and drift
+     */
+    public static final class Metrics {
+        public final long frames;
+        public final double meanFrameMillis;
+        public final double maxFrameMillis;
+        public final double lastDriftMillis;
+        public final double maxDriftMillis;
+
+        private Metrics(long frames, double meanFrameMillis, double maxFrameMillis, double lastDriftMillis, double maxDriftMillis) {
+            this.frames = frames;
+            this.meanFrameMillis = meanFrameMillis;
+            this.maxFrameMillis = maxFrameMillis;
+            this.lastDriftMillis = lastDriftMillis;
+            this.maxDriftMillis = maxDriftMillis;
+        }
+
+        @Override
+        public String toString() {
+            return String.format("frames=%d frame(mean=%.2fms max=%.2fms) drift(last=%.2fms max=%.2fms)",
+                    frames, meanFrameMillis, maxFrameMillis, lastDriftMillis, maxDriftMillis);
+        }
+    }
+
+
+    /**
+     * Time index key: start time, then utterance id for utterances starting together
+     */
+    private static final class MarkerKey implements Comparable<MarkerKey> {
+
+        private final double seconds;
+        private final String id;
+
+        private MarkerKey(double seconds, String id) {
+            this.seconds = seconds;
+            this.id = id;
+        }
+
+        MarkerKey(Utterance utr) {
+            this(utr.getStartTime().toSeconds(), utr.getID());
+        }
+
+        /* sorts before every key at or after seconds */
+        static MarkerKey from(double seconds) {
+            return new MarkerKey(seconds, "");
+        }
+
+        /* sorts after every key at or before seconds */
+        static MarkerKey to(double seconds) {
+            return new MarkerKey(seconds, null);
+        }
+
+        @Override
+        public int compareTo(MarkerKey o) {
+            int c = Double.compare(seconds, o.seconds);
+            if( c != 0 ) {
+                return c;
+            }
+            if( id == null || o.id == null ) {
+                return (id == o.id) ? 0 : (id == null ? 1 : -1);
+            }
+            return id.compareTo(o.id);
+        }
+    }
 }
@@ -15,23 +15,162 @@ This source code file is part of the CASAA Treatment Coding System Utility
 
 package edu.unm.casaa.main;
 
+import edu.unm.casaa.globals.GlobalCode;
+import edu.unm.casaa.misc.MiscCode;
+
+import javax.xml.stream.XMLInputFactory;
+import javax.xml.stream.XMLStreamConstants;
+import javax.xml.stream.XMLStreamException;
+import javax.xml.stream.XMLStreamReader;
+import java.io.BufferedInputStream;
 import java.io.File;
+import java.io.FileInputStream;
 import java.io.FileWriter;
 import java.io.IOException;
+import java.io.InputStream;
 import java.io.PrintWriter;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
 import java.util.prefs.Preferences;
 
 
 
 /**
  * Interface for user config data. An XML file the user can edit outside of the application to define codes and code layout.
+ *
+ * An instance is the parsed, immutable content of one config file: codes, globals, extra summary
+ * metrics and the panels, rows and buttons of the coding views. load() parses the configured file
+ * once and returns the same instance until the file path changes or the file is modified.
  */
 public class UserConfig {
 
+
+    /**
+     * Utterance code declared in a codes section
+     */
+    public static final class Code {
+        public final String name;
+        public final int value;
+
+        private Code(String name, int value) {
+            this.name = name;
+            this.value = value;
+        }
+    }
+
+
+    /**
+     * Global rating declared in a globals section
+     */
+    public static final class Global {
+        public final int value;
+        public final String name;
+        public final String label;
+        public final int defaultRating;
+        public final int minRating;
+        public final int maxRating;
+
+        private Global(int value, String name, String label, int defaultRating, int minRating, int maxRating) {
+            this.value = value;
+            this.name = name;
+            this.label = label;
+            this.defaultRating = defaultRating;
+            this.minRating = minRating;
+            this.maxRating = maxRating;
+        }
+
+        /**
+         * @return new GlobalCode for a code registry
+         */
+        public GlobalCode toGlobalCode() {
+            GlobalCode code = new GlobalCode(value, name, label);
+            code.defaultRating = defaultRating;
+            code.minRating = minRating;
+            code.maxRating = maxRating;
+            return code;
+        }
+    }
+
+
+    /**
+     * Panel of code buttons, codeControls section
+     */
+    public static final class CodePanel {
+        /* "left" or "right" */
+        public final String panel;
+        public final String label;
+        /* code names of buttons, by row */
+        public final List<List<String>> rows;
+
+        private CodePanel(String panel, String label, List<List<String>> rows) {
+            this.panel = panel;
+            this.label = label;
+            this.rows = rows;
+        }
+
+        /**
+         * @return speaker name, the first word of the label
+         */
+        public String getSpeakerName() {
+            // one user had other text after the speaker name so only use first word
+            return label.split(" ")[0];
+        }
+    }
+
+
+    /**
+     * Panel of global rating controls, globalControls section
+     */
+    public static final class GlobalPanel {
+        /* "left" or "right" */
+        public final String panel;
+        /* global names of sliders in order; null for a spacer */
+        public final List<String> sliders;
+
+        private GlobalPanel(String panel, List<String> sliders) {
+            this.panel = panel;
+            this.sliders = sliders;
+        }
+    }
+
+
     /* provide access to application preferences */
-    private static final Preferences appPrefs = Preferences.userNodeForPackage(Main.class);
+    private static final Preferences appPrefs = Preferences.userNodeForPackage(UserConfig.class);
     /* default location of config file */
     private static final String defaultPath = String.format("%s%s%s", System.getProperty("user.home"), System.getProperty("file.separator"), "CactiUserConfiguration.xml");
+    /* last parsed config */
+    private static UserConfig cached = null;
+
+    private final File file;
+    private final long lastModified;
+    private final long length;
+    private final List<Code> codes;
+    private final List<Global> globals;
+    private final List<SummaryEngine.Metric> summaryMetrics;
+    private final List<CodePanel> codePanels;
+    private final List<GlobalPanel> globalPanels;
+    private final Map<String, Code> codesByName;
+
+
+    private UserConfig(File file, long lastModified, long length, List<Code> codes, List<Global> globals,
+                       List<SummaryEngine.Metric> summaryMetrics, List<CodePanel> codePanels, List<GlobalPanel> globalPanels) {
+        this.file = file;
+        this.lastModified = lastModified;
+        this.length = length;
+        this.codes = Collections.unmodifiableList(codes);
+        this.globals = Collections.unmodifiableList(globals);
+        this.summaryMetrics = Collections.unmodifiableList(summaryMetrics);
+        this.codePanels = Collections.unmodifiableList(codePanels);
+        this.globalPanels = Collections.unmodifiableList(globalPanels);
+        HashMap<String, Code> byName = new HashMap<>();
+        for (Code code : codes) {
+            byName.put(code.name, code);
+        }
+        this.codesByName = Collections.unmodifiableMap(byName);
+    }
 
 
     /**
@@ -78,6 +217,7 @@ public class UserConfig {
      */
     public static void setPath(String configPath) {
         appPrefs.put("configFilePath", configPath);
+        invalidate();
     }
 
 
@@ -95,5 +235,372 @@ public class UserConfig {
 
     }
 
-}
 
+
+    /**
+     * Config of the configured file, parsed if not already cached or if the file changed since
+     * @return parsed config
+     * @throws FileFormatException if the file is not a valid config; message gives the line
+     * @throws IOException if the file cannot be read
+     */
+    public static synchronized UserConfig load() throws IOException {
+        File file = new File(getPath()).getCanonicalFile();
+        UserConfig config = cached;
+        if( config == null || !config.file.equals(file)
+                || config.lastModified != file.lastModified() || config.length != file.length() ) {
+            config = parse(file);
+            cached = config;
+        }
+        return config;
+    }
+
+
+    /**
+     * Drop cached config so the next load() parses the file
+     */
+    public static synchronized void invalidate() {
+        cached = null;
+    }
+
+
+    public File getFile() {
+        return file;
+    }
+
+    public List<Code> getCodes() {
+        return codes;
+    }
+
+    /**
+     * @param name code name
+     * @return code declared with name or null
+     */
+    public Code getCode(String name) {
+        return codesByName.get(name);
+    }
+
+    public List<Global> getGlobals() {
+        return globals;
+    }
+
+    public List<SummaryEngine.Metric> getSummaryMetrics() {
+        return summaryMetrics;
+    }
+
+    public List<CodePanel> getCodePanels() {
+        return codePanels;
+    }
+
+    public List<GlobalPanel> getGlobalPanels() {
+        return globalPanels;
+    }
+
+
+
+    /**
+     * Make this config current: codes with buttons go into the MiscCode registry, globals into the
+     * GlobalCode registry and extra summary metrics into SummaryEngine. Nothing is replaced unless all of them build.
+     * @throws Exception on duplicate codes or globals, or invalid summary metrics; message says which
+     */
+    public void install() throws Exception {
+
+        // codes in use are those with buttons; speaker comes from the panel label. parse() has checked each is declared
+        MiscCode.Builder miscCodes = new MiscCode.Builder();
+        try {
+            for( CodePanel panel : codePanels ) {
+                for( List<String> row : panel.rows ) {
+                    for( String codeName : row ) {
+                        miscCodes.add( new MiscCode( getCode(codeName).value, codeName, MiscCode.Speaker.valueOf(panel.getSpeakerName()) ) );
+                    }
+                }
+            }
+        } catch( Exception e ) {
+            throw new Exception( String.format("Failed to add code.\n%s", e.getMessage()), e );
+        }
+
+        GlobalCode.Builder globalCodes = new GlobalCode.Builder();
+        try {
+            for( Global global : globals ) {
+                globalCodes.add( global.toGlobalCode() );
+            }
+        } catch( Exception e ) {
+            throw new Exception( String.format("Failed to add global code.\n%s", e.getMessage()), e );
+        }
+
+        SummaryEngine summaryEngine;
+        try {
+            summaryEngine = SummaryEngine.withExtraMetrics(summaryMetrics);
+        } catch( IllegalArgumentException e ) {
+            throw new Exception( String.format("Failed to add summary metric.\n%s", e.getMessage()), e );
+        }
+
+        // swap in new codes
+        MiscCode.setRegistry( miscCodes.build() );
+        GlobalCode.setRegistry( globalCodes.build() );
+        SummaryEngine.setCurrent( summaryEngine );
+    }
+
+
+
+    /**
+     * Parse config file in one streaming pass
+     *
+     * <userConfiguration>
+     *  <codes><code name= value=/></codes>
+     *  <globals><global name= label= value= [defaultRating= minRating= maxRating=]/></globals>
+     *  <summary><metric name= codes= | type= a= b=/></summary>
+     *  <codeControls panel= label=><row><button code=/></row></codeControls>
+     *  <globalControls panel=><slider global=/><spacer/></globalControls>
+     * </userConfiguration>
+     *
+     * @param file config file
+     * @return parsed config
+     * @throws FileFormatException if the file is not a valid config; message gives the line
+     * @throws IOException if the file cannot be read
+     */
+    public static UserConfig parse(File file) throws IOException {
+
+        long lastModified = file.lastModified();
+        long length = file.length();
+
+        ArrayList<Code> codes = new ArrayList<>();
+        ArrayList<Global> globals = new ArrayList<>();
+        ArrayList<SummaryEngine.Metric> summaryMetrics = new ArrayList<>();
+        ArrayList<CodePanel> codePanels = new ArrayList<>();
+        ArrayList<GlobalPanel> globalPanels = new ArrayList<>();
+
+        XMLInputFactory factory = XMLInputFactory.newInstance();
+        factory.setProperty(XMLInputFactory.SUPPORT_DTD, false);
+        factory.setProperty(XMLInputFactory.IS_SUPPORTING_EXTERNAL_ENTITIES, false);
+
+        try (InputStream in = new BufferedInputStream(new FileInputStream(file))) {
+            XMLStreamReader reader = factory.createXMLStreamReader(in);
+            try {
+                // document element
+                if( !nextChild(reader) ) {
+                    throw formatError(reader, "No document element");
+                }
+
+                // Expected format: <userConfiguration> <codes>...</codes> <globals>...</globals> ... </userConfiguration>
+                while( nextChild(reader) ) {
+                    String section = reader.getLocalName();
+                    if( section.equalsIgnoreCase("codes") ) {
+                        readCodes(reader, codes);
+                    } else if( section.equalsIgnoreCase("globals") ) {
+                        readGlobals(reader, globals);
+                    } else if( section.equalsIgnoreCase("summary") ) {
+                        readSummary(reader, summaryMetrics);
+                    } else if( section.equals("codeControls") ) {
+                        codePanels.add(readCodePanel(reader));
+                    } else if( section.equals("globalControls") ) {
+                        globalPanels.add(readGlobalPanel(reader));
+                    } else {
+                        skip(reader);
+                    }
+                }
+            } finally {
+                reader.close();
+            }
+        } catch (XMLStreamException e) {
+            String line = (e.getLocation() == null) ? "" : String.format("line %d: ", e.getLocation().getLineNumber());
+            throw new FileFormatException(line + e.getMessage(), e);
+        }
+
+        UserConfig config = new UserConfig(file, lastModified, length, codes, globals, summaryMetrics, codePanels, globalPanels);
+
+        // buttons may come before the codes they use, so check once everything is read
+        for (CodePanel panel : codePanels) {
+            for (List<String> row : panel.rows) {
+                for (String codeName : row) {
+                    if( config.getCode(codeName) == null ) {
+                        throw new FileFormatException(String.format("codeControls panel %s uses undeclared code: %s", panel.panel, codeName));
+                    }
+                }
+            }
+        }
+
+        return config;
+    }
+
+
+    private static void readCodes(XMLStreamReader reader, List<Code> codes) throws XMLStreamException, FileFormatException {
+        while( nextChild(reader) ) {
+            if( reader.getLocalName().equalsIgnoreCase("code") ) {
+                codes.add(new Code(required(reader, "name"), intValue(reader, "value", null)));
+            }
+            skip(reader);
+        }
+    }
+
+
+    private static void readGlobals(XMLStreamReader reader, List<Global> globals) throws XMLStreamException, FileFormatException {
+        while( nextChild(reader) ) {
+            if( reader.getLocalName().equalsIgnoreCase("global") ) {
+                // defaults as GlobalCode
+                Global global = new Global(intValue(reader, "value", null), required(reader, "name"), required(reader, "label"),
+                        intValue(reader, "defaultRating", 1), intValue(reader, "minRating", 1), intValue(reader, "maxRating", 5));
+
+                if( global.defaultRating < global.minRating ||
+                        global.defaultRating > global.maxRating ||
+                        global.maxRating < global.minRating ) {
+                    throw formatError(reader, "Invalid range for global code: " + global.name +
+                            ", minRating: " + global.minRating +
+                            ", maxRating: " + global.maxRating +
+                            ", defaultRating: " + global.defaultRating);
+                }
+                globals.add(global);
+            }
+            skip(reader);
+        }
+    }
+
+
+    /*
+     * Metrics are sums of codes, or formulas over metrics declared before them:
+     *   <metric name="SUM_REF_CHANGE" codes="SR+,CR+" />
+     *   <metric name="PCT_REF_CHANGE" type="share" a="SUM_REF_CT" b="SUM_REF_ST" />
+     * type is one of sum (default), add, share, percent, ratio
+     */
+    private static void readSummary(XMLStreamReader reader, List<SummaryEngine.Metric> summaryMetrics) throws XMLStreamException, FileFormatException {
+        while( nextChild(reader) ) {
+            if( reader.getLocalName().equalsIgnoreCase("metric") ) {
+                String name = required(reader, "name");
+                String type = attribute(reader, "type");
+                String codes = attribute(reader, "codes");
+                String a = attribute(reader, "a");
+                String b = attribute(reader, "b");
+
+                try {
+                    SummaryEngine.Kind kind = (type == null) ? SummaryEngine.Kind.SUM : SummaryEngine.Kind.fromName(type);
+
+                    if( kind == SummaryEngine.Kind.SUM ) {
+                        String[] codeNames = (codes == null) ? new String[0] : codes.split(",");
+                        for( int i = 0; i < codeNames.length; i++ )
+                            codeNames[i] = codeNames[i].trim();
+                        summaryMetrics.add(SummaryEngine.Metric.sum(name, codeNames));
+                    } else {
+                        summaryMetrics.add(SummaryEngine.Metric.formula(name, kind,
+                                (a == null) ? null : a.trim(),
+                                (b == null) ? null : b.trim()));
+                    }
+                } catch (IllegalArgumentException e) {
+                    throw formatError(reader, String.format("Invalid summary metric: %s\n%s", name, e.getMessage()));
+                }
+            }
+            skip(reader);
+        }
+    }
+
+
+    private static CodePanel readCodePanel(XMLStreamReader reader) throws XMLStreamException, FileFormatException {
+        String panel = required(reader, "panel");
+        String label = required(reader, "label");
+        ArrayList<List<String>> rows = new ArrayList<>();
+
+        while( nextChild(reader) ) {
+            if( reader.getLocalName().equalsIgnoreCase("row") ) {
+                ArrayList<String> row = new ArrayList<>();
+                while( nextChild(reader) ) {
+                    if( reader.getLocalName().equalsIgnoreCase("button") ) {
+                        row.add(required(reader, "code"));
+                    }
+                    skip(reader);
+                }
+                rows.add(Collections.unmodifiableList(row));
+            } else {
+                skip(reader);
+            }
+        }
+        return new CodePanel(panel, label, Collections.unmodifiableList(rows));
+    }
+
+
+    private static GlobalPanel readGlobalPanel(XMLStreamReader reader) throws XMLStreamException, FileFormatException {
+        String panel = required(reader, "panel");
+        ArrayList<String> sliders = new ArrayList<>();
+
+        while( nextChild(reader) ) {
+            if( reader.getLocalName().equals("slider") ) {
+                sliders.add(required(reader, "global"));
+            } else if( reader.getLocalName().equals("spacer") ) {
+                sliders.add(null);
+            }
+            skip(reader);
+        }
+        return new GlobalPanel(panel, Collections.unmodifiableList(sliders));
+    }
+
+
+    /**
+     * Advance to next child element of current element, skipping text and comments
+     * @return true if positioned on a child start element, false on the end of current element
+     */
+    private static boolean nextChild(XMLStreamReader reader) throws XMLStreamException {
+        while( reader.hasNext() ) {
+            int event = reader.next();
+            if( event == XMLStreamConstants.START_ELEMENT ) {
+                return true;
+            }
+            if( event == XMLStreamConstants.END_ELEMENT ) {
+                return false;
+            }
+        }
+        return false;
+    }
+
+
+    /**
+     * Skip from a start element to its end element
+     */
+    private static void skip(XMLStreamReader reader) throws XMLStreamException {
+        int depth = 1;
+        while( depth > 0 && reader.hasNext() ) {
+            int event = reader.next();
+            if( event == XMLStreamConstants.START_ELEMENT ) {
+                depth++;
+            } else if( event == XMLStreamConstants.END_ELEMENT ) {
+                depth--;
+            }
+        }
+    }
+
+
+    private static String attribute(XMLStreamReader reader, String name) {
+        for (int i = 0; i < reader.getAttributeCount(); i++) {
+            if( reader.getAttributeLocalName(i).equals(name) ) {
+                return reader.getAttributeValue(i);
+            }
+        }
+        return null;
+    }
+
+
+    private static String required(XMLStreamReader reader, String name) throws FileFormatException {
+        String value = attribute(reader, name);
+        if( value == null ) {
+            throw formatError(reader, String.format("<%s> is missing attribute %s", reader.getLocalName(), name));
+        }
+        return value;
+    }
+
+
+    /**
+     * @param defaultValue used if attribute is absent; null makes attribute required
+     */
+    private static int intValue(XMLStreamReader reader, String name, Integer defaultValue) throws FileFormatException {
+        String value = (defaultValue == null) ? required(reader, name) : attribute(reader, name);
+        if( value == null ) {
+            return defaultValue;
+        }
+        try {
+            return Integer.parseInt(value.trim());
+        } catch (NumberFormatException e) {
+            throw formatError(reader, String.format("<%s> attribute %s is not a number: %s", reader.getLocalName(), name, value));
+        }
+    }
+
+
+    private static FileFormatException formatError(XMLStreamReader reader, String message) {
+        return new FileFormatException(String.format("line %d: %s", reader.getLocation().getLineNumber(), message));
+    }
+}
@@ -16,6 +16,8 @@ package edu.unm.casaa.main;
 
 import javafx.util.Duration;
 
+import java.text.DecimalFormatSymbols;
+import java.util.Locale;
 import java.util.StringTokenizer;
 
 /**
@@ -23,16 +25,82 @@ import java.util.StringTokenizer;
  */
 public class Utils {
 
+    /* format of session time strings */
+    private static final String DURATION_FORMAT = "%02.0f:%02.0f:%04.1f";
+
+    /* values within this distance of a rounding tie are formatted by String.format, which rounds the shortest decimal form */
+    private static final double TIE_EPSILON = 1e-6;
+
+    private static final long NEGATIVE_ZERO_BITS = Double.doubleToRawLongBits(-0.0);
+
+    /* powers of ten for seconds fractions, up to the digits a double holds exactly */
+    private static final long[] POW10 = {
+            1L, 10L, 100L, 1000L, 10000L, 100000L, 1000000L, 10000000L,
+            100000000L, 1000000000L, 10000000000L, 100000000000L,
+            1000000000000L, 10000000000000L, 100000000000000L, 1000000000000000L
+    };
+
+    /* format locale last checked and whether String.format uses ascii digits and '.' under it */
+    private static volatile Locale checkedLocale = null;
+    private static volatile boolean asciiLocale = false;
+
+
     /**
      * Newer format using Duration
      * @param duration time
      * @return time converted to string
      */
     public static String formatDuration(Duration duration) {
-        double duration_secs = duration.toSeconds();
-        return String.format("%02.0f:%02.0f:%04.1f", Math.floor((duration_secs/3600) % 24), Math.floor( (duration_secs/60) % 60), (duration_secs % 60) );
+        return formatDuration(duration, new StringBuilder(10)).toString();
+    }
+
+
+    /**
+     * Append time to sb in the same format, and with the same output, as formatDuration(Duration).
+     * Ordinary times are written digit by digit; negative, undefined, near tie and
+     * non-ascii locale cases fall back to String.format.
+     * @param duration time
+     * @param sb destination
+     * @return sb
+     */
+    public static StringBuilder formatDuration(Duration duration, StringBuilder sb) {
+        return formatMillis(duration.toMillis(), sb);
+    }
+
+
+    /**
+     * Append time to sb, as formatDuration(Duration.millis(millis), sb) would.
+     * Does not use JavaFX, for headless callers.
+     * @param millis time in milliseconds
+     * @param sb destination
+     * @return sb
+     */
+    public static StringBuilder formatMillis(double millis, StringBuilder sb) {
+        // as Duration.toSeconds()
+        double duration_secs = millis / 1000.0;
+        double hours = Math.floor((duration_secs/3600) % 24);
+        double minutes = Math.floor( (duration_secs/60) % 60);
+        double seconds = duration_secs % 60;
+
+        // tenths of a second, rounded half up like %.1f
+        double scaled = seconds * 10;
+        double fraction = scaled - Math.floor(scaled);
+
+        if( !(duration_secs >= 0 && duration_secs < Double.POSITIVE_INFINITY)
+                || Double.doubleToRawLongBits(duration_secs) == NEGATIVE_ZERO_BITS
+                || Math.abs(fraction - 0.5) < TIE_EPSILON
+                || !isAsciiFormatLocale() ) {
+            return sb.append(String.format(DURATION_FORMAT, hours, minutes, seconds));
+        }
+
+        long tenths = (long) Math.floor(scaled + 0.5);
+
+        appendTwoDigits(sb, (long) hours).append(':');
+        appendTwoDigits(sb, (long) minutes).append(':');
+        return appendTwoDigits(sb, tenths / 10).append('.').append((char) ('0' + tenths % 10));
     }
 
+
     /**
      * Generate a unique GUI id for an utterance which combines the timestamp and code
      * @param startTime
@@ -40,11 +108,106 @@ public class Utils {
      * @return application guid
      */
     public static String formatID(Duration startTime, int codeValue) {
-        return String.format("%s%d", formatDuration(startTime).replaceAll("[^0-9]", ""), codeValue);
+        return formatID(startTime, codeValue, new StringBuilder(12)).toString();
+    }
+
+
+    /**
+     * Append utterance id to sb. Same output as formatID(Duration, int).
+     * @param startTime
+     * @param codeValue
+     * @param sb destination
+     * @return sb
+     */
+    public static StringBuilder formatID(Duration startTime, int codeValue, StringBuilder sb) {
+        if( !isAsciiFormatLocale() ) {
+            // %d localizes the code digits too
+            return sb.append(String.format("%s%d", formatDuration(startTime).replaceAll("[^0-9]", ""), codeValue));
+        }
+
+        int start = sb.length();
+        formatDuration(startTime, sb);
+
+        // keep only the digits of the time
+        int end = start;
+        for (int i = start; i < sb.length(); i++) {
+            char c = sb.charAt(i);
+            if( c >= '0' && c <= '9' ) {
+                sb.setCharAt(end++, c);
+            }
+        }
+        sb.setLength(end);
+
+        return sb.append(codeValue);
     }
 
 
     public static Duration parseDuration( String string ) {
+        return parseDuration((CharSequence) string);
+    }
+
+
+    /**
+     * Parse time written by formatDuration.
+     * Plain "h:m:s.s" digits are read in place; anything else goes through the original tokenizer path.
+     * @param chars time string
+     * @return time
+     */
+    public static Duration parseDuration( CharSequence chars ) {
+
+        int len = chars.length();
+
+        int i = 0;
+        int hours = 0;
+        int start = i;
+        while( i < len && i - start < 9 && isDigit(chars.charAt(i)) ) {
+            hours = hours * 10 + (chars.charAt(i++) - '0');
+        }
+        if( i == start || i >= len || chars.charAt(i++) != ':' ) {
+            return parseDurationTokens(chars.toString());
+        }
+
+        int minutes = 0;
+        start = i;
+        while( i < len && i - start < 9 && isDigit(chars.charAt(i)) ) {
+            minutes = minutes * 10 + (chars.charAt(i++) - '0');
+        }
+        if( i == start || i >= len || chars.charAt(i++) != ':' ) {
+            return parseDurationTokens(chars.toString());
+        }
+
+        // seconds as digits / 10^fractionDigits, one correctly rounded division like Double.valueOf
+        long digits = 0;
+        int digitCount = 0;
+        int fractionDigits = 0;
+        boolean point = false;
+        while( i < len ) {
+            char c = chars.charAt(i++);
+            if( isDigit(c) && digitCount < 15 ) {
+                digits = digits * 10 + (c - '0');
+                digitCount++;
+                if( point ) {
+                    fractionDigits++;
+                }
+            } else if( c == '.' && !point && digitCount > 0 ) {
+                point = true;
+            } else {
+                return parseDurationTokens(chars.toString());
+            }
+        }
+        if( digitCount == 0 || (point && fractionDigits == 0) ) {
+            return parseDurationTokens(chars.toString());
+        }
+        double seconds = (double) digits / POW10[fractionDigits];
+
+        return Duration.seconds( (hours * 3600) + (minutes * 60) + seconds);
+    }
+
+
+    /**
+     * Original parser, kept for input outside the plain digit format
+     */
+    private static Duration parseDurationTokens( String string ) {
         StringTokenizer st 		= new StringTokenizer( string, ":" );
 
         assert( st.countTokens() == 3 );
@@ -57,6 +220,36 @@ public class Utils {
     }
 
 
+    private static boolean isDigit(char c) {
+        return c >= '0' && c <= '9';
+    }
+
+
+    /**
+     * Append value of at least two digits, zero padded like %02.0f
+     */
+    private static StringBuilder appendTwoDigits(StringBuilder sb, long value) {
+        if( value < 10 ) {
+            sb.append('0');
+        }
+        return sb.append(value);
+    }
+
+
+    /**
+     * @return true if String.format writes ascii digits and a '.' decimal point in the current format locale
+     */
+    private static boolean isAsciiFormatLocale() {
+        Locale locale = Locale.getDefault(Locale.Category.FORMAT);
+        if( locale != checkedLocale ) {
+            DecimalFormatSymbols symbols = DecimalFormatSymbols.getInstance(locale);
+            asciiLocale = symbols.getZeroDigit() == '0' && symbols.getDecimalSeparator() == '.';
+            checkedLocale = locale;
+        }
+        return asciiLocale;
+    }
+
+
     /**
      * @param filename input filename to change
      * @param newSuffix Suffixes should be specified without leading period.
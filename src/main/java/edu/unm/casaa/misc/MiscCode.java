@@ -18,8 +18,11 @@ This source code file is part of the CASAA Treatment Coding System Utility
 
 package edu.unm.casaa.misc;
 
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
 import java.util.ListIterator;
-import java.util.Vector;
 
 // MiscCode associates a label, such as "CR+/-" or "ADP", with a numeric value.
 public class MiscCode {
@@ -27,8 +30,8 @@ public class MiscCode {
 	public static final int 			INVALID			= -1;
 	public static final MiscCode		INVALID_CODE	= new MiscCode();
 
-	// List of available codes.  Built when we parse XML file.
-	private static Vector< MiscCode >	list	        = new Vector<>();
+	// Available codes.  Built when we parse XML file, replaced as a whole on reload.
+	private static volatile Registry	registry		= Registry.EMPTY;
 
     public  int 			 value	                    = INVALID;
     public  String		     name	                    = "";
@@ -47,28 +50,39 @@ public class MiscCode {
      * @return
      */
     public static ListIterator<MiscCode> getIterator() {
-	    return list.listIterator();
+	    return registry.codes.listIterator();
     }
 
+
+    /**
+     * @return current code registry
+     */
+    public static Registry getRegistry() {
+        return registry;
+    }
+
+
+    /**
+     * Replace all codes at once. Lookups see either the old or the new registry, never a mix.
+     * @param newRegistry registry built from the user config
+     */
+    public static void setRegistry( Registry newRegistry ) {
+        registry = newRegistry;
+    }
+
+
     /**
      * Add new code
      * @param newCode code to be added
      * @throws Exception on duplicates
      */
-	public static void addCode( MiscCode newCode ) throws Exception {
-
-		// Check that we're not duplicating an existing value or label.
-        for (MiscCode code : list) {
-            if (code.value == newCode.value || code.name.equals(newCode.name)) {
-                throw new Exception(String.format("New code %s conflicts with existing code %s", newCode.toDisplayString(), code.toDisplayString()));
-            }
-        }
-		list.add( newCode );
+	public static synchronized void addCode( MiscCode newCode ) throws Exception {
+		registry = new Builder( registry ).add( newCode ).build();
 	}
 
 
 	public static int numCodes() {
-		return list.size();
+		return registry.codes.size();
 	}
 
     /**
@@ -78,7 +92,7 @@ public class MiscCode {
      * @throws ArrayIndexOutOfBoundsException
      */
 	public static MiscCode codeAtIndex( int index ) throws ArrayIndexOutOfBoundsException {
-		return list.get( index );
+		return registry.codes.get( index );
 	}
 
 
@@ -95,11 +109,10 @@ public class MiscCode {
 			return INVALID_CODE;
 		}
 		// Check user codes loaded from config for matchs.
-        for (MiscCode code : list) {
-            if (code.value == value) {
-                return code;
-            }
-        }
+		MiscCode code = registry.getByValue( value );
+		if( code != null ) {
+			return code;
+		}
         // if we get here, no matching code
 		throw new NullPointerException("Code with given value not found: " + value);
 
@@ -112,14 +125,128 @@ public class MiscCode {
 			return INVALID_CODE;
 		}
 		// Check user codes.
-        for (MiscCode code : list) {
-            if (code.name.equals(name)) {
-                return code;
+		MiscCode code = registry.getByName( name );
+		assert code != null : "Code with given name not found: " + name;
+		return code;
+	}
+
+
+
+    /**
+     * Immutable set of codes in config order, indexed by value and by name
+     */
+    public static final class Registry {
+
+        public static final Registry EMPTY = new Registry( new ArrayList<>(), new HashMap<>(), new HashMap<>() );
+
+        /* values from 0 to this are also kept in a dense array */
+        private static final int MAX_DENSE_VALUE = 1024;
+
+        private final List< MiscCode >              codes;
+        private final HashMap< Integer, MiscCode >  byValue;
+        private final HashMap< String, MiscCode >   byName;
+        private final MiscCode[]                    denseByValue;
+
+        private Registry( ArrayList< MiscCode > codes, HashMap< Integer, MiscCode > byValue, HashMap< String, MiscCode > byName ) {
+            this.codes   = Collections.unmodifiableList( codes );
+            this.byValue = byValue;
+            this.byName  = byName;
+
+            int max = -1;
+            for (MiscCode code : codes) {
+                if( code.value < 0 || code.value > MAX_DENSE_VALUE ) {
+                    max = -1;
+                    break;
+                }
+                max = Math.max( max, code.value );
+            }
+            denseByValue = new MiscCode[ max + 1 ];
+            if( max >= 0 ) {
+                for (MiscCode code : codes) {
+                    denseByValue[ code.value ] = code;
+                }
             }
         }
-		assert false : "Code with given name not found: " + name;
-		return null;
-	}
+
+        /**
+         * @return code with value or null
+         */
+        public MiscCode getByValue( int value ) {
+            if( value >= 0 && value < denseByValue.length ) {
+                return denseByValue[ value ];
+            }
+            return denseByValue.length == 0 ? byValue.get( value ) : null;
+        }
+
+        /**
+         * @return code with name or null
+         */
+        public MiscCode getByName( String name ) {
+            return byName.get( name );
+        }
+
+        /**
+         * @return codes in the order they were added
+         */
+        public List< MiscCode > getCodes() {
+            return codes;
+        }
+
+        public int size() {
+            return codes.size();
+        }
+    }
+
+
+
+    /**
+     * Collects codes for a new Registry, rejecting duplicate values or names
+     */
+    public static final class Builder {
+
+        private final ArrayList< MiscCode >         codes   = new ArrayList<>();
+        private final HashMap< Integer, MiscCode >  byValue = new HashMap<>();
+        private final HashMap< String, MiscCode >   byName  = new HashMap<>();
+
+        public Builder() {
+        }
+
+        /**
+         * Start from the codes of an existing registry
+         */
+        public Builder( Registry from ) {
+            for (MiscCode code : from.codes) {
+                codes.add( code );
+                byValue.put( code.value, code );
+                byName.put( code.name, code );
+            }
+        }
+
+        /**
+         * @param newCode code to be added
+         * @return this builder
+         * @throws Exception on duplicates
+         */
+        public Builder add( MiscCode newCode ) throws Exception {
+            // Check that we're not duplicating an existing value or label.
+            MiscCode code = byValue.get( newCode.value );
+            if( code == null ) {
+                code = byName.get( newCode.name );
+            }
+            if( code != null ) {
+                throw new Exception(String.format("New code %s conflicts with existing code %s", newCode.toDisplayString(), code.toDisplayString()));
+            }
+
+            codes.add( newCode );
+            byValue.put( newCode.value, newCode );
+            byName.put( newCode.name, newCode );
+            return this;
+        }
+
+        public Registry build() {
+            return new Registry( new ArrayList<>( codes ), new HashMap<>( byValue ), new HashMap<>( byName ) );
+        }
+    }
 
 	// Instance:
 
@@ -146,6 +273,6 @@ public class MiscCode {
 	}
 
 	public static void clear() {
-		list.clear();
+		registry = Registry.EMPTY;
 	}
 }
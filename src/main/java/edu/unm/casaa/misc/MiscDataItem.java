@@ -22,6 +22,8 @@ import edu.unm.casaa.main.Utils;
 import edu.unm.casaa.utterance.Utterance;
 import javafx.util.Duration;
 
+import java.util.Arrays;
+
 /**
  * The MiscDataItem is an object designed to hold all of the
  * relevant information for a MISC utterance.
@@ -30,10 +32,13 @@ import javafx.util.Duration;
  */
 public class MiscDataItem implements Utterance {
 
+    private static final int[] NO_RATINGS = new int[0];
+
     private String      id;
     private Duration    startTime   = Duration.ZERO;
     private MiscCode    miscCode	= new MiscCode();
     private String      annotation = "";
+    private int[]       ratingIDs   = NO_RATINGS;
 
 
     /**
@@ -118,5 +123,19 @@ public class MiscDataItem implements Utterance {
     public Boolean isAnnotated() {
         return !this.annotation.isEmpty();
     }
-    // TODO: rating ids and annotation are bypassing data model for utterance MiscDataItem which really sucks. RESOLVE
+
+    @Override
+    public void setRatingIDs(int[] ratingIDs) {
+        if( ratingIDs.length == 0 ) {
+            this.ratingIDs = NO_RATINGS;
+        } else {
+            this.ratingIDs = ratingIDs.clone();
+            Arrays.sort(this.ratingIDs);
+        }
+    }
+
+    @Override
+    public int[] getRatingIDs() {
+        return (ratingIDs.length == 0) ? NO_RATINGS : ratingIDs.clone();
+    }
 }
@@ -36,5 +36,14 @@ public interface Utterance {
 	String displayCoded();
     String getAnnotation();
     Boolean isAnnotated();
-	// TODO: rating ids and annotation are bypassing data model for utterance MiscDataItem which really sucks. RESOLVE
+
+	/**
+	 * @param ratingIDs ids of global ratings linked to this utterance
+	 */
+	void setRatingIDs(int[] ratingIDs);
+
+	/**
+	 * @return ids of global ratings linked to this utterance, ascending
+	 */
+	int[] getRatingIDs();
 }